@@ -0,0 +1,11 @@
+package simpledb.common;
+
+/**
+ * Hint passed to the BufferPool describing how a caller is going to use the
+ * page it asks for. NORMAL pages are managed by the buffer pool's replacement
+ * policy. SCAN pages are read once by a sequential scan, so they are kept in a
+ * small ring of recycled frames and do not push other pages out of the pool.
+ */
+public enum AccessHint {
+    NORMAL, SCAN
+}
@@ -1,6 +1,7 @@
 package simpledb.common;
 
 import simpledb.common.Type;
+import simpledb.index.SecondaryIndex;
 import simpledb.storage.DbFile;
 import simpledb.storage.HeapFile;
 import simpledb.storage.TupleDesc;
@@ -11,6 +12,7 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * The Catalog keeps track of all available tables in the database and their
@@ -29,6 +31,7 @@ public class Catalog {
     private Map<Integer,String>dbIdToNameMap;
     private Map<Integer,DbFile>dbIdToFileMap;
     private Map<Integer,String>dbIdToPkeyMap;
+    private Map<Integer,List<SecondaryIndex>>dbIdToIndexesMap;
 
 
     /**
@@ -41,6 +44,7 @@ public class Catalog {
         this.dbIdToNameMap = new HashMap<>();
         this.dbIdToFileMap = new HashMap<>();
         this.dbIdToPkeyMap = new HashMap<>();
+        this.dbIdToIndexesMap = new ConcurrentHashMap<>();
     }
 
     /**
@@ -57,8 +61,12 @@ public class Catalog {
         int fileId = file.getId();
         this.dbNameToIdMap.put(name,fileId);
         this.dbIdToNameMap.put(fileId,name);
-        this.dbIdToFileMap.put(fileId,file);
+        DbFile replaced = this.dbIdToFileMap.put(fileId,file);
         this.dbIdToPkeyMap.put(fileId,pkeyField);
+        // 同一个文件换了一个新的DbFile对象，旧对象打开的文件通道要关掉
+        if(replaced != null && replaced != file){
+            closeFile(replaced);
+        }
     }
 
     public void addTable(DbFile file, String name) {
@@ -115,6 +123,27 @@ public class Catalog {
         return dbFile;
     }
 
+    /**
+     * Add a secondary index to the catalog. Its B+ tree is added as a table named
+     * after the index, and from now on BufferPool.insertTuple and deleteTuple keep
+     * it up to date with the indexed table. Tuples already in the table are only
+     * in the index once it has been built.
+     * @param index the index to add
+     * @see SecondaryIndex#build
+     */
+    public void addIndex(SecondaryIndex index) {
+        addTable(index.getFile(), index.getName());
+        this.dbIdToIndexesMap.computeIfAbsent(index.getTableId(), k -> new CopyOnWriteArrayList<>()).add(index);
+    }
+
+    /**
+     * Returns the secondary indexes of the specified table, possibly none
+     * @param tableid The id of the indexed table
+     */
+    public List<SecondaryIndex> getIndexes(int tableid) {
+        return this.dbIdToIndexesMap.getOrDefault(tableid, Collections.emptyList());
+    }
+
     public String getPrimaryKey(int tableid) {
         // some code goes here
         return this.dbIdToPkeyMap.get(tableid);
@@ -130,15 +159,27 @@ public class Catalog {
         return this.dbIdToNameMap.get(id);
     }
     
-    /** Delete all tables from the catalog */
+    /** Delete all tables from the catalog, closing their files */
     public void clear() {
         // some code goes here
+        for(DbFile file : this.dbIdToFileMap.values()){
+            closeFile(file);
+        }
         this.dbIdToNameMap.clear();
         this.dbNameToIdMap.clear();
         this.dbIdToFileMap.clear();
         this.dbIdToPkeyMap.clear();
+        this.dbIdToIndexesMap.clear();
     }
     
+    private static void closeFile(DbFile file) {
+        try {
+            file.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
      * @param catalogFile
@@ -72,7 +72,10 @@ public class Database {
 
     // reset the database, used for unit tests only.
     public static void reset() {
+        Catalog old = _instance.get()._catalog;
         _instance.set(new Database());
+        // 关掉旧catalog中文件的文件通道，还在用的文件下次读写时会重新打开
+        old.clear();
     }
 
 }
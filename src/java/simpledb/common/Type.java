@@ -6,6 +6,7 @@ import simpledb.storage.IntField;
 
 import java.text.ParseException;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Class representing a type in SimpleDB.
@@ -28,6 +29,11 @@ public enum Type implements Serializable {
             }
         }
 
+        @Override
+        public Field parse(ByteBuffer buf, int offset) {
+            return new IntField(buf.getInt(offset));
+        }
+
     }, STRING_TYPE() {
         @Override
         public int getLen() {
@@ -46,6 +52,16 @@ public enum Type implements Serializable {
                 throw new ParseException("couldn't parse", 0);
             }
         }
+
+        @Override
+        public Field parse(ByteBuffer buf, int offset) {
+            int strLen = Math.max(0, Math.min(buf.getInt(offset), STRING_LEN));
+            byte[] bs = new byte[strLen];
+            for (int i = 0; i < strLen; i++) {
+                bs[i] = buf.get(offset + 4 + i);
+            }
+            return new StringField(new String(bs), STRING_LEN);
+        }
     };
     
     public static final int STRING_LEN = 128;
@@ -64,4 +80,13 @@ public enum Type implements Serializable {
    */
     public abstract Field parse(DataInputStream dis) throws ParseException;
 
+  /**
+   * @return a Field object of the same type as this object that has contents
+   *   read from the specified buffer at the given offset. The position of the
+   *   buffer is not changed, so one buffer can be read by several threads.
+   * @param buf The buffer to read from
+   * @param offset The index in buf of the first byte of the field
+   */
+    public abstract Field parse(ByteBuffer buf, int offset);
+
 }
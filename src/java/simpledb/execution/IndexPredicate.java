@@ -1,11 +1,19 @@
 package simpledb.execution;
 
+import simpledb.storage.CompositeField;
 import simpledb.storage.Field;
 
 import java.io.Serializable;
 
 /**
  * IndexPredicate compares a field which has index on it against a given value
+ * <p>
+ * On an index keyed on several fields, the predicate may give values for any
+ * number of the leading key fields, as a {@link CompositeField}. All but the
+ * last of them must be equal to the key's fields, and the last one is compared
+ * with op: (a, b) with GREATER_THAN matches the keys whose first field is a and
+ * whose second field is greater than b, and (a) with EQUALS matches the keys
+ * whose first field is a.
  * @see IndexOpIterator
  */
 public class IndexPredicate implements Serializable {
@@ -29,6 +37,16 @@ public class IndexPredicate implements Serializable {
         this.fieldvalue = fvalue;
     }
 
+    /**
+     * Constructor for a predicate on the leading fields of a composite key.
+     *
+     * @param op The operation to apply to the last of the values
+     * @param fvalues The values of the leading key fields, most significant first
+     */
+    public IndexPredicate(Predicate.Op op, Field... fvalues) {
+        this(op, new CompositeField(fvalues));
+    }
+
     public Field getField() {
         return fieldvalue;
     }
@@ -37,6 +55,17 @@ public class IndexPredicate implements Serializable {
         return op;
     }
 
+    /**
+     * @return the values the leading key fields must be equal to, that is all but
+     *   the last of a composite value, or null if there are none
+     */
+    public Field getPrefix() {
+        if (!(fieldvalue instanceof CompositeField) || ((CompositeField) fieldvalue).numFields() == 1)
+            return null;
+        CompositeField cf = (CompositeField) fieldvalue;
+        return cf.prefix(cf.numFields() - 1);
+    }
+
     /** Return true if the fieldvalue in the supplied predicate
         is satisfied by this predicate's fieldvalue and
         operator.
@@ -95,15 +95,13 @@ public class Insert extends Operator {
         if(this.insertFinished){
             return null;
         }
-        int count = 0;
-        while(this.child.hasNext()){
-            Tuple tuple = this.child.next();
-            try {
-                Database.getBufferPool().insertTuple(this.tid,this.tableId,tuple);
-                ++count;
-            }catch (IOException ignored){
-
-            }
+        // 整批交给bufferPool，大批量的插入会按extent直接追加到文件末尾
+        int count;
+        try {
+            count = Database.getBufferPool().bulkInsertTuples(this.tid, this.tableId,
+                    new OpIteratorFileIterator(this.child));
+        }catch (IOException e){
+            throw new DbException("insert failed: " + e.getMessage());
         }
         Tuple res = new Tuple(this.td);
         res.setField(0,new IntField(count));
@@ -0,0 +1,57 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.AbstractDbFileIterator;
+import simpledb.storage.Tuple;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.function.Function;
+
+/**
+ * Adapts an OpIterator to the DbFileIterator interface, so that the output of
+ * an operator can be handed to methods that take the tuples to store as a
+ * DbFileIterator, such as BufferPool.bulkInsertTuples. The tuples can be
+ * converted on the way, e.g. into the entries of an index.
+ * <p>
+ * The child is opened and closed by its owner: open() and close() leave it
+ * alone, and rewind() rewinds it.
+ */
+public class OpIteratorFileIterator extends AbstractDbFileIterator {
+
+    private final OpIterator child;
+    private final Function<Tuple, Tuple> convert;
+
+    /**
+     * Constructor.
+     *
+     * @param child the operator to read the tuples from, already opened
+     */
+    public OpIteratorFileIterator(OpIterator child) {
+        this(child, Function.identity());
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param child the operator to read the tuples from, already opened
+     * @param convert the function applied to each tuple of the child
+     */
+    public OpIteratorFileIterator(OpIterator child, Function<Tuple, Tuple> convert) {
+        this.child = child;
+        this.convert = convert;
+    }
+
+    public void open() {
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        // 丢掉已经读出来但还没有返回的tuple
+        super.close();
+        this.child.rewind();
+    }
+
+    @Override
+    protected Tuple readNext() throws DbException, TransactionAbortedException {
+        return this.child.hasNext() ? this.convert.apply(this.child.next()) : null;
+    }
+}
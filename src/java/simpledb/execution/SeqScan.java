@@ -1,6 +1,7 @@
 package simpledb.execution;
 
 import simpledb.common.Database;
+import simpledb.common.Permissions;
 import simpledb.storage.*;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
@@ -96,6 +97,11 @@ public class SeqScan implements OpIterator {
     public void open() throws DbException, TransactionAbortedException {
         // some code goes here
         DbFile dbFile = Database.getCatalog().getDatabaseFile(this.tableId);
+        // 扫描大表时直接拿一个表锁，不用给每个page都加锁
+        if (dbFile instanceof HeapFile
+                && ((HeapFile) dbFile).numPages() > BufferPool.getLockEscalationThreshold()) {
+            Database.getBufferPool().lockTable(this.tid, this.tableId, Permissions.READ_ONLY);
+        }
         this.iterator = dbFile.iterator(tid);
         this.iterator.rewind();
     }
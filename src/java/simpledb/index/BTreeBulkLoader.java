@@ -0,0 +1,522 @@
+package simpledb.index;
+
+import java.io.*;
+import java.text.ParseException;
+import java.util.*;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+/**
+ * BTreeBulkLoader builds the pages of a B+ tree bottom-up from the tuples of
+ * another file, for {@link BTreeFile#bulkLoad}.
+ * <p>
+ * The tuples are sorted on the key field with an external merge sort: runs of
+ * at most sortBufferPages leaf pages' worth of tuples are sorted in memory and
+ * spilled to temporary files, which are then merged in a single pass. Since the
+ * number of tuples is known once the runs are written, the shape of the whole
+ * tree is computed before any page is written: leaf pages are packed to the
+ * fill factor, and each internal level is packed over the level below. Every
+ * page therefore knows its parent and siblings when it is built, and is written
+ * exactly once, in page order, EXTENT_PAGES pages at a time.
+ * <p>
+ * How many entries a prefix-compressed internal page holds depends on its keys,
+ * so for those trees the sorted tuples are read twice: once to find the key that
+ * separates each pair of leaf pages, from which the internal levels are packed
+ * to the fill factor in bytes, and once to write the pages.
+ */
+class BTreeBulkLoader {
+
+	/** Number of pages written to the file with one write. */
+	static final int EXTENT_PAGES = 16;
+
+	private final BTreeFile file;
+	private final TupleDesc td;
+	private final int[] keyFields;
+	private final int tableid;
+	private final int pageSize;
+
+	private final int maxTuples;
+	private final int leafTuples;
+	private final int maxChildren;
+	private final int internalChildren;
+	private final boolean compressed;
+	private final int internalBytes;
+	private final int sortBufferTuples;
+
+	/**
+	 * @param file - the B+ tree to build
+	 * @param fillFactor - the fraction of each page to fill, between 0.5 and 1
+	 * @param sortBufferPages - the number of leaf pages' worth of tuples to sort in memory at a time
+	 */
+	BTreeBulkLoader(BTreeFile file, double fillFactor, int sortBufferPages) throws IOException {
+		if (fillFactor < 0.5 || fillFactor > 1.0) {
+			throw new IllegalArgumentException("fill factor must be between 0.5 and 1: " + fillFactor);
+		}
+		this.file = file;
+		this.td = file.getTupleDesc();
+		this.keyFields = file.keyFields();
+		this.tableid = file.getId();
+		this.pageSize = BufferPool.getPageSize();
+
+		// 页至少要半满，否则以后删除时会破坏B+树的占用率不变式
+		this.maxTuples = new BTreeLeafPage(new BTreePageId(this.tableid, 0, BTreePageId.LEAF),
+				BTreeLeafPage.createEmptyPageData(), this.keyFields).getMaxTuples();
+		this.leafTuples = Math.max((this.maxTuples + 1) / 2, (int) (this.maxTuples * fillFactor));
+		int maxEntries = new BTreeInternalPage(new BTreePageId(this.tableid, 0, BTreePageId.INTERNAL),
+				BTreeInternalPage.createEmptyPageData(), this.keyFields).getMaxEntries();
+		this.maxChildren = maxEntries + 1;
+		this.internalChildren = Math.max((maxEntries + 1) / 2, (int) (maxEntries * fillFactor)) + 1;
+		this.compressed = this.keyFields.length == 1
+				&& BTreeInternalPage.isCompressed(this.td.getFieldType(this.keyFields[0]));
+		this.internalBytes = Math.min(BTreeInternalPage.getCompressedCapacity(),
+				Math.max(BTreeInternalPage.getMinUsedBytes() + BTreeInternalPage.getMaxEntrySize(),
+						(int) (BTreeInternalPage.getCompressedCapacity() * fillFactor)));
+		this.sortBufferTuples = Math.max(1, sortBufferPages) * this.maxTuples;
+	}
+
+	/**
+	 * Sorts the tuples of source and writes the tree's pages to the file, starting
+	 * at page number first. The pages are not forced to disk.
+	 *
+	 * @param tid - the transaction reading source
+	 * @param source - the file whose tuples to load
+	 * @param first - the page number of the first page to write
+	 * @return the id of the root page, or null if source has no tuples
+	 */
+	BTreePageId load(TransactionId tid, DbFile source, int first)
+			throws DbException, IOException, TransactionAbortedException {
+		DbFileIterator it = source.iterator(tid);
+		it.open();
+		try {
+			return this.load(it, first);
+		} finally {
+			it.close();
+		}
+	}
+
+	/**
+	 * Sorts the tuples of an iterator, already opened, and writes the tree's pages
+	 * to the file, starting at page number first. The pages are not forced to disk.
+	 *
+	 * @see #load(TransactionId, DbFile, int)
+	 */
+	BTreePageId load(DbFileIterator it, int first)
+			throws DbException, IOException, TransactionAbortedException {
+		SortedRuns runs = new SortedRuns();
+		try {
+			while (it.hasNext()) {
+				runs.add(it.next());
+			}
+			if (runs.count == 0) {
+				return null;
+			}
+			return this.write(runs, first);
+		} finally {
+			runs.delete();
+		}
+	}
+
+	/**
+	 * Divides n items among pages holding perPage items each. If that leaves the
+	 * last page with fewer, it is merged into the page before it if they fit in one
+	 * page, and the two are evened out otherwise, so that no page is less than half
+	 * full (unless there is only one page).
+	 *
+	 * @return the number of items on each page
+	 */
+	static int[] pack(int n, int perPage, int maxPerPage) {
+		int pages = Math.max(1, (n + perPage - 1) / perPage);
+		int[] sizes = new int[pages];
+		Arrays.fill(sizes, perPage);
+		sizes[pages - 1] = n - (pages - 1) * perPage;
+		if (pages > 1 && sizes[pages - 1] < perPage) {
+			int rest = sizes[pages - 2] + sizes[pages - 1];
+			if (rest <= maxPerPage) {
+				sizes = Arrays.copyOf(sizes, pages - 1);
+				sizes[pages - 2] = rest;
+			} else {
+				sizes[pages - 2] = rest / 2;
+				sizes[pages - 1] = rest - rest / 2;
+			}
+		}
+		return sizes;
+	}
+
+	/**
+	 * Divides the children of a level among prefix-compressed internal pages, filling
+	 * each to about internalBytes bytes. The last page is merged into the page before
+	 * it if they fit in one page, and the two are evened out otherwise.
+	 *
+	 * @param keys - the key of each child; the key of the first child of a page goes
+	 * to the level above, the others are the keys of the page's entries
+	 * @return the number of children of each page
+	 */
+	private int[] packBytes(List<Field> keys) {
+		List<Integer> starts = new ArrayList<>();
+		int start = 0;
+		while (start < keys.size()) {
+			starts.add(start);
+			int end = start + 1;
+			int bytes = 0;
+			while (end < keys.size()) {
+				int size = BTreeInternalPage.getCompressedEntrySize(end == start + 1 ? null : keys.get(end - 1),
+						keys.get(end));
+				// 每页至少要有一个entry
+				if (end > start + 1 && bytes + size > this.internalBytes) {
+					break;
+				}
+				bytes += size;
+				end++;
+			}
+			start = end;
+		}
+
+		int pages = starts.size();
+		if (pages > 1) {
+			int from = starts.get(pages - 2);
+			int last = starts.get(pages - 1);
+			if (keys.size() - last < 2 || BTreeInternalPage.getCompressedSize(
+					keys.subList(last + 1, keys.size())) < BTreeInternalPage.getMinUsedBytes()) {
+				int both = BTreeInternalPage.getCompressedSize(keys.subList(from + 1, keys.size()));
+				if (both <= BTreeInternalPage.getCompressedCapacity()) {
+					starts.remove(pages - 1);
+				} else {
+					// 从两页合起来的中间分开
+					int bytes = 0;
+					int mid = from + 1;
+					while (mid < keys.size() - 2 && bytes < both / 2) {
+						bytes += BTreeInternalPage.getCompressedEntrySize(mid == from + 1 ? null : keys.get(mid - 1),
+								keys.get(mid));
+						mid++;
+					}
+					starts.set(pages - 1, mid);
+				}
+			}
+		}
+
+		int[] sizes = new int[starts.size()];
+		for (int i = 0; i < sizes.length; i++) {
+			sizes[i] = (i + 1 < sizes.length ? starts.get(i + 1) : keys.size()) - starts.get(i);
+		}
+		return sizes;
+	}
+
+	/**
+	 * @return the key of each leaf page for the level above: the first key of the first
+	 * page, and for the others, the shortest key separating the page from the one before
+	 */
+	private List<Field> separators(Iterator<Tuple> tuples, int[] leaves) {
+		List<Field> keys = new ArrayList<>(leaves.length);
+		Field last = null;
+		for (int size : leaves) {
+			Field key = this.file.getKey(tuples.next());
+			keys.add(last == null ? key : BTreeFile.separator(last, key));
+			last = key;
+			for (int j = 1; j < size; j++) {
+				last = this.file.getKey(tuples.next());
+			}
+		}
+		return keys;
+	}
+
+	/**
+	 * Writes the leaf level from the sorted tuples, then each internal level up to
+	 * the root. The pages of each level follow those of the level below.
+	 */
+	private BTreePageId write(SortedRuns runs, int first)
+			throws DbException, IOException {
+		// 先算出整棵树的形状：每层每页放几项
+		List<int[]> levels = new ArrayList<>();
+		levels.add(pack(runs.count, this.leafTuples, this.maxTuples));
+		List<Field> leafKeys = this.compressed ? this.separators(runs.merge(), levels.get(0)) : null;
+		List<Field> shapeKeys = leafKeys;
+		while (levels.get(levels.size() - 1).length > 1) {
+			if (this.compressed) {
+				int[] groups = this.packBytes(shapeKeys);
+				levels.add(groups);
+				List<Field> above = new ArrayList<>(groups.length);
+				int child = 0;
+				for (int g : groups) {
+					above.add(shapeKeys.get(child));
+					child += g;
+				}
+				shapeKeys = above;
+			} else {
+				levels.add(pack(levels.get(levels.size() - 1).length, this.internalChildren, this.maxChildren));
+			}
+		}
+		Iterator<Tuple> tuples = runs.merge();
+		int[] base = new int[levels.size()];
+		base[0] = first;
+		for (int l = 1; l < levels.size(); l++) {
+			base[l] = base[l - 1] + levels.get(l - 1).length;
+		}
+
+		// page first可能是getRootPtrPage创建的空叶子页，已经在buffer pool中的话要丢掉
+		Database.getBufferPool().discardPage(new BTreePageId(this.tableid, first, BTreePageId.LEAF));
+		Database.getBufferPool().discardPage(new BTreePageId(this.tableid, first, BTreePageId.INTERNAL));
+
+		ExtentWriter out = new ExtentWriter(first);
+		Type[] types = this.types();
+		Type[] keyTypes = new Type[this.keyFields.length];
+		for (int i = 0; i < keyTypes.length; i++) {
+			keyTypes[i] = types[this.keyFields[i]];
+		}
+
+		// 叶子层：每页记下第一个key，作为上一层的分隔key
+		int[] leaves = levels.get(0);
+		int[] parents = levels.size() > 1 ? parents(levels.get(1), base[1]) : null;
+		List<Field> keys = this.compressed ? leafKeys : new ArrayList<>(leaves.length);
+		for (int i = 0; i < leaves.length; i++) {
+			List<Tuple> pageTuples = new ArrayList<>(leaves[i]);
+			while (pageTuples.size() < leaves[i]) {
+				pageTuples.add(tuples.next());
+			}
+			if (!this.compressed) {
+				keys.add(this.file.getKey(pageTuples.get(0)));
+			}
+			byte[] data = BTreeFileEncoder.convertToLeafPage(pageTuples, this.pageSize, this.td.numFields(),
+					types, this.keyFields);
+			BTreeLeafPage page = new BTreeLeafPage(new BTreePageId(this.tableid, first + i, BTreePageId.LEAF),
+					data, this.keyFields);
+			page.setParentId(parents == null ? BTreeRootPtrPage.getId(this.tableid)
+					: new BTreePageId(this.tableid, parents[i], BTreePageId.INTERNAL));
+			page.setLeftSiblingId(i == 0 ? null : new BTreePageId(this.tableid, first + i - 1, BTreePageId.LEAF));
+			page.setRightSiblingId(i == leaves.length - 1 ? null
+					: new BTreePageId(this.tableid, first + i + 1, BTreePageId.LEAF));
+			out.write(page);
+		}
+
+		// 内部层：每个entry的key是它右边子树的第一个key
+		for (int l = 1; l < levels.size(); l++) {
+			int[] groups = levels.get(l);
+			parents = l + 1 < levels.size() ? parents(levels.get(l + 1), base[l + 1]) : null;
+			int childCategory = l == 1 ? BTreePageId.LEAF : BTreePageId.INTERNAL;
+			List<Field> levelKeys = new ArrayList<>(groups.length);
+			int child = 0;
+			for (int i = 0; i < groups.length; i++) {
+				List<BTreeEntry> entries = new ArrayList<>(groups[i] - 1);
+				levelKeys.add(keys.get(child));
+				for (int c = 1; c < groups[i]; c++) {
+					entries.add(new BTreeEntry(keys.get(child + c),
+							new BTreePageId(this.tableid, base[l - 1] + child + c - 1, childCategory),
+							new BTreePageId(this.tableid, base[l - 1] + child + c, childCategory)));
+				}
+				child += groups[i];
+				byte[] data = BTreeFileEncoder.convertToInternalPage(entries, this.pageSize,
+						keyTypes, childCategory);
+				BTreeInternalPage page = new BTreeInternalPage(
+						new BTreePageId(this.tableid, base[l] + i, BTreePageId.INTERNAL), data, this.keyFields);
+				page.setParentId(parents == null ? BTreeRootPtrPage.getId(this.tableid)
+						: new BTreePageId(this.tableid, parents[i], BTreePageId.INTERNAL));
+				out.write(page);
+			}
+			keys = levelKeys;
+		}
+		out.flush();
+
+		int root = base[levels.size() - 1];
+		return new BTreePageId(this.tableid, root, levels.size() == 1 ? BTreePageId.LEAF : BTreePageId.INTERNAL);
+	}
+
+	/**
+	 * @return the page number of the parent of each page of a level, given how many
+	 * children each page of the level above has and the number of its first page
+	 */
+	private static int[] parents(int[] groups, int base) {
+		int n = 0;
+		for (int g : groups) {
+			n += g;
+		}
+		int[] parents = new int[n];
+		int child = 0;
+		for (int i = 0; i < groups.length; i++) {
+			for (int c = 0; c < groups[i]; c++) {
+				parents[child++] = base + i;
+			}
+		}
+		return parents;
+	}
+
+	private Type[] types() {
+		Type[] types = new Type[this.td.numFields()];
+		for (int i = 0; i < types.length; i++) {
+			types[i] = this.td.getFieldType(i);
+		}
+		return types;
+	}
+
+	/**
+	 * Collects consecutive pages and writes them to the file EXTENT_PAGES at a time.
+	 */
+	private class ExtentWriter {
+		private int firstPageNo;
+		private final byte[] extent = new byte[EXTENT_PAGES * pageSize];
+		private int pages = 0;
+
+		ExtentWriter(int firstPageNo) {
+			this.firstPageNo = firstPageNo;
+		}
+
+		void write(Page page) throws IOException {
+			System.arraycopy(page.getPageData(), 0, this.extent, this.pages * pageSize, pageSize);
+			this.pages++;
+			if (this.pages == EXTENT_PAGES) {
+				this.flush();
+			}
+		}
+
+		void flush() throws IOException {
+			if (this.pages == 0) {
+				return;
+			}
+			file.writePages(this.firstPageNo, Arrays.copyOf(this.extent, this.pages * pageSize));
+			this.firstPageNo += this.pages;
+			this.pages = 0;
+		}
+	}
+
+	/**
+	 * The tuples being sorted: a buffer sorted in memory when it fills up and
+	 * spilled to a run file, and the run files written so far.
+	 */
+	private class SortedRuns {
+		private final Comparator<Tuple> comparator = new BTreeFileEncoder.TupleComparator(keyFields);
+		private List<Tuple> buffer = new ArrayList<>();
+		private final List<File> runFiles = new ArrayList<>();
+		private final List<Integer> runCounts = new ArrayList<>();
+		// merge打开过的run文件，写到一半出错时由delete关掉
+		private final List<RunReader> readers = new ArrayList<>();
+		private int count = 0;
+
+		void add(Tuple t) throws IOException {
+			this.buffer.add(t);
+			this.count++;
+			if (this.buffer.size() >= sortBufferTuples) {
+				this.spill();
+			}
+		}
+
+		private void spill() throws IOException {
+			this.buffer.sort(this.comparator);
+			File f = File.createTempFile("btree_run", ".dat");
+			this.runFiles.add(f);
+			this.runCounts.add(this.buffer.size());
+			try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f)))) {
+				for (Tuple t : this.buffer) {
+					for (int i = 0; i < td.numFields(); i++) {
+						t.getField(i).serialize(dos);
+					}
+				}
+			}
+			this.buffer = new ArrayList<>();
+		}
+
+		/**
+		 * @return all the tuples in key order; tuples with equal keys keep the order
+		 * they were added in
+		 */
+		Iterator<Tuple> merge() throws IOException {
+			// 都在内存里的话不用写run文件
+			if (this.runFiles.isEmpty()) {
+				this.buffer.sort(this.comparator);
+				return this.buffer.iterator();
+			}
+			if (!this.buffer.isEmpty()) {
+				this.spill();
+			}
+			PriorityQueue<RunReader> heads = new PriorityQueue<>((a, b) -> {
+				int cmp = this.comparator.compare(a.head, b.head);
+				return cmp != 0 ? cmp : Integer.compare(a.run, b.run);
+			});
+			for (int r = 0; r < this.runFiles.size(); r++) {
+				RunReader reader = new RunReader(r, this.runFiles.get(r), this.runCounts.get(r));
+				this.readers.add(reader);
+				if (reader.advance()) {
+					heads.add(reader);
+				}
+			}
+			return new Iterator<Tuple>() {
+				public boolean hasNext() {
+					return !heads.isEmpty();
+				}
+
+				public Tuple next() {
+					RunReader reader = heads.poll();
+					if (reader == null) {
+						throw new NoSuchElementException();
+					}
+					Tuple t = reader.head;
+					try {
+						if (reader.advance()) {
+							heads.add(reader);
+						}
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+					return t;
+				}
+			};
+		}
+
+		/** Closes the run files still being read and deletes all of them */
+		void delete() {
+			for (RunReader reader : this.readers) {
+				try {
+					reader.close();
+				} catch (IOException e) {
+					// 只是关掉读完或者不再需要的文件，出错也要继续删除
+				}
+			}
+			this.readers.clear();
+			for (File f : this.runFiles) {
+				f.delete();
+			}
+		}
+	}
+
+	/**
+	 * Reads the tuples of one run file back in order.
+	 */
+	private class RunReader {
+		final int run;
+		private final DataInputStream dis;
+		private int remaining;
+		Tuple head;
+
+		RunReader(int run, File f, int count) throws IOException {
+			this.run = run;
+			this.dis = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+			this.remaining = count;
+		}
+
+		/** Reads the next tuple into head; closes the file at its end */
+		boolean advance() throws IOException {
+			if (this.remaining == 0) {
+				this.head = null;
+				this.close();
+				return false;
+			}
+			Tuple t = new Tuple(td);
+			try {
+				for (int i = 0; i < td.numFields(); i++) {
+					t.setField(i, td.getFieldType(i).parse(this.dis));
+				}
+			} catch (ParseException e) {
+				throw new IOException("corrupt sort run", e);
+			}
+			this.remaining--;
+			this.head = t;
+			return true;
+		}
+
+		void close() throws IOException {
+			this.dis.close();
+		}
+	}
+}
@@ -2,9 +2,11 @@ package simpledb.index;
 
 import java.io.*;
 import java.util.*;
+import java.util.function.Function;
 
 import simpledb.common.Database;
 import simpledb.common.Permissions;
+import simpledb.common.Type;
 import simpledb.execution.IndexPredicate;
 import simpledb.execution.Predicate.Op;
 import simpledb.common.DbException;
@@ -28,10 +30,18 @@ import simpledb.transaction.TransactionId;
  */
 public class BTreeFile implements DbFile {
 
+	/** Default fraction of each page filled by {@link #bulkLoad}. */
+	public static final double DEFAULT_FILL_FACTOR = 0.9;
+
+	/** Default number of leaf pages' worth of tuples {@link #bulkLoad} sorts in memory at a time. */
+	public static final int DEFAULT_SORT_BUFFER_PAGES = 1000;
+
 	private final File f;
+	private final DbFileChannel channel;
 	private final TupleDesc td;
 	private final int tableid ;
 	private final int keyField;
+	private final int[] keyFields;
 
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
@@ -42,9 +52,28 @@ public class BTreeFile implements DbFile {
 	 * @param td - the tuple descriptor of tuples in the file
 	 */
 	public BTreeFile(File f, int key, TupleDesc td) {
+		this(f, new int[] {key}, td);
+	}
+
+	/**
+	 * Constructs a B+ tree file keyed on several fields, backed by the specified
+	 * file. Tuples are ordered on the first key field, then on the second, and so
+	 * on; the key of each tuple is a {@link CompositeField} of its key fields.
+	 * 
+	 * @param f - the file that stores the on-disk backing store for this B+ tree
+	 *            file.
+	 * @param keys - the fields which index is keyed on, most significant first
+	 * @param td - the tuple descriptor of tuples in the file
+	 */
+	public BTreeFile(File f, int[] keys, TupleDesc td) {
+		if(keys.length == 0) {
+			throw new IllegalArgumentException("a B+ tree needs at least one key field");
+		}
 		this.f = f;
+		this.channel = new DbFileChannel(f);
 		this.tableid = f.getAbsoluteFile().hashCode();
-		this.keyField = key;
+		this.keyField = keys[0];
+		this.keyFields = keys.clone();
 		this.td = td;
 	}
 
@@ -87,49 +116,51 @@ public class BTreeFile implements DbFile {
 	public Page readPage(PageId pid) {
 		BTreePageId id = (BTreePageId) pid;
 
-        try (BufferedInputStream bis = new BufferedInputStream(new FileInputStream(f))) {
-            if (id.pgcateg() == BTreePageId.ROOT_PTR) {
-                byte[] pageBuf = new byte[BTreeRootPtrPage.getPageSize()];
-                int retval = bis.read(pageBuf, 0, BTreeRootPtrPage.getPageSize());
-                if (retval == -1) {
-                    throw new IllegalArgumentException("Read past end of table");
-                }
-                if (retval < BTreeRootPtrPage.getPageSize()) {
-                    throw new IllegalArgumentException("Unable to read "
-                            + BTreeRootPtrPage.getPageSize() + " bytes from BTreeFile");
-                }
-                Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
-                return new BTreeRootPtrPage(id, pageBuf);
-            } else {
-                byte[] pageBuf = new byte[BufferPool.getPageSize()];
-                if (bis.skip(BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber() - 1) * BufferPool.getPageSize()) !=
-                        BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber() - 1) * BufferPool.getPageSize()) {
-                    throw new IllegalArgumentException(
-                            "Unable to seek to correct place in BTreeFile");
-                }
-                int retval = bis.read(pageBuf, 0, BufferPool.getPageSize());
-                if (retval == -1) {
-                    throw new IllegalArgumentException("Read past end of table");
-                }
-                if (retval < BufferPool.getPageSize()) {
-                    throw new IllegalArgumentException("Unable to read "
-                            + BufferPool.getPageSize() + " bytes from BTreeFile");
-                }
-                Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
-                if (id.pgcateg() == BTreePageId.INTERNAL) {
-                    return new BTreeInternalPage(id, pageBuf, keyField);
-                } else if (id.pgcateg() == BTreePageId.LEAF) {
-                    return new BTreeLeafPage(id, pageBuf, keyField);
-                } else { // id.pgcateg() == BTreePageId.HEADER
-                    return new BTreeHeaderPage(id, pageBuf);
-                }
-            }
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
-        // Close the file on success or error
-        // Ignore failures closing the file
-    }
+		try {
+			if (id.pgcateg() == BTreePageId.ROOT_PTR) {
+				byte[] pageBuf = readBytes(0, BTreeRootPtrPage.getPageSize());
+				Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
+				return new BTreeRootPtrPage(id, pageBuf);
+			} else {
+				byte[] pageBuf = readBytes(pageOffset(id.getPageNumber()), BufferPool.getPageSize());
+				Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
+				if (id.pgcateg() == BTreePageId.INTERNAL) {
+					return new BTreeInternalPage(id, pageBuf, keyFields);
+				} else if (id.pgcateg() == BTreePageId.LEAF) {
+					return new BTreeLeafPage(id, pageBuf, keyFields);
+				} else { // id.pgcateg() == BTreePageId.HEADER
+					return new BTreeHeaderPage(id, pageBuf);
+				}
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Read len bytes at the given offset with a positional read on the file channel
+	 */
+	private byte[] readBytes(long offset, int len) throws IOException {
+		long size = channel.size();
+		if (offset >= size) {
+			throw new IllegalArgumentException("Read past end of table");
+		}
+		if (offset + len > size) {
+			throw new IllegalArgumentException("Unable to read "
+					+ len + " bytes from BTreeFile");
+		}
+		byte[] pageBuf = new byte[len];
+		channel.read(pageBuf, offset);
+		return pageBuf;
+	}
+
+	/**
+	 * Returns the offset in the file of the page with the given number (page
+	 * numbers of internal, leaf and header pages start at 1)
+	 */
+	private static long pageOffset(int pageNo) {
+		return BTreeRootPtrPage.getPageSize() + (long) (pageNo - 1) * BufferPool.getPageSize();
+	}
 
 	/**
 	 * Write a page to disk.  This should not be called directly but should 
@@ -141,91 +172,176 @@ public class BTreeFile implements DbFile {
 		BTreePageId id = (BTreePageId) page.getId();
 		
 		byte[] data = page.getPageData();
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
 		if(id.pgcateg() == BTreePageId.ROOT_PTR) {
-			rf.write(data);
-			rf.close();
+			channel.write(data, 0);
 		}
 		else {
-			rf.seek(BTreeRootPtrPage.getPageSize() + (long) (page.getId().getPageNumber() - 1) * BufferPool.getPageSize());
-			rf.write(data);
-			rf.close();
+			channel.write(data, pageOffset(page.getId().getPageNumber()));
 		}
 	}
 	
+	/**
+	 * Write consecutive pages with a single write, starting with page number pageNo.
+	 * Used by bulk loads, whose pages don't go through the buffer pool.
+	 */
+	void writePages(int pageNo, byte[] data) throws IOException {
+		channel.write(data, pageOffset(pageNo));
+	}
+
 	/**
 	 * Returns the number of pages in this BTreeFile.
 	 */
 	public int numPages() {
 		// we only ever write full pages
-		return (int) ((f.length() - BTreeRootPtrPage.getPageSize())/ BufferPool.getPageSize());
+		try {
+			return (int) ((channel.size() - BTreeRootPtrPage.getPageSize())/ BufferPool.getPageSize());
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
 	}
 
 	/**
-	 * Returns the index of the field that this B+ tree is keyed on
+	 * Returns the index of the field that this B+ tree is keyed on, or of the first
+	 * one if it is keyed on several
 	 */
 	public int keyField() {
 		return keyField;
 	}
 
 	/**
-	 * Recursive function which finds and locks the leaf page in the B+ tree corresponding to
-	 * the left-most page possibly containing the key field f. It locks all internal
+	 * Returns the indexes of the fields that this B+ tree is keyed on, most
+	 * significant first
+	 */
+	public int[] keyFields() {
+		return keyFields.clone();
+	}
+
+	/**
+	 * Returns the key of a tuple of this B+ tree: its key field, or a CompositeField
+	 * of its key fields if the tree is keyed on several
+	 */
+	public Field getKey(Tuple t) {
+		return keyOf(t, keyFields);
+	}
+
+	/**
+	 * @see #getKey(Tuple)
+	 */
+	static Field keyOf(Tuple t, int[] keyFields) {
+		if(keyFields.length == 1) {
+			return t.getField(keyFields[0]);
+		}
+		Field[] fields = new Field[keyFields.length];
+		for(int i = 0; i < fields.length; i++) {
+			fields[i] = t.getField(keyFields[i]);
+		}
+		return new CompositeField(fields);
+	}
+
+	/**
+	 * Function which finds and locks the leaf page in the B+ tree corresponding to
+	 * the left-most page possibly containing the key field f. It locks the internal
 	 * nodes along the path to the leaf node with READ_ONLY permission, and locks the 
 	 * leaf node with permission perm.
+	 * <p>
+	 * Internal nodes are only locked while the search passes through them (latch
+	 * coupling): the lock on a node is released as soon as its child is locked,
+	 * unless the transaction already held it before. Concurrent inserts therefore
+	 * don't hold locks on the upper levels of the tree until they commit; a split
+	 * still takes a write lock on the parent for the rest of the transaction.
 	 * 
 	 * If f is null, it finds the left-most leaf page -- used for the iterator
 	 * 
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param latched - a page locked only for this search, released once pid is locked; may be null
 	 * @param pid - the current page being searched
 	 * @param perm - the permissions with which to lock the leaf page
 	 * @param f - the field to search for
 	 * @return the left-most leaf page possibly containing the key field f
 	 * 
 	 */
-	private BTreeLeafPage findLeafPage(TransactionId tid, Map<PageId, Page> dirtypages, BTreePageId pid, Permissions perm,
-                                       Field f)
+	private BTreeLeafPage findLeafPage(TransactionId tid, Map<PageId, Page> dirtypages, BTreePageId latched,
+									   BTreePageId pid, Permissions perm, Field f)
 					throws DbException, TransactionAbortedException {
 		// some code goes here
-		if(pid.pgcateg()==BTreePageId.LEAF){
-			return (BTreeLeafPage) this.getPage(tid, dirtypages, pid, perm);
-		}
-		BTreeInternalPage page = (BTreeInternalPage) this.getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
-		if(page == null){
-			return null;
-		}
-		Iterator<BTreeEntry> it = page.iterator();
-		BTreeEntry entry = null;
-		while(it.hasNext()){
-			entry = it.next();
-			if (f == null || f.compare(Op.LESS_THAN_OR_EQ,entry.getKey())){
-				return findLeafPage(tid,dirtypages,entry.getLeftChild(),perm,f);
+		while(true){
+			boolean leaf = pid.pgcateg() == BTreePageId.LEAF;
+			boolean held = this.holdsLock(tid, dirtypages, pid);
+			Page page = this.getPage(tid, dirtypages, pid, leaf ? perm : Permissions.READ_ONLY);
+			// 先锁住孩子再放开父节点，中间不会有别的事务把孩子分裂或者合并掉
+			this.releaseLatch(tid, dirtypages, latched);
+			if(leaf){
+				return (BTreeLeafPage) page;
 			}
+			BTreePageId child = ((BTreeInternalPage) page).findChild(f);
+			if(child == null){
+				return null;
+			}
+			latched = held ? null : pid;
+			pid = child;
 		}
-		if(entry == null){
-			return null;
-		}
-		return findLeafPage(tid,dirtypages, entry.getRightChild(), perm,f);
+	}
+
+	private BTreeLeafPage findLeafPage(TransactionId tid, Map<PageId, Page> dirtypages, BTreePageId pid, Permissions perm,
+									   Field f)
+					throws DbException, TransactionAbortedException {
+		return this.findLeafPage(tid, dirtypages, null, pid, perm, f);
 	}
 	
 	/**
-	 * Convenience method to find a leaf page when there is no dirtypages HashMap.
-	 * Used by the BTreeFile iterator.
-	 * @see #findLeafPage(TransactionId, Map, BTreePageId, Permissions, Field)
+	 * Convenience method to find a leaf page when there is no dirtypages HashMap,
+	 * starting from the root pointer page. The root pointer page is only locked
+	 * until the root is. Used by the BTreeFile iterators.
+	 * @see #findLeafPage(TransactionId, Map, BTreePageId, BTreePageId, Permissions, Field)
 	 * 
 	 * @param tid - the transaction id
-	 * @param pid - the current page being searched
 	 * @param f - the field to search for
 	 * @return the left-most leaf page possibly containing the key field f
 	 * 
 	 */
-	BTreeLeafPage findLeafPage(TransactionId tid, BTreePageId pid,
-                               Field f)
+	BTreeLeafPage findLeafPage(TransactionId tid, Field f)
 					throws DbException, TransactionAbortedException {
-		return findLeafPage(tid, new HashMap<>(), pid, Permissions.READ_ONLY, f);
+		Map<PageId, Page> dirtypages = new HashMap<>();
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		boolean held = this.holdsLock(tid, dirtypages, rootPtrId);
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) this.getPage(tid, dirtypages, rootPtrId, Permissions.READ_ONLY);
+		return this.findLeafPage(tid, dirtypages, held ? null : rootPtrId, rootPtr.getRootId(),
+				Permissions.READ_ONLY, f);
+	}
+
+	/**
+	 * @return true if the transaction already holds a lock on the page, so that a
+	 * search passing through it must not release it
+	 */
+	private boolean holdsLock(TransactionId tid, Map<PageId, Page> dirtypages, BTreePageId pid) {
+		return dirtypages.containsKey(pid) || Database.getBufferPool().holdsLock(tid, pid);
 	}
 
+	/**
+	 * Releases a lock that was only taken to pass through a page during a search.
+	 */
+	private void releaseLatch(TransactionId tid, Map<PageId, Page> dirtypages, BTreePageId pid) {
+		if(pid != null && !dirtypages.containsKey(pid)){
+			Database.getBufferPool().unsafeReleasePage(tid, pid);
+		}
+	}
+
+	/**
+	 * Ask the buffer pool to read the leaf pages to the right of the given leaf
+	 * page in the background, following the right sibling pointers up to the
+	 * prefetch window. Used by the iterators scanning the chain of leaves.
+	 * 
+	 * @param page - the leaf page the scan is currently reading
+	 */
+	static void prefetchRightSiblings(BTreeLeafPage page) {
+		PagePrefetcher prefetcher = Database.getBufferPool().getPrefetcher();
+		prefetcher.prefetch(page.getRightSiblingId(), RIGHT_SIBLING, prefetcher.getWindow());
+	}
+
+	private static final Function<Page, PageId> RIGHT_SIBLING =
+			p -> ((BTreeLeafPage) p).getRightSiblingId();
+
 	/**
 	 * Split a leaf page to make room for new tuples and recursively split the parent node
 		 * as needed to accommodate a new entry. The new entry should have a key matching the key field
@@ -284,8 +400,8 @@ public class BTreeFile implements DbFile {
 			newPage.insertTuple(tuple);
 			moveCount++;
 		}
-		// 拿到要加入到索引节点的field
-		Field KField = tuple.getField(this.keyField);
+		// 拿到要加入到索引节点的field，只要能把两个page分开就行，不必是完整的key
+		Field KField = separator(getKey(page.reverseIterator().next()), getKey(tuple));
 		// 更新两个page的兄弟节点指针
 		newPage.setLeftSiblingId(page.getId());
 		newPage.setRightSiblingId(page.getRightSiblingId());
@@ -363,7 +479,7 @@ public class BTreeFile implements DbFile {
 		// will be useful here.  Return the page into which an entry with the given key field
 		// should be inserted.
 
-		int numEntries = page.getNumEntries();
+		int numEntries = page.getNumEntriesToSplitOff();
 		int moveCount = 0;
 
 		Iterator<BTreeEntry> it = page.reverseIterator();
@@ -372,7 +488,7 @@ public class BTreeFile implements DbFile {
 
 		BTreeEntry entry = null;
 
-		while (it.hasNext() && moveCount < numEntries/2){
+		while (it.hasNext() && moveCount < numEntries){
 			entry = it.next();
 			page.deleteKeyAndRightChild(entry);
 			newPage.insertEntry(entry);
@@ -387,6 +503,10 @@ public class BTreeFile implements DbFile {
 		//拿到parent
 		BTreeInternalPage parentPage = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), keyField);
 		parentPage.insertEntry(keyEntry);
+		// 和leaf page一样，分裂出来的两个page都要指向插入了keyEntry的父节点，
+		// 否则新page的父节点一直是root pointer，它下次分裂时会另建一个根，把树的其余部分丢掉
+		page.setParentId(parentPage.getId());
+		newPage.setParentId(parentPage.getId());
 		updateParentPointers(tid,dirtypages,page);
 		updateParentPointers(tid,dirtypages,newPage);
 
@@ -546,21 +666,31 @@ public class BTreeFile implements DbFile {
 			throws DbException, IOException, TransactionAbortedException {
 		Map<PageId, Page> dirtypages = new HashMap<>();
 
-		// get a read lock on the root pointer page and use it to locate the root page
+		// get a read lock on the root pointer page and use it to locate the root page;
+		// unless the transaction held it before, the lock is released once the root is locked
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		boolean rootPtrHeld = holdsLock(tid, dirtypages, rootPtrId);
 		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
 		BTreePageId rootId = rootPtr.getRootId();
 
 		if(rootId == null) { // the root has just been created, so set the root pointer to point to it		
-			rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
 			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
-			rootPtr.setRootId(rootId);
+			rootId = rootPtr.getRootId();
+			if(rootId == null) {
+				rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
+				// 如果一次bulkLoad被回滚了，最后一页是它留下的页，不是getRootPtrPage创建的空叶子页
+				channel.write(BTreeLeafPage.createEmptyPageData(), pageOffset(rootId.getPageNumber()));
+				Database.getBufferPool().discardPage(rootId);
+				rootPtr.setRootId(rootId);
+			}
 		}
 
 		// find and lock the left-most leaf page corresponding to the key field,
 		// and split the leaf page if there are no more slots available
-		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
+		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootPtrHeld ? null : rootPtrId, rootId,
+				Permissions.READ_WRITE, getKey(t));
 		if(leafPage.getNumEmptySlots() == 0) {
-			leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));	
+			leafPage = splitLeafPage(tid, dirtypages, leafPage, getKey(t));	
 		}
 
 		// insert the tuple into the leaf page
@@ -569,6 +699,76 @@ public class BTreeFile implements DbFile {
         return new ArrayList<>(dirtypages.values());
 	}
 	
+	/**
+	 * Build this B+ tree from all the tuples of another file, as CREATE INDEX would,
+	 * with the default fill factor and sort buffer.
+	 * 
+	 * @see #bulkLoad(TransactionId, DbFile, double, int)
+	 */
+	public List<Page> bulkLoad(TransactionId tid, DbFile source)
+			throws DbException, IOException, TransactionAbortedException {
+		return bulkLoad(tid, source, DEFAULT_FILL_FACTOR, DEFAULT_SORT_BUFFER_PAGES);
+	}
+
+	/**
+	 * Build this B+ tree bottom-up from all the tuples of another file, instead of
+	 * inserting them one at a time. The tuples are sorted on the key field with an
+	 * external merge sort, packed into leaf pages filled to fillFactor, and the internal
+	 * levels are built on top of them; each page is written to disk once, in page order,
+	 * without passing through the buffer pool. The tree must be empty.
+	 * <p>
+	 * The new pages are forced to disk before this method returns. The tree only becomes
+	 * visible through the root pointer page, which is updated by transaction tid like any
+	 * other page: if tid aborts, the tree is empty again.
+	 * 
+	 * @param tid - the transaction id
+	 * @param source - the file holding the tuples to add, with the same TupleDesc as this file
+	 * @param fillFactor - the fraction of each page to fill, between 0.5 and 1
+	 * @param sortBufferPages - the number of leaf pages' worth of tuples to sort in memory at a time
+	 * @return a list of all pages that were dirtied by this operation
+	 * @see BTreeBulkLoader
+	 */
+	public List<Page> bulkLoad(TransactionId tid, DbFile source, double fillFactor, int sortBufferPages)
+			throws DbException, IOException, TransactionAbortedException {
+		if(!source.getTupleDesc().equals(td)) {
+			throw new DbException("type mismatch, in bulkLoad");
+		}
+		DbFileIterator it = source.iterator(tid);
+		it.open();
+		try {
+			return bulkLoad(tid, it, fillFactor, sortBufferPages);
+		} finally {
+			it.close();
+		}
+	}
+
+	/**
+	 * Build this B+ tree bottom-up from the tuples of an iterator, which must already
+	 * be open and return tuples with the same TupleDesc as this file.
+	 * 
+	 * @see #bulkLoad(TransactionId, DbFile, double, int)
+	 */
+	public List<Page> bulkLoad(TransactionId tid, DbFileIterator tuples, double fillFactor, int sortBufferPages)
+			throws DbException, IOException, TransactionAbortedException {
+		Map<PageId, Page> dirtypages = new HashMap<>();
+
+		// the write lock on the root pointer page keeps everyone else out of the tree
+		getRootPtrPage(tid, dirtypages);
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages,
+				BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
+		if(rootPtr.getRootId() != null) {
+			throw new DbException("bulkLoad needs an empty B+ tree");
+		}
+
+		// the last page is the empty root page created with the root pointer page, so start there
+		BTreePageId rootId = new BTreeBulkLoader(this, fillFactor, sortBufferPages).load(tuples, numPages());
+		if(rootId != null) {
+			channel.force();
+			rootPtr.setRootId(rootId);
+		}
+		return new ArrayList<>(dirtypages.values());
+	}
+
 	/**
 	 * Handle the case when a B+ tree page becomes less than half full due to deletions.
 	 * If one of its siblings has extra tuples/entries, redistribute those tuples/entries.
@@ -653,6 +853,7 @@ public class BTreeFile implements DbFile {
 			}
 			else {
 				stealFromLeafPage(page, leftSibling, parent, leftEntry, false);				
+				splitIfOverfull(tid, dirtypages, parent);
 			}
 		}
 		else if(rightSiblingId != null) {	
@@ -664,6 +865,7 @@ public class BTreeFile implements DbFile {
 			}
 			else {
 				stealFromLeafPage(page, rightSibling, parent, rightEntry, true);				
+				splitIfOverfull(tid, dirtypages, parent);
 			}
 		}
 	}
@@ -710,9 +912,9 @@ public class BTreeFile implements DbFile {
 			moveCount++;
 		}
 
-		Field kfield = page.iterator().next().getField(this.keyField);
+		Field kfield = separator(getKey(sibling.reverseIterator().next()), getKey(page.iterator().next()));
 		if(isRightSibling){
-			kfield = sibling.iterator().next().getField(this.keyField);
+			kfield = separator(getKey(page.reverseIterator().next()), getKey(sibling.iterator().next()));
 		}
 
 		entry.setKey(kfield);
@@ -752,22 +954,26 @@ public class BTreeFile implements DbFile {
 			BTreeInternalPage leftSibling = (BTreeInternalPage) getPage(tid, dirtypages, leftSiblingId, Permissions.READ_WRITE);
 			// if the left sibling is at minimum occupancy, merge with it. Otherwise
 			// steal some entries from it
-			if(leftSibling.getNumEmptySlots() >= maxEmptySlots) {
+			if(page.isCompressed() ? leftSibling.canMergeWith(page, leftEntry.getKey())
+					: leftSibling.getNumEmptySlots() >= maxEmptySlots) {
 				mergeInternalPages(tid, dirtypages, leftSibling, page, parent, leftEntry);
 			}
 			else {
 				stealFromLeftInternalPage(tid, dirtypages, page, leftSibling, parent, leftEntry);
+				splitIfOverfull(tid, dirtypages, parent);
 			}
 		}
 		else if(rightSiblingId != null) {
 			BTreeInternalPage rightSibling = (BTreeInternalPage) getPage(tid, dirtypages, rightSiblingId, Permissions.READ_WRITE);
 			// if the right sibling is at minimum occupancy, merge with it. Otherwise
 			// steal some entries from it
-			if(rightSibling.getNumEmptySlots() >= maxEmptySlots) {
+			if(page.isCompressed() ? page.canMergeWith(rightSibling, rightEntry.getKey())
+					: rightSibling.getNumEmptySlots() >= maxEmptySlots) {
 				mergeInternalPages(tid, dirtypages, page, rightSibling, parent, rightEntry);
 			}
 			else {
 				stealFromRightInternalPage(tid, dirtypages, page, rightSibling, parent, rightEntry);
+				splitIfOverfull(tid, dirtypages, parent);
 			}
 		}
 	}
@@ -804,6 +1010,9 @@ public class BTreeFile implements DbFile {
 		// slibling的entry移到parent中，所以实际从slibing中移到page的entry
 		// 要少一个
 		int moveEntryNums = avgEntryNums - pageEntryNums - 1;
+		if(page.isCompressed()){
+			moveEntryNums = entriesToBalance(page, leftSibling, leftSibling.reverseIterator()) - 1;
+		}
 		int moveCount = 0;
 		Iterator<BTreeEntry> it = leftSibling.reverseIterator();
 
@@ -811,7 +1020,8 @@ public class BTreeFile implements DbFile {
 
 		List<BTreeEntry> entryList = new ArrayList<>();
 
-		BTreePageId flchildId = leftSibling.reverseIterator().next().getLeftChild();
+		// 左兄弟最右边的孩子一定会移到page里；只移动一个entry时entryList为空，也要用它
+		BTreePageId flchildId = leftSibling.reverseIterator().next().getRightChild();
 
 		while(it.hasNext() && moveCount < moveEntryNums){
 			BTreeEntry entry = it.next();
@@ -874,6 +1084,9 @@ public class BTreeFile implements DbFile {
 		int siblingEntryNums = rightSibling.getNumEntries();
 		int avgEntryNums = (pageEntryNums + siblingEntryNums) / 2;
 		int moveEntryNums = avgEntryNums - pageEntryNums - 1;
+		if(page.isCompressed()){
+			moveEntryNums = entriesToBalance(page, rightSibling, rightSibling.iterator()) - 1;
+		}
 		int moveCount = 0;
 		Iterator<BTreeEntry> it = rightSibling.iterator();
 
@@ -1045,8 +1258,7 @@ public class BTreeFile implements DbFile {
 		// the parent is below minimum occupancy, get some tuples from its siblings
 		// or merge with one of the siblings
 		parent.deleteKeyAndRightChild(parentEntry);
-		int maxEmptySlots = parent.getMaxEntries() - parent.getMaxEntries()/2; // ceiling
-		if(parent.getNumEmptySlots() == parent.getMaxEntries()) {
+		if(parent.getNumEntries() == 0) {
 			// This was the last entry in the parent.
 			// In this case, the parent (root node) should be deleted, and the merged 
 			// page will become the new root
@@ -1061,11 +1273,72 @@ public class BTreeFile implements DbFile {
 			// release the parent page for reuse
 			setEmptyPage(tid, dirtypages, parent.getId().getPageNumber());
 		}
-		else if(parent.getNumEmptySlots() > maxEmptySlots) { 
+		else if(parent.isBelowMinOccupancy()) { 
 			handleMinOccupancyPage(tid, dirtypages, parent);
 		}
 	}
 
+	/**
+	 * Returns the shortest key that separates two adjacent leaf pages: greater than the
+	 * last key on the left page, and no greater than the first key on the right one.
+	 * For string keys, this is the shortest prefix of the right key that is greater
+	 * than the left key, which keeps the entries of prefix-compressed internal pages
+	 * small. Other keys are returned as they are.
+	 *
+	 * @param left - the last key on the left page
+	 * @param right - the first key on the right page
+	 * @return the key for the parent entry between the two pages
+	 */
+	static Field separator(Field left, Field right) {
+		if(!(right instanceof StringField) || !left.compare(Op.LESS_THAN, right)) {
+			return right;
+		}
+		String l = ((StringField) left).getValue();
+		String r = ((StringField) right).getValue();
+		int n = 0;
+		while(n < l.length() && l.charAt(n) == r.charAt(n)) {
+			n++;
+		}
+		// l < r，所以r在第n个字符上比l大，或者l是r的前缀
+		return new StringField(r.substring(0, n + 1), Type.STRING_LEN);
+	}
+
+	/**
+	 * Returns how many entries a prefix-compressed internal page should take from its
+	 * sibling, counting the one rotated through the parent, for the two to hold about
+	 * the same number of bytes.
+	 *
+	 * @param page - the page which is less than half full
+	 * @param sibling - the sibling with entries to spare
+	 * @param it - an iterator over the sibling's entries, starting from those nearest the page
+	 */
+	private static int entriesToBalance(BTreeInternalPage page, BTreeInternalPage sibling, Iterator<BTreeEntry> it) {
+		int target = (sibling.getUsedBytes() - page.getUsedBytes()) / 2;
+		int bytes = 0;
+		int count = 0;
+		while(it.hasNext() && (count == 0 || bytes < target)) {
+			bytes += sibling.getEntrySize(it.next());
+			count++;
+		}
+		return Math.min(count, sibling.getNumEntries() - 1);
+	}
+
+	/**
+	 * Stealing rotates a key of a prefix-compressed parent page, and the new key may be
+	 * longer than the old one. If the parent no longer fits on a page, split it.
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param page - the internal page whose key was replaced
+	 * @see #splitInternalPage(TransactionId, Map, BTreeInternalPage, Field)
+	 */
+	private void splitIfOverfull(TransactionId tid, Map<PageId, Page> dirtypages, BTreeInternalPage page)
+			throws DbException, IOException, TransactionAbortedException {
+		if(page.isOverfull()) {
+			splitInternalPage(tid, dirtypages, page, page.iterator().next().getKey());
+		}
+	}
+
 	/**
 	 * Delete a tuple from this BTreeFile. 
 	 * May cause pages to merge or redistribute entries/tuples if the pages 
@@ -1109,15 +1382,12 @@ public class BTreeFile implements DbFile {
 	 */
 	BTreeRootPtrPage getRootPtrPage(TransactionId tid, Map<PageId, Page> dirtypages) throws DbException, IOException, TransactionAbortedException {
 		synchronized(this) {
-			if(f.length() == 0) {
+			if(channel.size() == 0) {
 				// create the root pointer page and the root page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
 				byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
 				byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
-				bw.write(emptyRootPtrData);
-				bw.write(emptyLeafData);
-				bw.close();
+				channel.write(emptyRootPtrData, 0);
+				channel.write(emptyLeafData, emptyRootPtrData.length);
 			}
 		}
 
@@ -1173,11 +1443,8 @@ public class BTreeFile implements DbFile {
 		if(headerId == null) {		
 			synchronized(this) {
 				// create the new page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
 				byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-				bw.write(emptyData);
-				bw.close();
+				channel.append(emptyData);
 				emptyPageNo = numPages();
 			}
 		}
@@ -1208,10 +1475,7 @@ public class BTreeFile implements DbFile {
 		BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
 		
 		// write empty page to disk
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
-		rf.seek(BTreeRootPtrPage.getPageSize() + (long) (emptyPageNo - 1) * BufferPool.getPageSize());
-		rf.write(BTreePage.createEmptyPageData());
-		rf.close();
+		channel.write(BTreePage.createEmptyPageData(), pageOffset(emptyPageNo));
 		
 		// make sure the page is not in the buffer pool	or in the local cache		
 		Database.getBufferPool().discardPage(newPageId);
@@ -1332,6 +1596,11 @@ public class BTreeFile implements DbFile {
 		return new BTreeFileIterator(this, tid);
 	}
 
+	// see DbFile.java for javadocs
+	public void close() throws IOException {
+		channel.close();
+	}
+
 }
 
 /**
@@ -1359,10 +1628,8 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	 * Open this iterator by getting an iterator on the first leaf page
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
-		curp = f.findLeafPage(tid, root, null);
+		curp = f.findLeafPage(tid, null);
+		BTreeFile.prefetchRightSiblings(curp);
 		it = curp.iterator();
 	}
 
@@ -1385,6 +1652,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 			else {
 				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
 						nextp, Permissions.READ_ONLY);
+				BTreeFile.prefetchRightSiblings(curp);
 				it = curp.iterator();
 				if (!it.hasNext())
 					it = null;
@@ -1417,6 +1685,11 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 /**
  * Helper class that implements the DbFileIterator for search tuples on a
  * B+ Tree File
+ * <p>
+ * On a tree keyed on several fields, the predicate's value may cover only the
+ * leading ones. The search then starts at the first key beginning with the
+ * values that must be equal (and, unless op is less than, greater than or equal
+ * to the last value), and ends at the first key past them.
  */
 class BTreeSearchIterator extends AbstractDbFileIterator {
 
@@ -1426,6 +1699,8 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	final TransactionId tid;
 	final BTreeFile f;
 	final IndexPredicate ipred;
+	final Field value;
+	final Field prefix;
 
 	/**
 	 * Constructor for this iterator
@@ -1437,6 +1712,10 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 		this.f = f;
 		this.tid = tid;
 		this.ipred = ipred;
+		// 多列的key是CompositeField，只给了第一列的值时也包装成CompositeField再比较
+		Field v = ipred.getField();
+		this.value = f.keyFields().length > 1 && !(v instanceof CompositeField) ? new CompositeField(v) : v;
+		this.prefix = ipred.getPrefix();
 	}
 
 	/**
@@ -1444,17 +1723,21 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	 * for the given predicate operation
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
-		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN 
-				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-			curp = f.findLeafPage(tid, root, ipred.getField());
-		}
-		else {
-			curp = f.findLeafPage(tid, root, null);
+		boolean seeks = ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN
+				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ;
+		Field start = seeks ? value : prefix;
+		curp = f.findLeafPage(tid, start);
+		// 只有大于/大于等于的查询会一直扫描到最右边的leaf page，
+		// 其他查询在中途就会结束，预读反而会多读很多page
+		if(prefetchesSiblings()) {
+			BTreeFile.prefetchRightSiblings(curp);
 		}
-		it = curp.iterator();
+		// 第一个leaf page里小于查找值的tuple直接跳过
+		it = start != null ? curp.iterator(start) : curp.iterator();
+	}
+
+	private boolean prefetchesSiblings() {
+		return prefix == null && (ipred.getOp() == Op.GREATER_THAN || ipred.getOp() == Op.GREATER_THAN_OR_EQ);
 	}
 
 	/**
@@ -1470,7 +1753,12 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 
 			while (it.hasNext()) {
 				Tuple t = it.next();
-				if (t.getField(f.keyField()).compare(ipred.getOp(), ipred.getField())) {
+				Field key = f.getKey(t);
+				if (prefix != null && key.compare(Op.GREATER_THAN, prefix)) {
+					// the leading key fields are past the values they must be equal to
+					return null;
+				}
+				if (key.compare(ipred.getOp(), value)) {
 					return t;
 				}
 				else if(ipred.getOp() == Op.LESS_THAN || ipred.getOp() == Op.LESS_THAN_OR_EQ) {
@@ -1479,7 +1767,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 					return null;
 				}
 				else if(ipred.getOp() == Op.EQUALS && 
-						t.getField(f.keyField()).compare(Op.GREATER_THAN, ipred.getField())) {
+						key.compare(Op.GREATER_THAN, value)) {
 					// if the tuple is now greater than the field passed in and the operation
 					// is equals, we have reached the end
 					return null;
@@ -1494,6 +1782,9 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 			else {
 				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
 						nextp, Permissions.READ_ONLY);
+				if(prefetchesSiblings()) {
+					BTreeFile.prefetchRightSiblings(curp);
+				}
 				it = curp.iterator();
 			}
 		}
@@ -113,7 +113,7 @@ public class BTreeFileEncoder {
 	 * comparator to sort Tuples by key field
 	 */
 	public static class TupleComparator implements Comparator<Tuple> {
-		private final int keyField;
+		private final int[] keyFields;
 
 		/** 
 		 * Construct a TupleComparator
@@ -121,21 +121,33 @@ public class BTreeFileEncoder {
 		 * @param keyField - the index of the field the tuples are keyed on
 		 */
 		public TupleComparator(int keyField) {
-			this.keyField = keyField;
+			this(new int[] {keyField});
+		}
+
+		/** 
+		 * Construct a TupleComparator for tuples keyed on several fields
+		 * 
+		 * @param keyFields - the indexes of the fields the tuples are keyed on, most significant first
+		 */
+		public TupleComparator(int[] keyFields) {
+			this.keyFields = keyFields;
 		}
 
 		/**
-		 * Compare two tuples based on their key field
+		 * Compare two tuples based on their key fields
 		 * 
 		 * @return -1 if t1 < t2, 1 if t1 > t2, 0 if t1 == t2
 		 */
 		public int compare(Tuple t1, Tuple t2) {
 			int cmp = 0;
-			if(t1.getField(keyField).compare(Op.LESS_THAN, t2.getField(keyField))) {
-				cmp = -1;
-			}
-			else if(t1.getField(keyField).compare(Op.GREATER_THAN, t2.getField(keyField))) {
-				cmp = 1;
+			for(int i = 0; i < keyFields.length && cmp == 0; i++) {
+				int keyField = keyFields[i];
+				if(t1.getField(keyField).compare(Op.LESS_THAN, t2.getField(keyField))) {
+					cmp = -1;
+				}
+				else if(t1.getField(keyField).compare(Op.GREATER_THAN, t2.getField(keyField))) {
+					cmp = 1;
+				}
 			}
 			return cmp;
 		}
@@ -503,6 +515,19 @@ public class BTreeFileEncoder {
 	public static byte[] convertToLeafPage(List<Tuple> tuples, int npagebytes,
 			int numFields, Type[] typeAr, int keyField)
 					throws IOException {
+		return convertToLeafPage(tuples, npagebytes, numFields, typeAr, new int[] {keyField});
+	}
+
+	/**
+	 * Convert a set of tuples to a byte array in the format of a BTreeLeafPage
+	 * keyed on several fields
+	 * 
+	 * @param keyFields - the fields of the tuples the B+ tree will be keyed on, most significant first
+	 * @see #convertToLeafPage(List, int, int, Type[], int)
+	 */
+	public static byte[] convertToLeafPage(List<Tuple> tuples, int npagebytes,
+			int numFields, Type[] typeAr, int[] keyFields)
+					throws IOException {
 		int nrecbytes = 0;
 		for (int i = 0; i < numFields ; i++) {
 			nrecbytes += typeAr[i].getLen();
@@ -551,7 +576,7 @@ public class BTreeFileEncoder {
 		if (i % 8 > 0)
 			dos.writeByte(headerbyte);
 
-		tuples.sort(new TupleComparator(keyField));
+		tuples.sort(new TupleComparator(keyFields));
 		for(int t = 0; t < recordcount; t++) {
 			TupleDesc td = tuples.get(t).getTupleDesc();
 			for(int j = 0; j < td.numFields(); j++) {
@@ -621,7 +646,27 @@ public class BTreeFileEncoder {
 	public static byte[] convertToInternalPage(List<BTreeEntry> entries, int npagebytes,
 			Type keyType, int childPageCategory)
 					throws IOException {
-		int nentrybytes = keyType.getLen() + BTreeInternalPage.INDEX_SIZE;
+		return convertToInternalPage(entries, npagebytes, new Type[] {keyType}, childPageCategory);
+	}
+
+	/**
+	 * Convert a set of entries to a byte array in the format of a BTreeInternalPage
+	 * keyed on several fields
+	 * 
+	 * @param keyTypes - the types of the key fields, most significant first
+	 * @see #convertToInternalPage(List, int, Type, int)
+	 */
+	public static byte[] convertToInternalPage(List<BTreeEntry> entries, int npagebytes,
+			Type[] keyTypes, int childPageCategory)
+					throws IOException {
+		if (keyTypes.length == 1 && BTreeInternalPage.isCompressed(keyTypes[0])) {
+			return convertToCompressedInternalPage(entries, npagebytes, childPageCategory);
+		}
+		int keyLen = 0;
+		for (Type t : keyTypes) {
+			keyLen += t.getLen();
+		}
+		int nentrybytes = keyLen + BTreeInternalPage.INDEX_SIZE;
 		// pointerbytes: one extra child pointer, parent pointer, child page category
 		int pointerbytes = 2 * BTreeLeafPage.INDEX_SIZE + 1; 
 		int nentries = (npagebytes * 8 - pointerbytes * 8 - 1) /  (nentrybytes * 8 + 1);  //floor comes for free
@@ -670,7 +715,7 @@ public class BTreeFileEncoder {
 		}
 
 		for(int e = entrycount; e < nentries; e++) {
-			for (int j=0; j<keyType.getLen(); j++) {
+			for (int j=0; j<keyLen; j++) {
 				dos.writeByte(0);
 			}
 		}
@@ -694,6 +739,40 @@ public class BTreeFileEncoder {
 
 	}
 
+	/**
+	 * Convert a set of entries to a byte array in the format of a prefix-compressed
+	 * BTreeInternalPage. The entries must fit on one page.
+	 *
+	 * @see #convertToInternalPage(List, int, Type, int)
+	 */
+	private static byte[] convertToCompressedInternalPage(List<BTreeEntry> entries, int npagebytes,
+			int childPageCategory) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(npagebytes);
+		DataOutputStream dos = new DataOutputStream(baos);
+
+		dos.writeInt(0); // parent pointer
+		dos.writeByte((byte) childPageCategory);
+
+		entries.sort(new EntryComparator());
+		List<Field> keys = new ArrayList<>();
+		List<Integer> children = new ArrayList<>();
+		if (!entries.isEmpty()) {
+			children.add(entries.get(0).getLeftChild().getPageNumber());
+		}
+		for (BTreeEntry e : entries) {
+			keys.add(e.getKey());
+			children.add(e.getRightChild().getPageNumber());
+		}
+		BTreeInternalPage.writeCompressedEntries(dos, keys, children);
+		if (dos.size() > npagebytes) {
+			throw new IOException("entries do not fit on an internal page");
+		}
+
+		// pad the rest of the page with zeroes
+		dos.write(new byte[npagebytes - dos.size()]);
+		return baos.toByteArray();
+	}
+
 	/**
 	 * Create a byte array in the format of a BTreeRootPtrPage
 	 * 
@@ -13,20 +13,34 @@ import simpledb.storage.BufferPool;
 import simpledb.storage.Field;
 import simpledb.storage.IntField;
 import simpledb.storage.RecordId;
+import simpledb.storage.StringField;
 
 /**
  * Each instance of BTreeInternalPage stores data for one page of a BTreeFile and 
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * Pages keyed on a fixed-width type store every key at its full width in a
+ * fixed slot. Pages keyed on strings are prefix-compressed instead: only the
+ * entries in use are stored, in key order, and each key is stored as the length
+ * of the prefix it shares with the key before it plus its remaining bytes. How
+ * many entries such a page holds depends on the keys, so its occupancy is
+ * measured in bytes; see {@link #getUsedBytes()}.
  *
  * @see BTreeFile
  * @see BufferPool
  *
  */
 public class BTreeInternalPage extends BTreePage {
+	/** Bytes of a prefix-compressed entry besides its key bytes: the child pointer and two lengths */
+	static final int COMPRESSED_ENTRY_OVERHEAD = INDEX_SIZE + 2;
+	/** Bytes of a prefix-compressed page besides its entries: parent, child category, count, first child */
+	static final int COMPRESSED_PAGE_OVERHEAD = 2 * INDEX_SIZE + 1 + 2;
+
 	private final byte[] header;
 	private final Field[] keys;
 	private final int[] children;
 	private final int numSlots;
+	private final boolean compressed;
 	
 	private int childCategory; // either leaf or internal
 
@@ -43,7 +57,7 @@ public class BTreeInternalPage extends BTreePage {
 
         assert null == upperBound || null == prev || (prev.compare(Op.LESS_THAN_OR_EQ, upperBound));
 
-        assert !checkOccupancy || depth <= 0 || (getNumEntries() >= getMaxEntries() / 2);
+        assert !checkOccupancy || depth <= 0 || !isBelowMinOccupancy();
 	}
 	
 	/**
@@ -62,6 +76,11 @@ public class BTreeInternalPage extends BTreePage {
 	 * <p>
 	 *      ceiling((no. entry slots + 1) / 8)
 	 * <p>
+	 * A prefix-compressed page instead stores, after the parent pointer and the child
+	 * category, the number of child pointers in use, the first child pointer, and
+	 * then each entry in key order as its right child pointer, the number of leading
+	 * bytes its key shares with the previous key, the number of remaining bytes, and
+	 * those bytes.
 	 * @see Database#getCatalog
 	 * @see Catalog#getTupleDesc
 	 * @see BufferPool#getPageSize()
@@ -71,7 +90,21 @@ public class BTreeInternalPage extends BTreePage {
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreeInternalPage(BTreePageId id, byte[] data, int key) throws IOException {
-		super(id, key);
+		this(id, data, new int[] {key});
+	}
+
+	/**
+	 * Create a BTreeInternalPage keyed on several fields, compared in order. Its
+	 * keys are CompositeFields, stored at their full width.
+	 *
+	 * @param id - the id of this page
+	 * @param data - the raw data of this page
+	 * @param keyFields - the fields which the index is keyed on, most significant first
+	 * @see #BTreeInternalPage(BTreePageId, byte[], int)
+	 */
+	public BTreeInternalPage(BTreePageId id, byte[] data, int[] keyFields) throws IOException {
+		super(id, keyFields);
+		this.compressed = keyFields.length == 1 && isCompressed(td.getFieldType(keyField));
 		this.numSlots = getMaxEntries() + 1;
 		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
@@ -86,12 +119,20 @@ public class BTreeInternalPage extends BTreePage {
 		// read the child page category
 		childCategory = dis.readByte();
 
-		// allocate and read the header slots of this page
 		header = new byte[getHeaderSize()];
+		keys = new Field[numSlots];
+		children = new int[numSlots];
+		if (compressed) {
+			readCompressedEntries(dis);
+			dis.close();
+			setBeforeImage();
+			return;
+		}
+
+		// read the header slots of this page
 		for (int i=0; i<header.length; i++)
 			header[i] = dis.readByte();
 
-		keys = new Field[numSlots];
 		try{
 			// allocate and read the keys of this page
 			// start from 1 because the first key slot is not used
@@ -103,9 +144,8 @@ public class BTreeInternalPage extends BTreePage {
 			e.printStackTrace();
 		}
 
-		children = new int[numSlots];
 		try{
-			// allocate and read the child pointers of this page
+			// read the child pointers of this page
 			for (int i=0; i<children.length; i++)
 				children[i] = readNextChild(dis,i);
 		}catch(NoSuchElementException e){
@@ -116,11 +156,24 @@ public class BTreeInternalPage extends BTreePage {
 		setBeforeImage();
 	}
 
+	/**
+	 * @return whether internal pages keyed on the given type are prefix-compressed
+	 */
+	static boolean isCompressed(Type keyType) {
+		return keyType == Type.STRING_TYPE;
+	}
+
 	/** 
 	 * Retrieve the maximum number of entries this page can hold. (The number of keys)
+	 * For a prefix-compressed page, this is how many entries fit if every key
+	 * repeats the one before it; {@link #getNumEmptySlots()} accounts for the
+	 * actual bytes.
  	 */
 	public int getMaxEntries() {        
-		int keySize = td.getFieldType(keyField).getLen();
+		if (compressed) {
+			return getCompressedCapacity() / COMPRESSED_ENTRY_OVERHEAD;
+		}
+		int keySize = getKeySize();
 		int bitsPerEntryIncludingHeader = keySize * 8 + INDEX_SIZE * 8 + 1;
 		// extraBits are: one parent pointer, 1 byte for child page category, 
 		// one extra child pointer (node with m entries has m+1 pointers to children), 1 bit for extra header
@@ -149,7 +202,7 @@ public class BTreeInternalPage extends BTreePage {
 			{
 				oldDataRef = oldData;
 			}
-			return new BTreeInternalPage(pid,oldDataRef,keyField);
+			return new BTreeInternalPage(pid,oldDataRef,keyFields);
 		} catch (IOException e) {
 			e.printStackTrace();
 			//should never happen -- we parsed it OK before!
@@ -172,7 +225,7 @@ public class BTreeInternalPage extends BTreePage {
 		// if associated bit is not set, read forward to the next key, and
 		// return null.
 		if (!isSlotUsed(slotId)) {
-			for (int i=0; i<td.getFieldType(keyField).getLen(); i++) {
+			for (int i=0; i<getKeySize(); i++) {
 				try {
 					dis.readByte();
 				} catch (IOException e) {
@@ -185,7 +238,7 @@ public class BTreeInternalPage extends BTreePage {
 		// read the key field
 		Field f = null;
 		try {
-			f = td.getFieldType(keyField).parse(dis);
+			f = parseKey(dis);
 		} catch (java.text.ParseException e) {
 			e.printStackTrace();
 			throw new NoSuchElementException("parsing error!");
@@ -194,6 +247,69 @@ public class BTreeInternalPage extends BTreePage {
 		return f;
 	}
 
+	/**
+	 * Read the entries of a prefix-compressed page from the source file.
+	 */
+	private void readCompressedEntries(DataInputStream dis) throws IOException {
+		int used = dis.readUnsignedShort();
+		if (used == 0) {
+			return;
+		}
+		children[0] = dis.readInt();
+		markSlotUsed(0, true);
+		byte[] prev = new byte[0];
+		for (int i=1; i<used; i++) {
+			children[i] = dis.readInt();
+			int shared = dis.readUnsignedByte();
+			int rest = dis.readUnsignedByte();
+			// 前shared个字节和上一个key相同，只存了后面的部分
+			byte[] key = Arrays.copyOf(prev, shared + rest);
+			dis.readFully(key, shared, rest);
+			keys[i] = new StringField(new String(key), Type.STRING_LEN);
+			markSlotUsed(i, true);
+			prev = key;
+		}
+	}
+
+	/**
+	 * Write the entries of this prefix-compressed page, without the empty slots.
+	 */
+	private void writeCompressedEntries(DataOutputStream dos) throws IOException {
+		List<Field> usedKeys = new ArrayList<>();
+		List<Integer> usedChildren = new ArrayList<>();
+		for (int i=0; i<numSlots; i++) {
+			if (isSlotUsed(i)) {
+				if (i > 0)
+					usedKeys.add(keys[i]);
+				usedChildren.add(children[i]);
+			}
+		}
+		writeCompressedEntries(dos, usedKeys, usedChildren);
+	}
+
+	/**
+	 * Write the entries of a prefix-compressed page, given its keys in order and its
+	 * child pointers: one more than the keys, or none for an empty page.
+	 */
+	static void writeCompressedEntries(DataOutputStream dos, List<Field> keys, List<Integer> children)
+			throws IOException {
+		dos.writeShort(children.size());
+		if (children.isEmpty()) {
+			return;
+		}
+		dos.writeInt(children.get(0));
+		String prev = "";
+		for (int i=0; i<keys.size(); i++) {
+			String key = keyString(keys.get(i));
+			int shared = sharedPrefix(prev, key);
+			dos.writeInt(children.get(i + 1));
+			dos.writeByte(shared);
+			dos.writeByte(key.length() - shared);
+			dos.writeBytes(key.substring(shared));
+			prev = key;
+		}
+	}
+
 	/**
 	 * Read child pointers from the source file.
 	 */
@@ -256,6 +372,17 @@ public class BTreeInternalPage extends BTreePage {
 			e.printStackTrace();
 		}
 
+		if (compressed) {
+			try {
+				writeCompressedEntries(dos);
+				dos.write(new byte[len - dos.size()]);
+				dos.flush();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			return baos.toByteArray();
+		}
+
 		// create the header of the page
         for (byte b : header) {
             try {
@@ -273,7 +400,7 @@ public class BTreeInternalPage extends BTreePage {
 
 			// empty slot
 			if (!isSlotUsed(i)) {
-				for (int j=0; j<td.getFieldType(keyField).getLen(); j++) {
+				for (int j=0; j<getKeySize(); j++) {
 					try {
 						dos.writeByte(0);
 					} catch (IOException e) {
@@ -320,7 +447,7 @@ public class BTreeInternalPage extends BTreePage {
 
 		// padding
 		int zerolen = BufferPool.getPageSize() - (INDEX_SIZE + 1 + header.length + 
-				td.getFieldType(keyField).getLen() * (keys.length - 1) + INDEX_SIZE * children.length); 
+				getKeySize() * (keys.length - 1) + INDEX_SIZE * children.length); 
 		byte[] zeroes = new byte[zerolen];
 		try {
 			dos.write(zeroes, 0, zerolen);
@@ -445,7 +572,7 @@ public class BTreeInternalPage extends BTreePage {
 	 * @param e The entry to add.
 	 */
 	public void insertEntry(BTreeEntry e) throws DbException {
-		if (!e.getKey().getType().equals(td.getFieldType(keyField)))
+		if (!isKey(e.getKey()))
 			throw new DbException("key field type mismatch, in insertEntry");
 
 		if(e.getLeftChild().getTableId() != pid.getTableId() || e.getRightChild().getTableId() != pid.getTableId())
@@ -461,7 +588,7 @@ public class BTreeInternalPage extends BTreePage {
 			throw new DbException("child page category mismatch in insertEntry");
 
 		// if this is the first entry, add it and return
-		if(getNumEmptySlots() == getMaxEntries()) {
+		if(getNumEntries() == 0) {
 			children[0] = e.getLeftChild().getPageNumber();
 			children[1] = e.getRightChild().getPageNumber();
 			keys[1] = e.getKey();
@@ -566,13 +693,22 @@ public class BTreeInternalPage extends BTreePage {
 	 * Returns the number of entries (keys) currently stored on this page
 	 */
 	public int getNumEntries() {
-		return numSlots - getNumEmptySlots() - 1;
+		int cnt = 0;
+		for(int i=1; i<numSlots; i++)
+			if(isSlotUsed(i))
+				cnt++;
+		return cnt;
 	}
 	
 	/**
-	 * Returns the number of empty slots on this page.
+	 * Returns the number of empty slots on this page. For a prefix-compressed page,
+	 * this is the number of entries with the longest possible key that still fit.
 	 */
 	public int getNumEmptySlots() {
+		if (compressed) {
+			int free = getCompressedCapacity() - getUsedBytes();
+			return Math.max(0, Math.min(numSlots - 1 - getNumEntries(), free / getMaxEntrySize()));
+		}
 		int cnt = 0;
 		// start from 1 because the first key slot is not used
 		// since a node with m keys has m+1 pointers
@@ -582,6 +718,181 @@ public class BTreeInternalPage extends BTreePage {
 		return cnt;
 	}
 
+	/**
+	 * @return whether this page is prefix-compressed
+	 */
+	public boolean isCompressed() {
+		return compressed;
+	}
+
+	/**
+	 * Returns the number of bytes the entries of this page take up, not counting
+	 * the empty slots of a fixed-width page.
+	 */
+	public int getUsedBytes() {
+		if (!compressed) {
+			return getNumEntries() * (getKeySize() + INDEX_SIZE);
+		}
+		int bytes = 0;
+		String prev = "";
+		for (int i=1; i<numSlots; i++) {
+			if (isSlotUsed(i)) {
+				String key = keyString(keys[i]);
+				bytes += COMPRESSED_ENTRY_OVERHEAD + key.length() - sharedPrefix(prev, key);
+				prev = key;
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * Returns the number of bytes the given entry of this page takes up.
+	 */
+	public int getEntrySize(BTreeEntry e) {
+		if (!compressed) {
+			return getKeySize() + INDEX_SIZE;
+		}
+		int slot = e.getRecordId().getTupleNumber();
+		int prev = slot - 1;
+		while (prev > 0 && !isSlotUsed(prev)) {
+			prev--;
+		}
+		String key = keyString(keys[slot]);
+		return COMPRESSED_ENTRY_OVERHEAD + key.length() - (prev > 0 ? sharedPrefix(keyString(keys[prev]), key) : 0);
+	}
+
+	/**
+	 * Returns true if this non-root page holds too few entries: less than half of
+	 * getMaxEntries(), or for a prefix-compressed page, less than
+	 * {@link #getMinUsedBytes()} bytes of entries.
+	 */
+	public boolean isBelowMinOccupancy() {
+		if (compressed) {
+			return getUsedBytes() < getMinUsedBytes();
+		}
+		return getNumEntries() < getMaxEntries() / 2;
+	}
+
+	/**
+	 * Returns true if the entries of this page no longer fit on a page on disk. Only a
+	 * prefix-compressed page can get there, when one of its keys is replaced by a
+	 * longer one; it has to be split before it is written out.
+	 */
+	public boolean isOverfull() {
+		return compressed && getUsedBytes() > getCompressedCapacity();
+	}
+
+	/**
+	 * Returns true if the entries of this page, an entry with the given key, and the
+	 * entries of the given page to the right of this one fit on a single page.
+	 */
+	public boolean canMergeWith(BTreeInternalPage right, Field key) {
+		if (getNumEntries() + 1 + right.getNumEntries() > getMaxEntries()) {
+			return false;
+		}
+		if (!compressed) {
+			return true;
+		}
+		List<Field> merged = new ArrayList<>();
+		Iterator<BTreeEntry> it = iterator();
+		while (it.hasNext())
+			merged.add(it.next().getKey());
+		merged.add(key);
+		it = right.iterator();
+		while (it.hasNext())
+			merged.add(it.next().getKey());
+		return getCompressedSize(merged) <= getCompressedCapacity();
+	}
+
+	/**
+	 * Returns how many entries at the right end of this page to move to a new page
+	 * when splitting it: half of them, or for a prefix-compressed page, about half of
+	 * its bytes.
+	 */
+	public int getNumEntriesToSplitOff() {
+		int n = getNumEntries();
+		if (!compressed || n < 3) {
+			return n / 2;
+		}
+		int half = getUsedBytes() / 2;
+		int bytes = 0;
+		int count = 0;
+		Iterator<BTreeEntry> it = reverseIterator();
+		while (it.hasNext() && bytes < half) {
+			bytes += getEntrySize(it.next());
+			count++;
+		}
+		// 两边都至少留一个entry，中间还要有一个推到父节点
+		return Math.max(1, Math.min(count, n - 2));
+	}
+
+	/**
+	 * @return the number of bytes available for entries on a prefix-compressed page
+	 */
+	static int getCompressedCapacity() {
+		return BufferPool.getPageSize() - COMPRESSED_PAGE_OVERHEAD;
+	}
+
+	/**
+	 * @return the largest number of bytes one entry of a prefix-compressed page can take
+	 */
+	static int getMaxEntrySize() {
+		return COMPRESSED_ENTRY_OVERHEAD + Type.STRING_LEN;
+	}
+
+	/**
+	 * Returns the least number of bytes of entries a non-root prefix-compressed page
+	 * holds. It is half a page, less a few entries' worth of slack: pages split and
+	 * redistribute entries whole, and a key pulled down from the parent may be longer
+	 * than the one it replaces.
+	 */
+	static int getMinUsedBytes() {
+		return Math.max(0, getCompressedCapacity() / 2 - 3 * getMaxEntrySize());
+	}
+
+	/**
+	 * @return the number of bytes the given keys take up, in order, on a prefix-compressed page
+	 */
+	static int getCompressedSize(List<Field> keys) {
+		int bytes = 0;
+		Field prev = null;
+		for (Field f : keys) {
+			bytes += getCompressedEntrySize(prev, f);
+			prev = f;
+		}
+		return bytes;
+	}
+
+	/**
+	 * @return the number of bytes an entry with the given key takes up on a
+	 * prefix-compressed page, after an entry with key prev, or first if prev is null
+	 */
+	static int getCompressedEntrySize(Field prev, Field key) {
+		String k = keyString(key);
+		return COMPRESSED_ENTRY_OVERHEAD + k.length() - (prev == null ? 0 : sharedPrefix(keyString(prev), k));
+	}
+
+	/**
+	 * @return the value of a string key as it is written to disk
+	 */
+	private static String keyString(Field f) {
+		String key = ((StringField) f).getValue();
+		return key.length() > Type.STRING_LEN ? key.substring(0, Type.STRING_LEN) : key;
+	}
+
+	/**
+	 * @return the number of leading bytes two string keys have in common on disk
+	 */
+	private static int sharedPrefix(String a, String b) {
+		int n = Math.min(a.length(), b.length());
+		int i = 0;
+		// 写盘时每个字符只写低8位，所以按字节比较
+		while (i < n && (byte) a.charAt(i) == (byte) b.charAt(i)) {
+			i++;
+		}
+		return i;
+	}
+
 	/**
 	 * Returns true if associated slot on this page is filled.
 	 */
@@ -605,6 +916,84 @@ public class BTreeInternalPage extends BTreePage {
 			header[headerbyte] &= (0xFF ^ (1 << headerbit));
 	}
 
+	/**
+	 * Find the child to follow when searching for the given key: the left child of
+	 * the first entry whose key is greater than or equal to f, or the right child of
+	 * the last entry if there is no such entry. Binary searches the key slots, so no
+	 * entries are materialized along the way.
+	 * @param f - the key to search for, or null for the left-most child
+	 * @return the id of the child page, or null if this page has no entries
+	 */
+	public BTreePageId findChild(Field f) {
+		if(!isSlotUsed(0)) {
+			return null;
+		}
+		int last = prevUsedSlot(numSlots - 1);
+		if(last <= 0) {
+			return null;
+		}
+		int slot = 0;
+		if(f != null) {
+			int found = findSlot(f);
+			// 第一个 >= f 的 key 的左孩子就是它前一个槽里存的孩子
+			slot = found < numSlots ? prevUsedSlot(found - 1) : last;
+		}
+		return new BTreePageId(pid.getTableId(), children[slot], childCategory);
+	}
+
+	/**
+	 * Binary search for the first used slot whose key is greater than or equal to f.
+	 * @return the slot, or numSlots if every key is less than f
+	 */
+	private int findSlot(Field f) {
+		int lo = 1, hi = numSlots, found = numSlots;
+		while(lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			// 空槽没有 key，拿 mid 右边最近的已用槽来比较
+			int m = nextUsedSlot(mid, hi);
+			if(m == hi) {
+				hi = mid;
+			}
+			else if(f.compare(Op.LESS_THAN_OR_EQ, keys[m])) {
+				found = m;
+				hi = mid;
+			}
+			else {
+				lo = m + 1;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * @return the first used slot in [i, end), or end if there is none
+	 */
+	private int nextUsedSlot(int i, int end) {
+		while(i < end) {
+			// 整个 header 字节都是空的话一次跳过 8 个槽
+			if((i & 7) == 0 && header[i >> 3] == 0) {
+				i += 8;
+			}
+			else if(isSlotUsed(i)) {
+				return i;
+			}
+			else {
+				i++;
+			}
+		}
+		return end;
+	}
+
+	/**
+	 * @return the last used slot at or before i, or -1 if there is none
+	 */
+	private int prevUsedSlot(int i) {
+		while(i >= 0 && !isSlotUsed(i)) {
+			i--;
+		}
+		return i;
+	}
+
 	/**
 	 * @return an iterator over all entries on this page (calling remove on this iterator throws an UnsupportedOperationException)
 	 * (note that this iterator shouldn't return entries in empty slots!)
@@ -765,11 +1154,18 @@ class BTreeInternalPageReverseIterator implements Iterator<BTreeEntry> {
 			while (true) {
 				int entry = curEntry--;
 				Field key = p.getKey(entry);
-				BTreePageId childId = p.getChildId(entry - 1);
-				if(key != null && childId != null) {
+				if(key != null) {
+					// the left child is in the previous used slot; deletions may
+					// have left empty slots in between
+					int prev = entry - 1;
+					while(prev > 0 && !p.isSlotUsed(prev)) {
+						prev--;
+					}
+					BTreePageId childId = p.getChildId(prev);
 					nextToReturn = new BTreeEntry(key, childId, nextChildId);
 					nextToReturn.setRecordId(new RecordId(p.pid, entry));
 					nextChildId = childId;
+					curEntry = prev;
 					return true;
 				}
 			}
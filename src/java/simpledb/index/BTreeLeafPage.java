@@ -27,15 +27,15 @@ public class BTreeLeafPage extends BTreePage {
 	private int leftSibling; // leaf node or 0
 	private int rightSibling; // leaf node or 0
 
-	public void checkRep(int fieldid, Field lowerBound, Field upperBound, boolean checkoccupancy, int depth) {
+	public void checkRep(Field lowerBound, Field upperBound, boolean checkoccupancy, int depth) {
 		Field prev = lowerBound;
 		assert(this.getId().pgcateg() == BTreePageId.LEAF);
 
 		Iterator<Tuple> it = this.iterator();
 		while (it.hasNext()) {
 			Tuple t = it.next();
-			assert(null == prev || prev.compare(Predicate.Op.LESS_THAN_OR_EQ, t.getField(fieldid)));
-			prev = t.getField(fieldid);
+			assert(null == prev || prev.compare(Predicate.Op.LESS_THAN_OR_EQ, getKey(t)));
+			prev = getKey(t);
 			assert(t.getRecordId().getPageId().equals(this.getId()));
 		}
 
@@ -66,7 +66,19 @@ public class BTreeLeafPage extends BTreePage {
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreeLeafPage(BTreePageId id, byte[] data, int key) throws IOException {
-		super(id, key);
+		this(id, data, new int[] {key});
+	}
+
+	/**
+	 * Create a BTreeLeafPage keyed on several fields, compared in order.
+	 *
+	 * @param id - the id of this page
+	 * @param data - the raw data of this page
+	 * @param keyFields - the fields which the index is keyed on, most significant first
+	 * @see #BTreeLeafPage(BTreePageId, byte[], int)
+	 */
+	public BTreeLeafPage(BTreePageId id, byte[] data, int[] keyFields) throws IOException {
+		super(id, keyFields);
 		this.numSlots = getMaxTuples();
 		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
@@ -140,7 +152,7 @@ public class BTreeLeafPage extends BTreePage {
 			{
 				oldDataRef = oldData;
 			}
-			return new BTreeLeafPage(pid,oldDataRef,keyField);
+			return new BTreeLeafPage(pid,oldDataRef,keyFields);
 		} catch (IOException e) {
 			e.printStackTrace();
 			//should never happen -- we parsed it OK before!
@@ -326,16 +338,7 @@ public class BTreeLeafPage extends BTreePage {
 			throw new DbException("called addTuple on page with no empty slots.");
 
 		// find the last key less than or equal to the key being inserted
-		int lessOrEqKey = -1;
-		Field key = t.getField(keyField);
-		for (int i=0; i<numSlots; i++) {
-			if(isSlotUsed(i)) {
-				if(tuples[i].getField(keyField).compare(Predicate.Op.LESS_THAN_OR_EQ, key))
-					lessOrEqKey = i;
-				else
-					break;	
-			}
-		}
+		int lessOrEqKey = prevUsedSlot(findSlot(getKey(t), false) - 1);
 
 		// shift records back or forward to fill empty slot and make room for new record
 		// while keeping records in sorted order
@@ -486,6 +489,69 @@ public class BTreeLeafPage extends BTreePage {
 		return new BTreeLeafPageIterator(this);
 	}
 
+	/**
+	 * @return an iterator over the tuples on this page whose key is greater than or
+	 * equal to f, in key order. The first such tuple is found by binary search.
+	 */
+	public Iterator<Tuple> iterator(Field f) {
+		return new BTreeLeafPageIterator(this, findSlot(f, true));
+	}
+
+	/**
+	 * Binary search for the first used slot whose key is greater than (or, if
+	 * inclusive, equal to) f.
+	 * @return the slot, or numSlots if there is none
+	 */
+	private int findSlot(Field f, boolean inclusive) {
+		Predicate.Op op = inclusive ? Predicate.Op.LESS_THAN_OR_EQ : Predicate.Op.LESS_THAN;
+		int lo = 0, hi = numSlots, found = numSlots;
+		while(lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			// 空槽没有 tuple，拿 mid 右边最近的已用槽来比较
+			int m = nextUsedSlot(mid, hi);
+			if(m == hi) {
+				hi = mid;
+			}
+			else if(f.compare(op, getKey(tuples[m]))) {
+				found = m;
+				hi = mid;
+			}
+			else {
+				lo = m + 1;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * @return the first used slot in [i, end), or end if there is none
+	 */
+	private int nextUsedSlot(int i, int end) {
+		while(i < end) {
+			// 整个 header 字节都是空的话一次跳过 8 个槽
+			if((i & 7) == 0 && header[i >> 3] == 0) {
+				i += 8;
+			}
+			else if(isSlotUsed(i)) {
+				return i;
+			}
+			else {
+				i++;
+			}
+		}
+		return end;
+	}
+
+	/**
+	 * @return the last used slot at or before i, or -1 if there is none
+	 */
+	private int prevUsedSlot(int i) {
+		while(i >= 0 && !isSlotUsed(i)) {
+			i--;
+		}
+		return i;
+	}
+
 	/**
 	 * @return a reverse iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
 	 * (note that this iterator shouldn't return tuples in empty slots!)
@@ -532,6 +598,11 @@ class BTreeLeafPageIterator implements Iterator<Tuple> {
 		this.p = p;
 	}
 
+	public BTreeLeafPageIterator(BTreeLeafPage p, int start) {
+		this.p = p;
+		this.curTuple = start;
+	}
+
 	public boolean hasNext() {
 		if (nextToReturn != null)
 			return true;
@@ -1,11 +1,16 @@
 package simpledb.index;
 
+import java.io.DataInputStream;
+
 import simpledb.common.Catalog;
 import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.storage.BufferPool;
+import simpledb.storage.CompositeField;
+import simpledb.storage.Field;
 import simpledb.storage.Page;
+import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 import simpledb.transaction.TransactionId;
 
@@ -26,10 +31,11 @@ public abstract class BTreePage implements Page {
 	protected final BTreePageId pid;
 	protected final TupleDesc td;
 	protected final int keyField;
+	protected final int[] keyFields;
 
 	protected int parent; // parent is always internal node or 0 for root node
 	protected byte[] oldData;
-	protected final Byte oldDataLock= (byte) 0;
+	protected final Object oldDataLock = new Object();
 
 	/**
 	 * Create a BTreeInternalPage from a set of bytes of data read from disk.
@@ -55,8 +61,20 @@ public abstract class BTreePage implements Page {
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreePage(BTreePageId id, int key) {
+		this(id, new int[] {key});
+	}
+
+	/**
+	 * Create a BTreePage keyed on several fields, compared in order.
+	 *
+	 * @param id - the id of this page
+	 * @param keyFields - the fields which the index is keyed on, most significant first
+	 * @see #BTreePage(BTreePageId, int)
+	 */
+	public BTreePage(BTreePageId id, int[] keyFields) {
 		this.pid = id;
-		this.keyField = key;
+		this.keyField = keyFields[0];
+		this.keyFields = keyFields;
 		this.td = Database.getCatalog().getTupleDesc(id.getTableId());
 	}
 
@@ -81,6 +99,50 @@ public abstract class BTreePage implements Page {
 		return new byte[len]; //all 0
 	}
 
+	/**
+	 * @return the key of the given tuple: its key field, or a CompositeField of its
+	 * key fields if the index is keyed on more than one
+	 */
+	protected Field getKey(Tuple t) {
+		return BTreeFile.keyOf(t, keyFields);
+	}
+
+	/**
+	 * @return the number of bytes a key of this index takes on disk
+	 */
+	protected int getKeySize() {
+		int len = 0;
+		for (int f : keyFields)
+			len += td.getFieldType(f).getLen();
+		return len;
+	}
+
+	/**
+	 * Read a key of this index from the source file.
+	 */
+	protected Field parseKey(DataInputStream dis) throws java.text.ParseException {
+		if (keyFields.length == 1)
+			return td.getFieldType(keyField).parse(dis);
+		Field[] fields = new Field[keyFields.length];
+		for (int i=0; i<fields.length; i++)
+			fields[i] = td.getFieldType(keyFields[i]).parse(dis);
+		return new CompositeField(fields);
+	}
+
+	/**
+	 * @return whether f is a key of this index, as opposed to a field of another type
+	 */
+	protected boolean isKey(Field f) {
+		if (keyFields.length == 1)
+			return f.getType().equals(td.getFieldType(keyField));
+		if (!(f instanceof CompositeField) || ((CompositeField) f).numFields() != keyFields.length)
+			return false;
+		for (int i=0; i<keyFields.length; i++)
+			if (!((CompositeField) f).getField(i).getType().equals(td.getFieldType(keyFields[i])))
+				return false;
+		return true;
+	}
+
 	/**
 	 * Get the parent id of this page
 	 * @return the parent id
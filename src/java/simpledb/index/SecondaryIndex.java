@@ -0,0 +1,299 @@
+package simpledb.index;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.common.Type;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.OpIteratorFileIterator;
+import simpledb.execution.Predicate.Op;
+import simpledb.execution.SeqScan;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * SecondaryIndex is a B+ tree index over a HeapFile. Each tuple of the heap file
+ * has one entry in the index, made of its key fields, its INCLUDE fields, and
+ * its RecordId, stored as the number of its heap page and its slot on that page.
+ * The B+ tree is keyed on the key fields followed by the RecordId, so every
+ * entry is unique and can be found again when its tuple is deleted, and lookups
+ * on the key fields find all the tuples with a key.
+ * <p>
+ * A lookup returns either the heap tuples, read through the RecordIds of the
+ * entries, or the entries themselves: when a query only needs the key and
+ * INCLUDE fields, the index covers it and the heap file is not read at all.
+ * <p>
+ * Once added to the Catalog, the index is kept up to date by
+ * BufferPool.insertTuple and deleteTuple.
+ *
+ * @see simpledb.common.Catalog#addIndex(SecondaryIndex)
+ */
+public class SecondaryIndex {
+
+	private final String name;
+	private final int tableid;
+	private final int[] keyFields;
+	private final int[] includeFields;
+	private final BTreeFile file;
+
+	/**
+	 * Creates a secondary index stored in the given file.
+	 *
+	 * @param name - the name of the index, under which its B+ tree is added to the Catalog
+	 * @param table - the heap file to index
+	 * @param keyFields - the fields of the heap file the index is keyed on, most significant first
+	 * @param includeFields - other fields of the heap file to store in the entries, possibly none
+	 * @param f - the file that stores the index's B+ tree
+	 */
+	public SecondaryIndex(String name, HeapFile table, int[] keyFields, int[] includeFields, File f) {
+		if(keyFields.length == 0) {
+			throw new IllegalArgumentException("an index needs at least one key field");
+		}
+		this.name = name;
+		this.tableid = table.getId();
+		this.keyFields = keyFields.clone();
+		this.includeFields = includeFields.clone();
+
+		TupleDesc td = table.getTupleDesc();
+		int n = keyFields.length + includeFields.length;
+		Type[] types = new Type[n + 2];
+		String[] names = new String[n + 2];
+		for(int i = 0; i < n; i++) {
+			int field = i < keyFields.length ? keyFields[i] : includeFields[i - keyFields.length];
+			types[i] = td.getFieldType(field);
+			names[i] = td.getFieldName(field);
+		}
+		types[n] = Type.INT_TYPE;
+		names[n] = "rid_page";
+		types[n + 1] = Type.INT_TYPE;
+		names[n + 1] = "rid_slot";
+
+		// B+树的key是索引列加上RecordId，这样每个索引项都是唯一的
+		int[] treeKeys = new int[keyFields.length + 2];
+		for(int i = 0; i < keyFields.length; i++) {
+			treeKeys[i] = i;
+		}
+		treeKeys[keyFields.length] = n;
+		treeKeys[keyFields.length + 1] = n + 1;
+		this.file = new BTreeFile(f, treeKeys, new TupleDesc(types, names));
+	}
+
+	/**
+	 * @return the name of this index
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the id of the indexed heap file
+	 */
+	public int getTableId() {
+		return tableid;
+	}
+
+	/**
+	 * @return the B+ tree holding the entries of this index
+	 */
+	public BTreeFile getFile() {
+		return file;
+	}
+
+	/**
+	 * @return the fields of the heap file this index is keyed on
+	 */
+	public int[] getKeyFields() {
+		return keyFields.clone();
+	}
+
+	/**
+	 * @return the fields of the heap file stored in the entries besides the key fields
+	 */
+	public int[] getIncludeFields() {
+		return includeFields.clone();
+	}
+
+	/**
+	 * @return whether the entries of this index hold all the given fields of the heap
+	 * file, so that a query reading only those fields doesn't need the heap file
+	 */
+	public boolean covers(int... fields) {
+		for(int field : fields) {
+			if(getEntryField(field) < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the position in the entries of the given field of the heap file, or -1
+	 * if the entries don't hold it
+	 */
+	public int getEntryField(int field) {
+		for(int i = 0; i < keyFields.length; i++) {
+			if(keyFields[i] == field) {
+				return i;
+			}
+		}
+		for(int i = 0; i < includeFields.length; i++) {
+			if(includeFields[i] == field) {
+				return keyFields.length + i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the entry of this index for a tuple of the heap file, which must be stored
+	 * on a page of the file
+	 */
+	public Tuple getEntry(Tuple t) {
+		TupleDesc td = file.getTupleDesc();
+		Tuple entry = new Tuple(td);
+		int n = keyFields.length + includeFields.length;
+		for(int i = 0; i < n; i++) {
+			int field = i < keyFields.length ? keyFields[i] : includeFields[i - keyFields.length];
+			entry.setField(i, t.getField(field));
+		}
+		RecordId rid = t.getRecordId();
+		entry.setField(n, new IntField(rid.getPageId().getPageNumber()));
+		entry.setField(n + 1, new IntField(rid.getTupleNumber()));
+		return entry;
+	}
+
+	/**
+	 * @return the RecordId of the heap tuple an entry of this index refers to
+	 */
+	public RecordId getRecordId(Tuple entry) {
+		int n = keyFields.length + includeFields.length;
+		return new RecordId(new HeapPageId(tableid, ((IntField) entry.getField(n)).getValue()),
+				((IntField) entry.getField(n + 1)).getValue());
+	}
+
+	/**
+	 * Add the entry for a tuple that was inserted into the heap file
+	 *
+	 * @param tid - the transaction inserting the tuple
+	 * @param t - the tuple, with its RecordId set
+	 */
+	public void insertTuple(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		Database.getBufferPool().insertTuple(tid, file.getId(), getEntry(t));
+	}
+
+	/**
+	 * Remove the entry for a tuple that is being deleted from the heap file
+	 *
+	 * @param tid - the transaction deleting the tuple
+	 * @param t - the tuple, with its RecordId set
+	 * @throws DbException if the index has no entry for the tuple
+	 */
+	public void deleteTuple(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		Tuple entry = getEntry(t);
+		DbFileIterator it = file.indexIterator(tid, new IndexPredicate(Op.EQUALS, file.getKey(entry)));
+		it.open();
+		try {
+			if(!it.hasNext()) {
+				throw new DbException("no entry for tuple " + t.getRecordId() + " in index " + name);
+			}
+			Database.getBufferPool().deleteTuple(tid, it.next());
+		} finally {
+			it.close();
+		}
+	}
+
+	/**
+	 * Add an entry for every tuple of the heap file to this index, which must be empty,
+	 * with a bulk load of its B+ tree. Call this after adding the index to the Catalog,
+	 * in the same transaction, so that no tuple is added to the heap file in between.
+	 *
+	 * @param tid - the transaction building the index
+	 * @see BTreeFile#bulkLoad(TransactionId, DbFileIterator, double, int)
+	 */
+	public void build(TransactionId tid) throws DbException, IOException, TransactionAbortedException {
+		SeqScan heap = new SeqScan(tid, tableid);
+		heap.open();
+		try {
+			Database.getBufferPool().bulkLoad(tid, file.getId(), new OpIteratorFileIterator(heap, this::getEntry),
+					BTreeFile.DEFAULT_FILL_FACTOR);
+		} finally {
+			heap.close();
+		}
+	}
+
+	/**
+	 * Get the entries of this index whose key fields match a predicate, in key order.
+	 * The predicate's value is for the key fields, or the leading ones of them.
+	 *
+	 * @param tid - the transaction id
+	 * @param ipred - the predicate on the key fields
+	 * @return an iterator over the matching entries
+	 * @see #getEntryField(int)
+	 */
+	public DbFileIterator entryIterator(TransactionId tid, IndexPredicate ipred) {
+		return file.indexIterator(tid, ipred);
+	}
+
+	/**
+	 * Get the tuples of the heap file whose key fields match a predicate, in key order,
+	 * by looking up the entries and reading each tuple through its RecordId.
+	 *
+	 * @param tid - the transaction id
+	 * @param ipred - the predicate on the key fields
+	 * @return an iterator over the matching tuples of the heap file
+	 */
+	public DbFileIterator iterator(TransactionId tid, IndexPredicate ipred) {
+		return new SecondaryIndexIterator(this, tid, entryIterator(tid, ipred));
+	}
+}
+
+/**
+ * Helper class that reads the heap tuples referred to by the entries of a
+ * secondary index
+ */
+class SecondaryIndexIterator extends AbstractDbFileIterator {
+
+	final SecondaryIndex index;
+	final TransactionId tid;
+	final DbFileIterator entries;
+
+	public SecondaryIndexIterator(SecondaryIndex index, TransactionId tid, DbFileIterator entries) {
+		this.index = index;
+		this.tid = tid;
+		this.entries = entries;
+	}
+
+	public void open() throws DbException, TransactionAbortedException {
+		entries.open();
+	}
+
+	@Override
+	protected Tuple readNext() throws DbException, TransactionAbortedException {
+		while(entries.hasNext()) {
+			RecordId rid = index.getRecordId(entries.next());
+			HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, rid.getPageId(), Permissions.READ_ONLY);
+			Tuple t = page.getTuple(rid.getTupleNumber());
+			if(t != null) {
+				return t;
+			}
+		}
+		return null;
+	}
+
+	public void rewind() throws DbException, TransactionAbortedException {
+		close();
+		open();
+	}
+
+	public void close() {
+		super.close();
+		entries.close();
+	}
+}
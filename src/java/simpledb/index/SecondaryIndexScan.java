@@ -0,0 +1,141 @@
+package simpledb.index;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+
+/**
+ * SecondaryIndexScan is an operator which reads the tuples of a heap file that
+ * match a predicate on the key fields of one of its secondary indexes, in key
+ * order, without scanning the heap file.
+ * <p>
+ * A covering scan returns the key and INCLUDE fields of the index entries
+ * instead, and doesn't read the heap file at all.
+ */
+public class SecondaryIndexScan implements OpIterator {
+
+	private static final long serialVersionUID = 1L;
+
+	private boolean isOpen = false;
+	private final TransactionId tid;
+	private final SecondaryIndex index;
+	private final boolean covering;
+	private final int numFields;
+	private final TupleDesc myTd;
+	private final String alias;
+	private transient DbFileIterator it;
+
+	/**
+	 * Creates a scan of the tuples of a heap file through one of its secondary
+	 * indexes, as a part of the specified transaction.
+	 *
+	 * @param tid
+	 *            The transaction this scan is running as a part of.
+	 * @param index
+	 *            the index to read.
+	 * @param tableAlias
+	 *            the alias of the indexed table; the returned tupleDesc
+	 *            has fields with name tableAlias.fieldName.
+	 * @param ipred
+	 *            The predicate on the key fields of the index to match.
+	 * @param covering
+	 *            whether to return only the key and INCLUDE fields, read from
+	 *            the index entries, instead of the tuples of the heap file
+	 */
+	public SecondaryIndexScan(TransactionId tid, SecondaryIndex index, String tableAlias,
+			IndexPredicate ipred, boolean covering) {
+		this.tid = tid;
+		this.index = index;
+		this.covering = covering;
+		this.alias = tableAlias;
+		TupleDesc td;
+		if(covering) {
+			this.it = index.entryIterator(tid, ipred);
+			td = index.getFile().getTupleDesc();
+			// 不返回最后两列的RecordId
+			this.numFields = td.numFields() - 2;
+		}
+		else {
+			this.it = index.iterator(tid, ipred);
+			td = Database.getCatalog().getTupleDesc(index.getTableId());
+			this.numFields = td.numFields();
+		}
+		String[] newNames = new String[numFields];
+		Type[] newTypes = new Type[numFields];
+		for (int i = 0; i < numFields; i++) {
+			newNames[i] = tableAlias + "." + td.getFieldName(i);
+			newTypes[i] = td.getFieldType(i);
+		}
+		this.myTd = new TupleDesc(newTypes, newNames);
+	}
+
+	public SecondaryIndexScan(TransactionId tid, SecondaryIndex index, IndexPredicate ipred) {
+		this(tid, index, Database.getCatalog().getTableName(index.getTableId()), ipred, false);
+	}
+
+	/**
+	 * @return Return the alias of the table this operator scans.
+	 * */
+	public String getAlias() {
+		return this.alias;
+	}
+
+	public void open() throws DbException, TransactionAbortedException {
+		if (isOpen)
+			throw new DbException("double open on one OpIterator.");
+
+		it.open();
+		isOpen = true;
+	}
+
+	/**
+	 * Returns the TupleDesc with field names from the heap file, or from the
+	 * index entries for a covering scan, prefixed with the tableAlias string
+	 * from the constructor.
+	 */
+	public TupleDesc getTupleDesc() {
+		return myTd;
+	}
+
+	public boolean hasNext() throws TransactionAbortedException, DbException {
+		if (!isOpen)
+			throw new IllegalStateException("iterator is closed");
+		return it.hasNext();
+	}
+
+	public Tuple next() throws NoSuchElementException,
+	TransactionAbortedException, DbException {
+		if (!isOpen)
+			throw new IllegalStateException("iterator is closed");
+
+		Tuple t = it.next();
+		if (!covering) {
+			return t;
+		}
+		Tuple out = new Tuple(myTd);
+		for (int i = 0; i < numFields; i++) {
+			out.setField(i, t.getField(i));
+		}
+		return out;
+	}
+
+	public void close() {
+		it.close();
+		isOpen = false;
+	}
+
+	public void rewind() throws DbException, NoSuchElementException,
+	TransactionAbortedException {
+		close();
+		open();
+	}
+}
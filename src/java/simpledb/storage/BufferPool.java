@@ -1,17 +1,20 @@
 package simpledb.storage;
 
 import simpledb.common.*;
+import simpledb.index.BTreeFile;
+import simpledb.index.SecondaryIndex;
+import simpledb.transaction.LockManager;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.*;
 
-import java.sql.Time;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -36,25 +39,57 @@ public class BufferPool {
     public static final int DEFAULT_PAGES = 50;
 
 
+    /**
+     * Default number of page locks a transaction may hold on one table
+     * before they are escalated to a single table lock.
+     */
+    public static final int DEFAULT_LOCK_ESCALATION_THRESHOLD = 1000;
+
+    private static int lockEscalationThreshold = DEFAULT_LOCK_ESCALATION_THRESHOLD;
+
+    /** Upper bound on the number of partitions the page table is split into. */
+    private static final int MAX_PARTITIONS = 16;
+
+    /** Upper bound on the number of frames used by sequential scans. */
+    private static final int MAX_SCAN_RING_PAGES = 8;
+
     // User defined member variable
 
-    private ConcurrentHashMap<PageId,LockManager> pageLockManagerMap;
+    // 表锁和page锁的锁表
+    private final LockManager lockManager;
 
-    private ConcurrentHashMap<TransactionId,Set<PageId>> txPageLockMap;
+    private final int numPages;
 
-    private int numPages;
+    // 页表按照PageId的hash分成若干个分区，每个分区有自己的锁和替换策略，
+    // 命中时只需要锁住对应的分区，不同分区之间的访问互不影响
+    private final PagePartition[] partitions;
 
-    private int pageCount;
+    // 整个bufferPool中驻留的page数，装入新page之前先在这里预留一个位置
+    private final AtomicInteger pageCount;
 
-    private ConcurrentHashMap<PageId,Node<Page>> pagesMap;
+    // 驱逐时从哪个分区开始找，轮流进行，避免总是驱逐同一个分区
+    private final AtomicInteger evictCursor;
 
-    private ConcurrentHashMap<TransactionId,Set<PageId>> dirtyPageIdMap;
+    // 顺序扫描读进来的page只占用这几个循环使用的位置
+    private final ScanRing scanRing;
 
-    private LinkedList<Page> list;
+    // 后台预读page的服务
+    private final PagePrefetcher prefetcher;
 
-    private ConcurrentHashMap<PageId,Page> dirtyPageMap;
+    // 每次有page写回磁盘或者被丢弃时加一，预读的page如果在读取期间这个值变了就不能再用
+    private final AtomicLong ioEpoch;
 
-    private Map<PageId,Page>flushedBudNotCompletedPage;
+    // 每个事务通过insertTuple/deleteTuple修改过的page
+    private final ConcurrentHashMap<TransactionId,Set<PageId>> dirtyPageIdMap;
+
+    // 每个事务批量追加时绕过bufferPool直接写到磁盘上的page，事务失败时要清空
+    private final ConcurrentHashMap<TransactionId,Set<HeapPageId>> bulkPageIdMap;
+
+    // 只读事务和它读取的快照的时间戳
+    private final ConcurrentHashMap<TransactionId,Long> snapshots;
+
+    // 已提交page的旧版本，只读事务从这里读取自己快照中的page
+    private final VersionStore versions;
 
     /**
      * Creates a BufferPool that caches up to numPages pages.
@@ -63,18 +98,37 @@ public class BufferPool {
      */
     public BufferPool(int numPages) {
         // some code goes here
-        this.numPages = DEFAULT_PAGES;
-        if (numPages >= 0){
-            this.numPages = numPages;
-        }
-        this.pageLockManagerMap =  new ConcurrentHashMap<>();
-        this.pageCount = 0;
-        this.pagesMap = new ConcurrentHashMap<>();
-        this.dirtyPageMap = new ConcurrentHashMap<>();
-        this.list = new LinkedList<>(null,null,0,numPages);
+        this(numPages, LruPolicy::new);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages and chooses
+     * victims with the given replacement policy.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policyFactory creates the replacement policy of each page table
+     *   partition, e.g. {@code ClockPolicy::new}
+     */
+    public BufferPool(int numPages, Supplier<ReplacementPolicy> policyFactory) {
+        this.numPages = numPages >= 0 ? numPages : DEFAULT_PAGES;
+        this.lockManager = new LockManager();
         this.dirtyPageIdMap = new ConcurrentHashMap<>();
-        this.txPageLockMap = new ConcurrentHashMap<>();
-        this.flushedBudNotCompletedPage = new HashMap<>();
+        this.bulkPageIdMap = new ConcurrentHashMap<>();
+        this.snapshots = new ConcurrentHashMap<>();
+        this.versions = new VersionStore();
+        this.pageCount = new AtomicInteger(0);
+        this.evictCursor = new AtomicInteger(0);
+        this.ioEpoch = new AtomicLong(0);
+        this.prefetcher = new PagePrefetcher(this);
+        int n = 1;
+        while (n < MAX_PARTITIONS && n * 4 <= this.numPages) {
+            n <<= 1;
+        }
+        this.scanRing = new ScanRing(Math.max(1, Math.min(MAX_SCAN_RING_PAGES, this.numPages / 8)));
+        this.partitions = new PagePartition[n];
+        for (int i = 0; i < n; i++) {
+            this.partitions[i] = new PagePartition(policyFactory.get());
+        }
     }
     
     public static int getPageSize() {
@@ -91,6 +145,65 @@ public class BufferPool {
     	BufferPool.pageSize = DEFAULT_PAGE_SIZE;
     }
 
+    public static int getLockEscalationThreshold() {
+        return lockEscalationThreshold;
+    }
+
+    /**
+     * Sets the number of page locks a transaction may hold on one table
+     * before the buffer pool tries to replace them with a table lock.
+     */
+    public static void setLockEscalationThreshold(int threshold) {
+        BufferPool.lockEscalationThreshold = threshold;
+    }
+
+    public static void resetLockEscalationThreshold() {
+        BufferPool.lockEscalationThreshold = DEFAULT_LOCK_ESCALATION_THRESHOLD;
+    }
+
+    /**
+     * Starts a snapshot for a read-only transaction. From now on the
+     * transaction reads every page as it was committed at this point, without
+     * taking locks, and may not modify anything. Transactions committing
+     * right now finish first, so the snapshot contains either all or none of
+     * the changes of each transaction.
+     *
+     * @param tid the read-only transaction
+     */
+    public void beginSnapshot(TransactionId tid) {
+        this.snapshots.computeIfAbsent(tid, k -> this.versions.openSnapshot());
+    }
+
+    /** @return true if the transaction reads a snapshot instead of taking locks */
+    public boolean isSnapshot(TransactionId tid) {
+        return this.snapshots.containsKey(tid);
+    }
+
+    /**
+     * @return the service scans use to read pages into this buffer pool
+     *   ahead of time
+     */
+    public PagePrefetcher getPrefetcher() {
+        return this.prefetcher;
+    }
+
+    /**
+     * @return true if the page is resident in the buffer pool; the check
+     *   takes no locks and does not count as an access of the page
+     */
+    public boolean isCached(PageId pid) {
+        return this.peekPage(pid) != null;
+    }
+
+    /** @return the number of pages resident in the buffer pool */
+    public int getNumCachedPages() {
+        int n = 0;
+        for (PagePartition partition : this.partitions) {
+            n += partition.size();
+        }
+        return n;
+    }
+
     /**
      * Retrieve the specified page with the associated permissions.
      * Will acquire a lock and may block if that lock is held by another
@@ -109,82 +222,316 @@ public class BufferPool {
     public Page getPage(TransactionId tid, PageId pid, Permissions perm)
             throws TransactionAbortedException, DbException, IllegalArgumentException{
         // some code goes here
+        return this.getPage(tid, pid, perm, AccessHint.NORMAL);
+    }
+
+    /**
+     * Retrieve the specified page with the associated permissions, like
+     * {@link #getPage(TransactionId, PageId, Permissions)}.
+     * <p>
+     * With {@link AccessHint#SCAN}, a hit does not count as a use of the page.
+     * A page that has to be read from disk while the pool is full reuses the
+     * frame of an earlier scanned page, from a small ring of such frames,
+     * instead of evicting pages other transactions are working on.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param perm the requested permissions on the page
+     * @param hint how the caller is going to use the page
+     */
+    public Page getPage(TransactionId tid, PageId pid, Permissions perm, AccessHint hint)
+            throws TransactionAbortedException, DbException, IllegalArgumentException{
         if(tid == null){
             throw new TransactionAbortedException();
         }
-        // 从pageLockMap中根据pageId获得对应的锁，如果没有就new一个新的锁
-        LockManager manager = this.pageLockManagerMap.get(pid);
-        if(manager == null){
-            manager = new LockManager();
-            this.pageLockManagerMap.put(pid,manager);
+        Long snapshot = this.snapshots.get(tid);
+        if(snapshot != null){
+            return this.getSnapshotPage(tid, pid, perm, hint, snapshot);
         }
-        // 获得了page之后需要根据请求中的权限加相应的读写锁
-        if(perm.equals(Permissions.READ_ONLY)){
-            if(!(tid.equals(manager.getTid()) && (Permissions.READ_WRITE.equals(manager.getPerm())))){
-                try {
-                    manager.readLock();
-                }catch (InterruptedException e){
-                    throw new TransactionAbortedException();
-                }
+        this.acquireLock(tid, pid, perm);
+        return this.fetchPage(pid, hint);
+    }
+
+    /**
+     * Returns the version of a page a snapshot reads: a private copy of the
+     * page as last committed at or before the snapshot's timestamp. No locks
+     * are taken, and transactions writing the page never wait for it.
+     */
+    private Page getSnapshotPage(TransactionId tid, PageId pid, Permissions perm, AccessHint hint,
+                                 long snapshot) throws TransactionAbortedException, DbException {
+        if(perm == Permissions.READ_WRITE){
+            throw new DbException("read-only transaction " + tid + " cannot write " + pid);
+        }
+        return this.versions.read(pid, snapshot, () -> {
+            if(this.isUncommittedBulkPage(pid)){
+                // 批量追加直接写到磁盘上的page在提交之前对快照来说还是空的
+                return this.emptyPage((HeapPageId) pid);
             }
+            // bufferPool中的page可能正在被写事务修改，它的before image才是最后提交的内容
+            return this.fetchPage(pid, hint).getBeforeImage();
+        });
+    }
 
-        }else if(perm.equals(Permissions.READ_WRITE)){
-            try {
-                if(tid.equals(manager.getTid()) && (Permissions.READ_ONLY.equals(manager.getPerm()))){
-                    manager.lockUpgrade();
-                }else{
-                    manager.writeLock();
-                }
-            }catch (InterruptedException e){
-                System.out.println("dead lock");
-                throw new TransactionAbortedException();
+    private boolean isUncommittedBulkPage(PageId pid) {
+        for(Set<HeapPageId> pages : this.bulkPageIdMap.values()){
+            if(pages.contains(pid)){
+                return true;
             }
         }
-        manager.setPermAndTransactionId(perm,tid);
+        return false;
+    }
+
+    private HeapPage emptyPage(HeapPageId pid) throws DbException {
+        try {
+            return new HeapPage(pid, HeapPage.createEmptyPageData());
+        } catch (IOException e) {
+            throw new DbException("failed to create empty page " + pid + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Looks a page up in the buffer pool, reading it from disk if it isn't
+     * resident. The caller must already hold the right lock on the page.
+     */
+    private Page fetchPage(PageId pid, AccessHint hint)
+            throws TransactionAbortedException, DbException {
         // 先查找bufferPool中是否有所需的page，如果有直接返回，
         // 否则从disk导入page，并将page导入bufferPool中
-        Page page = this.getPageFromBufferPool(pid);
-        if (page == null){
-            page = this.getPageFromDisk(pid);
+        Page page;
+        if (hint == AccessHint.SCAN) {
+            page = this.getPageForScan(pid);
+        } else {
+            page = this.getPageFromBufferPool(pid);
+            if (page == null){
+                page = this.loadPageToBufferPool(pid, this.getPageFromDisk(pid));
+            }
+            // 被正常访问过的page不再属于扫描环
+            this.scanRing.remove(pid);
         }
-        Set<PageId> pageIds = this.txPageLockMap.getOrDefault(tid, new HashSet<>());
-        pageIds.add(pid);
-        this.txPageLockMap.put(tid,pageIds);
         return page;
     }
 
+    /**
+     * Acquires a lock on a page for a transaction, blocking until it is
+     * granted: an intention lock on the page's table followed by the page
+     * lock itself, unless the transaction's table lock already covers the
+     * page. Once the transaction holds more page locks on the table than
+     * the escalation threshold, they are replaced by a table lock if that
+     * can be granted right away. The lock manager keeps track of the locks
+     * until the transaction completes.
+     */
+    private void acquireLock(TransactionId tid, PageId pid, Permissions perm)
+            throws TransactionAbortedException {
+        int tableId = pid.getTableId();
+        LockManager.LockMode mode = LockManager.LockMode.of(perm);
+        LockManager.LockMode held = this.lockManager.getTableLockMode(tid, tableId);
+        if (held != null && held.covers(mode)) {
+            return;
+        }
+        // 拿不到锁时挂起等待，只有发生死锁时才会被中止
+        this.lockManager.acquireTable(tid, tableId, mode == LockManager.LockMode.EXCLUSIVE
+                ? LockManager.LockMode.INTENTION_EXCLUSIVE : LockManager.LockMode.INTENTION_SHARED);
+        this.lockManager.acquire(tid, pid, perm);
+        if (this.lockManager.countLockedPages(tid, tableId) > lockEscalationThreshold) {
+            // 只读过的表升级成读锁，写过的升级成写锁；拿不到表锁时继续用page锁，不会因此产生死锁
+            held = this.lockManager.getTableLockMode(tid, tableId);
+            LockManager.LockMode escalated = held == LockManager.LockMode.INTENTION_SHARED
+                    ? LockManager.LockMode.SHARED : LockManager.LockMode.EXCLUSIVE;
+            if (this.lockManager.tryAcquireTable(tid, tableId, escalated)) {
+                this.releaseCoveredPages(tid, tableId);
+            }
+        }
+    }
 
-    private synchronized Page getPageFromBufferPool(PageId pageId) {
-        Node<Page> node = this.pagesMap.get(pageId);
-        if(node == null){
-            return null;
+    /**
+     * Locks a whole table for a transaction, e.g. before scanning or
+     * rewriting most of it, so that its pages don't have to be locked one by
+     * one. Page locks the transaction already holds on the table are
+     * released once they are covered by the table lock.
+     *
+     * @param tid the transaction requesting the lock
+     * @param tableId the table to lock
+     * @param perm READ_ONLY for a shared lock, READ_WRITE for an exclusive one
+     */
+    public void lockTable(TransactionId tid, int tableId, Permissions perm)
+            throws TransactionAbortedException {
+        if(tid == null){
+            throw new TransactionAbortedException();
+        }
+        if(this.isSnapshot(tid)){
+            // 快照读不加锁，表锁也一样
+            return;
         }
-        this.list.remove(node);
-        this.list.add(node);
-        return node.getData();
+        this.lockManager.acquireTable(tid, tableId, LockManager.LockMode.of(perm));
+        this.releaseCoveredPages(tid, tableId);
+    }
+
+    /**
+     * 释放已经被表锁覆盖的page锁。表写锁下被修改过的page在事务结束时按表找出来，见transactionComplete
+     */
+    private void releaseCoveredPages(TransactionId tid, int tableId) {
+        LockManager.LockMode held = this.lockManager.getTableLockMode(tid, tableId);
+        for (PageId pid : this.lockManager.getLockedPages(tid, tableId)) {
+            LockManager.LockMode mode = this.lockManager.getLockMode(tid, pid);
+            if (mode != null && held.covers(mode)) {
+                this.lockManager.release(tid, pid);
+            }
+        }
+    }
+
+    private PagePartition partitionOf(PageId pageId) {
+        int h = pageId.hashCode();
+        h ^= (h >>> 16);
+        return this.partitions[h & (this.partitions.length - 1)];
+    }
+
+    private Page getPageFromBufferPool(PageId pageId) {
+        return this.partitionOf(pageId).get(pageId);
+    }
+
+    private Page getPageForScan(PageId pageId)
+            throws TransactionAbortedException, DbException, IllegalArgumentException{
+        PagePartition partition = this.partitionOf(pageId);
+        Page page = partition.peek(pageId);
+        if (page != null) {
+            return page;
+        }
+        page = this.getPageFromDisk(pageId);
+        // bufferPool满了的时候优先复用扫描环中最老的page的位置，
+        // 而不是驱逐其他事务正在使用的page
+        if (this.pageCount.get() < this.numPages || !this.recycleScanFrame()) {
+            this.reserveFrame();
+        }
+        Page resident = partition.putIfAbsent(pageId, page);
+        if (resident != null) {
+            this.pageCount.decrementAndGet();
+            return resident;
+        }
+        this.scanRing.add(pageId);
+        return page;
+    }
+
+    /**
+     * Evicts the oldest page of the scan ring if the ring is full, handing
+     * its frame over to the caller.
+     *
+     * @return true if a frame was freed for the caller
+     */
+    private boolean recycleScanFrame() {
+        PageId victim;
+        while ((victim = this.scanRing.recycle()) != null) {
+            if (this.partitionOf(victim).removeIfClean(victim) != null) {
+                return true;
+            }
+        }
+        return false;
     }
 
     private Page getPageFromDisk(PageId pageId)
             throws TransactionAbortedException, DbException, IllegalArgumentException{
+        // 如果这个page正在被预读，直接等预读的结果，不再重复读
+        Page prefetched = this.prefetcher.await(pageId);
+        if(prefetched != null){
+            return prefetched;
+        }
+        // 预读可能刚刚完成并且已经装入了bufferPool
+        prefetched = this.peekPage(pageId);
+        if(prefetched != null){
+            return prefetched;
+        }
         // 根据pageId，拿到tableId，然后再去找对应的page
+        // 读磁盘的时候不持有任何分区的锁
         Catalog catalog = Database.getCatalog();
         int tableId = pageId.getTableId();
         Page page = catalog.getDatabaseFile(tableId).readPage(pageId);
         if(page != null){
-            loadPageToBufferPool(pageId,page);
             return page;
         }
         throw new TransactionAbortedException();
     }
 
-    private synchronized void loadPageToBufferPool(PageId pageId,Page page) throws DbException {
-        if(this.list.getLength() == this.numPages){
-            this.evictPage();
+    /**
+     * Installs a page that was just read from disk, unless another thread
+     * installed the same page in the meantime.
+     *
+     * @return the page that is resident in the buffer pool afterwards
+     */
+    private Page loadPageToBufferPool(PageId pageId,Page page) throws DbException {
+        PagePartition partition = this.partitionOf(pageId);
+        Page resident = partition.get(pageId);
+        if(resident != null){
+            return resident;
+        }
+        this.reserveFrame();
+        resident = partition.putIfAbsent(pageId, page);
+        if(resident != null){
+            // 别的线程已经把这个page装进来了，归还预留的位置
+            this.pageCount.decrementAndGet();
+            return resident;
+        }
+        return page;
+    }
+
+    /** Looks up a resident page without taking locks or recording an access. */
+    Page peekPage(PageId pid) {
+        return this.partitionOf(pid).peek(pid);
+    }
+
+    long ioEpoch() {
+        return this.ioEpoch.get();
+    }
+
+    /**
+     * Installs a page read by the prefetcher, using only a free frame or a
+     * frame of the scan ring. The page is dropped if it is already resident,
+     * or if some page was written back or discarded since the read started.
+     *
+     * @return true if the page was installed
+     */
+    boolean installPrefetchedPage(PageId pid, Page page, long epoch) {
+        PagePartition partition = this.partitionOf(pid);
+        if (partition.peek(pid) != null) {
+            return false;
+        }
+        if (!this.tryReserveFrame() && !this.recycleScanFrame()) {
+            return false;
+        }
+        synchronized (partition) {
+            if (this.ioEpoch.get() == epoch && partition.putIfAbsent(pid, page) == null) {
+                this.scanRing.add(pid);
+                return true;
+            }
+        }
+        this.pageCount.decrementAndGet();
+        return false;
+    }
+
+    /** Reserves a free frame if there is one, without evicting. */
+    private boolean tryReserveFrame() {
+        int count;
+        while ((count = this.pageCount.get()) < this.numPages) {
+            if (this.pageCount.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reserves room for one more page, evicting pages until the pool has
+     * a free frame.
+     */
+    private void reserveFrame() throws DbException {
+        while (true) {
+            int count = this.pageCount.get();
+            if (count < this.numPages) {
+                if (this.pageCount.compareAndSet(count, count + 1)) {
+                    return;
+                }
+            } else {
+                this.evictPage();
+            }
         }
-        Node node = new Node(page,null,null);
-        this.list.add(node);
-        this.pagesMap.put(pageId,node);
-        ++this.pageCount;
     }
 
     /**
@@ -199,14 +546,7 @@ public class BufferPool {
     public  void unsafeReleasePage(TransactionId tid, PageId pid) {
         // some code goes here
         // not necessary for lab1|lab2
-        Set<PageId> pageIds = this.txPageLockMap.get(tid);
-        if(pageIds == null || !pageIds.contains(pid)){
-            return;
-        }
-        LockManager manager = this.pageLockManagerMap.get(pid);
-        manager.unlock();
-        manager.setPermAndTransactionId(null,null);
-        pageIds.remove(pid);
+        this.lockManager.release(tid, pid);
     }
 
     /**
@@ -224,24 +564,17 @@ public class BufferPool {
     public boolean holdsLock(TransactionId tid, PageId p) {
         // some code goes here
         // not necessary for lab1|lab2
-        Set<PageId> pageIds = this.txPageLockMap.get(tid);
-        if(pageIds == null){
-            return false;
+        if (this.lockManager.holdsLock(tid, p)) {
+            return true;
         }
-        return pageIds.contains(p);
+        LockManager.LockMode held = this.lockManager.getTableLockMode(tid, p.getTableId());
+        return held != null && held.covers(LockManager.LockMode.SHARED);
     }
 
-    private void searchAndMarkDirtyPages(TransactionId tid){
-        List<Page> dataList = this.list.getDataList();
-        for(Page p : dataList){
-            if(tid.equals(p.isDirty())){
-                p.markDirty(true,tid);
-                this.dirtyPageMap.put(p.getId(),p);
-            }
-            Set<PageId> pageIds = this.dirtyPageIdMap.getOrDefault(tid,new HashSet<>());
-            pageIds.add(p.getId());
-            this.dirtyPageIdMap.put(tid,pageIds);
-        }
+    /** @return true if the transaction may modify the page under its current locks */
+    private boolean holdsExclusive(TransactionId tid, PageId pid) {
+        return this.lockManager.getLockMode(tid, pid) == LockManager.LockMode.EXCLUSIVE
+                || this.lockManager.getTableLockMode(tid, pid.getTableId()) == LockManager.LockMode.EXCLUSIVE;
     }
 
     /**
@@ -254,61 +587,106 @@ public class BufferPool {
     public void transactionComplete(TransactionId tid, boolean commit){
         // some code goes here
         // not necessary for lab1|lab2
-        this.searchAndMarkDirtyPages(tid);
-        if(commit){
-            Set<PageId> pageIds = this.dirtyPageIdMap.get(tid);
-            if(pageIds == null){
-                return;
+        Long snapshot = this.snapshots.remove(tid);
+        if(snapshot != null){
+            // 只读事务没有修改过任何page，也不应该拿过锁；万一拿过也要放掉，否则会一直挡住写事务
+            this.versions.closeSnapshot(snapshot);
+            this.lockManager.releaseAll(tid);
+            return;
+        }
+        // 提交时所有page用同一个时间戳，快照要么看到这个事务所有的修改，要么一个都看不到
+        long commitTs = commit ? this.versions.beginCommit() : 0;
+        try {
+            this.completePages(tid, commit, commitTs);
+        } finally {
+            if(commit){
+                this.versions.endCommit();
             }
-            for(PageId pid : pageIds){
-                try {
-                    this.flushPage(pid);
-                    Page page = this.dirtyPageMap.get(pid);
-                    if(page == null){
-                        page = this.flushedBudNotCompletedPage.get(pid);
-                    }
-                    if(page != null){
-                        page.setBeforeImage();
-                        this.flushedBudNotCompletedPage.remove(pid);
-                    }
-
+        }
+        this.lockManager.releaseAll(tid);
+    }
 
-                }catch (IOException e){
-                    e.printStackTrace();
-                }
-                this.dirtyPageMap.remove(pid);
+    private void completePages(TransactionId tid, boolean commit, long commitTs){
+        // 事务修改过的page：通过insertTuple/deleteTuple修改的，以及持有锁并被标记为脏的
+        Set<PageId> dirtied = this.dirtyPageIdMap.remove(tid);
+        Set<PageId> candidates = new HashSet<>();
+        if(dirtied != null){
+            candidates.addAll(dirtied);
+        }
+        candidates.addAll(this.lockManager.getLockedPages(tid));
+        // 持有表写锁时没有对应的page锁，表中在bufferPool里的page都可能被改过
+        Set<Integer> exclusiveTables = new HashSet<>();
+        for(Integer tableId : this.lockManager.getLockedTables(tid)){
+            if(this.lockManager.getTableLockMode(tid, tableId) == LockManager.LockMode.EXCLUSIVE){
+                exclusiveTables.add(tableId);
             }
-            pageIds.clear();
-            this.dirtyPageIdMap.remove(tid);
-        }else{
-            // 如果事务失败了，就把bufferpool中所有的脏的page替换为磁盘中的page
-            Set<PageId> pageIds = this.dirtyPageIdMap.get(tid);
-            for(PageId pid : pageIds){
-                Catalog catalog = Database.getCatalog();
-                int tableId = pid.getTableId();
-                Page page = catalog.getDatabaseFile(tableId).readPage(pid);
-                if(page != null){
-                    this.pagesMap.get(pid).setData(page);
-                    this.dirtyPageMap.remove(pid);
-                }else{
-                    System.out.println("read page from disk null!");
+        }
+        if(!exclusiveTables.isEmpty()){
+            for(PagePartition partition : this.partitions){
+                for(Page page : partition.pages()){
+                    if(exclusiveTables.contains(page.getId().getTableId())){
+                        candidates.add(page.getId());
+                    }
                 }
             }
-            pageIds.clear();
-            this.dirtyPageIdMap.remove(tid);
         }
-        Set<PageId> pageIds = this.txPageLockMap.getOrDefault(tid,new HashSet<>());
-        for(PageId pageId:pageIds){
-            LockManager manager = this.pageLockManagerMap.get(pageId);
+        List<Page> committed = new ArrayList<>();
+        for(PageId pid : candidates){
+            Page page = this.partitionOf(pid).peek(pid);
+            if(page == null){
+                continue;
+            }
+            boolean modified = (dirtied != null && dirtied.contains(pid)) || page.isDirty() != null;
+            // 持有写锁的page可能已经被改了但还没来得及标记为脏（比如B+树分裂到一半时被中止），回滚时也要丢弃
+            if(!commit && this.holdsExclusive(tid, pid)){
+                modified = true;
+            }
+            if(!modified){
+                continue;
+            }
+            if(commit){
+                committed.add(page);
+            }else{
+                // 如果事务失败了，就把bufferpool中被修改过的page丢弃，下次访问时从磁盘重新读取
+                this.discardPage(pid);
+            }
+        }
+        if(!committed.isEmpty()){
             try {
-                manager.unlock();
-            }catch (IllegalMonitorStateException e){
-                manager.resetLock();
+                // 所有page的日志一起写，只force一次，然后再逐个写回
+                this.logPages(committed);
+                for(Page page : committed){
+                    // 写回之前上一次提交的版本如果还有快照要读，就留在versions中
+                    this.versions.commit(page.getId(), commitTs, page::getBeforeImage, () -> {
+                        this.writeLoggedPage(page.getId());
+                        page.setBeforeImage();
+                    });
+                }
+            }catch (IOException | DbException e){
+                e.printStackTrace();
             }
-            manager.setPermAndTransactionId(null,null);
         }
-        pageIds.clear();
-        this.txPageLockMap.remove(tid);
+        // 写回空page之后再从bulkPageIdMap中移除，之前快照一直把它们当作空page
+        Set<HeapPageId> bulkPages = this.bulkPageIdMap.get(tid);
+        if(bulkPages != null){
+            for(HeapPageId pid : bulkPages){
+                try {
+                    if(commit){
+                        // 直接写到磁盘上的page原来都是空的，旧版本就是空page
+                        this.versions.commit(pid, commitTs, () -> this.emptyPage(pid), () -> {});
+                    }else{
+                        HeapFile file = (HeapFile) Database.getCatalog().getDatabaseFile(pid.getTableId());
+                        file.writePage(new HeapPage(pid, HeapPage.createEmptyPageData()));
+                        this.discardPage(pid);
+                        // free space map里这些page还是满的，回滚之后它们又可以插入了
+                        file.freeSpaceChanged(pid.getPageNumber(), true);
+                    }
+                }catch (IOException | DbException e){
+                    e.printStackTrace();
+                }
+            }
+            this.bulkPageIdMap.remove(tid);
+        }
     }
 
     /**
@@ -322,9 +700,12 @@ public class BufferPool {
      * been dirtied to the cache (replacing any existing versions of those pages) so 
      * that future requests see up-to-date pages. 
      *
+     * The tuple is also added to every secondary index on the table.
+     *
      * @param tid the transaction adding the tuple
      * @param tableId the table to add the tuple to
      * @param t the tuple to add
+     * @see simpledb.common.Catalog#addIndex
      */
     public void insertTuple(TransactionId tid, int tableId, Tuple t)
         throws DbException, IOException, TransactionAbortedException {
@@ -335,13 +716,111 @@ public class BufferPool {
         for(Page page :pages){
             page.markDirty(true,tid);
             this.addOrUpdatePage(page);
-            Set<PageId> pageIdSet = this.dirtyPageIdMap.getOrDefault(tid, new HashSet<>());
-            pageIdSet.add(page.getId());
-            this.dirtyPageIdMap.put(tid,pageIdSet);
-            this.dirtyPageMap.put(page.getId(),page);
+            this.dirtyPageIdMap.computeIfAbsent(tid, k -> ConcurrentHashMap.newKeySet()).add(page.getId());
+        }
+        // 插入之后t才有RecordId，索引项里要记下它
+        for(SecondaryIndex index : Database.getCatalog().getIndexes(tableId)){
+            index.insertTuple(tid, t);
+        }
+    }
+
+
+    /**
+     * Adds all tuples of an iterator to the specified table on behalf of
+     * transaction tid, like calling {@link #insertTuple} for each of them.
+     * <p>
+     * For a large load into a HeapFile, the tuples are packed into new pages
+     * in memory that are appended to the file in multi-page extents and
+     * written to disk directly, without passing through the buffer pool. The
+     * transaction holds write locks on those pages until it completes, and
+     * they are emptied again if it aborts.
+     *
+     * @param tid the transaction adding the tuples
+     * @param tableId the table to add the tuples to
+     * @param tuples the tuples to add, already opened
+     * @return the number of tuples added
+     */
+    public int bulkInsertTuples(TransactionId tid, int tableId, DbFileIterator tuples)
+        throws DbException, IOException, TransactionAbortedException {
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+        // 有二级索引的表要逐个插入，才能维护索引
+        if (file instanceof HeapFile && Database.getCatalog().getIndexes(tableId).isEmpty()) {
+            return ((HeapFile) file).bulkInsert(tid, tuples);
+        }
+        int count = 0;
+        while (tuples.hasNext()) {
+            this.insertTuple(tid, tableId, tuples.next());
+            count++;
         }
+        return count;
     }
 
+    /**
+     * Builds the B+ tree of the specified table from all the tuples of another
+     * file, as CREATE INDEX would, on behalf of transaction tid. The tree's
+     * pages are written to disk directly; only its root pointer page goes
+     * through the buffer pool, so the tree appears when tid commits.
+     *
+     * @param tid the transaction building the tree
+     * @param tableId the B+ tree to build, which must be empty
+     * @param source the file holding the tuples to index
+     * @param fillFactor the fraction of each page to fill, between 0.5 and 1
+     * @see BTreeFile#bulkLoad(TransactionId, DbFile, double, int)
+     */
+    public void bulkLoad(TransactionId tid, int tableId, DbFile source, double fillFactor)
+        throws DbException, IOException, TransactionAbortedException {
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+        if (!(file instanceof BTreeFile)) {
+            throw new DbException("bulkLoad needs a B+ tree");
+        }
+        this.markBulkLoaded(tid, ((BTreeFile) file).bulkLoad(tid, source, fillFactor,
+                BTreeFile.DEFAULT_SORT_BUFFER_PAGES));
+    }
+
+    /**
+     * Builds the B+ tree of the specified table from the tuples of an iterator,
+     * already opened, as {@link #bulkLoad(TransactionId, int, DbFile, double)} does.
+     *
+     * @see BTreeFile#bulkLoad(TransactionId, DbFileIterator, double, int)
+     */
+    public void bulkLoad(TransactionId tid, int tableId, DbFileIterator tuples, double fillFactor)
+        throws DbException, IOException, TransactionAbortedException {
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+        if (!(file instanceof BTreeFile)) {
+            throw new DbException("bulkLoad needs a B+ tree");
+        }
+        this.markBulkLoaded(tid, ((BTreeFile) file).bulkLoad(tid, tuples, fillFactor,
+                BTreeFile.DEFAULT_SORT_BUFFER_PAGES));
+    }
+
+    private void markBulkLoaded(TransactionId tid, List<Page> pages) throws DbException, IOException {
+        for(Page page : pages){
+            page.markDirty(true,tid);
+            this.addOrUpdatePage(page);
+            this.dirtyPageIdMap.computeIfAbsent(tid, k -> ConcurrentHashMap.newKeySet()).add(page.getId());
+        }
+    }
+
+    /**
+     * Takes a write lock for a bulk insert on a page that the transaction is
+     * about to write directly to disk.
+     */
+    void lockForBulkInsert(TransactionId tid, HeapPageId pid) throws TransactionAbortedException {
+        this.acquireLock(tid, pid, Permissions.READ_WRITE);
+    }
+
+    /**
+     * Called before a bulk insert writes pages directly to disk: drops stale
+     * copies of them from the pool and remembers them so they are emptied
+     * again if the transaction aborts, and read as empty by snapshots until
+     * it commits.
+     */
+    void bulkPagesWritten(TransactionId tid, Collection<HeapPageId> pids) {
+        for (HeapPageId pid : pids) {
+            this.discardPage(pid);
+        }
+        this.bulkPageIdMap.computeIfAbsent(tid, k -> ConcurrentHashMap.newKeySet()).addAll(pids);
+    }
 
     /**
      * Remove the specified tuple from the buffer pool.
@@ -353,6 +832,8 @@ public class BufferPool {
      * been dirtied to the cache (replacing any existing versions of those pages) so 
      * that future requests see up-to-date pages. 
      *
+     * The tuple is also removed from every secondary index on the table.
+     *
      * @param tid the transaction deleting the tuple.
      * @param t the tuple to delete
      */
@@ -361,27 +842,29 @@ public class BufferPool {
         // some code goes here
         // not necessary for lab1
         int tableId = t.getRecordId().getPageId().getTableId();
+        // 先删索引项：t的字段在它所在的slot被重用后可能就读不到了
+        for(SecondaryIndex index : Database.getCatalog().getIndexes(tableId)){
+            index.deleteTuple(tid, t);
+        }
         DbFile file = Database.getCatalog().getDatabaseFile(tableId);
         List<Page> pages = file.deleteTuple(tid, t);
         for(Page page : pages){
             page.markDirty(true,tid);
             this.addOrUpdatePage(page);
-            Set<PageId> pageIdSet = this.dirtyPageIdMap.getOrDefault(tid, new HashSet<>());
-            pageIdSet.add(page.getId());
-            this.dirtyPageIdMap.put(tid,pageIdSet);
-            this.dirtyPageMap.put(page.getId(),page);
+            this.dirtyPageIdMap.computeIfAbsent(tid, k -> ConcurrentHashMap.newKeySet()).add(page.getId());
         }
     }
 
     private void addOrUpdatePage(Page page) throws DbException, IOException {
-        Node<Page> node = this.pagesMap.get(page.getId());
-        if(node == null){
-            this.loadPageToBufferPool(page.getId(),page);
-            return;
+        PagePartition partition = this.partitionOf(page.getId());
+        if(!partition.replace(page.getId(), page)){
+            this.reserveFrame();
+            if(partition.put(page.getId(), page) != null){
+                this.pageCount.decrementAndGet();
+            }
         }
-        node.setData(page);
-        this.list.remove(node);
-        this.list.add(node);
+        // 脏页在提交之前不能被驱逐
+        partition.setEvictable(page.getId(), page.isDirty() == null);
     }
 
     /**
@@ -392,13 +875,13 @@ public class BufferPool {
     public synchronized void flushAllPages() throws IOException {
         // some code goes here
         // not necessary for lab1
-        Set<PageId> set = this.dirtyPageMap.keySet();
-        for(PageId pid : set){
-            this.flushPage(pid);
+        for(PagePartition partition : this.partitions){
+            for(Page page : partition.pages()){
+                if(page.isDirty() != null){
+                    this.flushPage(page.getId());
+                }
+            }
         }
-        this.dirtyPageMap.clear();
-        this.dirtyPageIdMap.clear();
-
     }
 
     /** Remove the specific page id from the buffer pool.
@@ -409,45 +892,75 @@ public class BufferPool {
         Also used by B+ tree files to ensure that deleted pages
         are removed from the cache so they can be reused safely
     */
-    public synchronized void discardPage(PageId pid) {
+    public void discardPage(PageId pid) {
         // some code goes here
         // not necessary for lab1
-        Node<Page> pageNode = this.pagesMap.get(pid);
-        if(pageNode != null){
-            this.list.remove(pageNode);
+        this.ioEpoch.incrementAndGet();
+        if(this.partitionOf(pid).remove(pid) != null){
+            this.pageCount.decrementAndGet();
         }
-        this.dirtyPageMap.remove(pid);
+        this.scanRing.remove(pid);
     }
 
     /**
      * Flushes a certain page to disk
      * @param pid an ID indicating the page to flush
      */
-    private synchronized  void flushPage(PageId pid) throws IOException {
+    private void flushPage(PageId pid) throws IOException {
         // some code goes here
         // not necessary for lab1
-        int tableId = pid.getTableId();
-        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
-        Page page = this.dirtyPageMap.get(pid);
-        if (page == null){
-            page = flushedBudNotCompletedPage.get(pid);
+        PagePartition partition = this.partitionOf(pid);
+        Page page = partition.peek(pid);
+        if(page == null){
+            return;
         }
-        if(page != null){
+        TransactionId dirtier = page.isDirty();
+        if (dirtier == null){
+            return;
+        }
+        // 先写日志再写数据页；写回之后page就是干净的了，可以被驱逐
+        Database.getLogFile().logWrite(dirtier, page.getBeforeImage(), page);
+        Database.getLogFile().force();
+        this.writeLoggedPage(pid);
+    }
+
+    /**
+     * Logs the update records of several dirty pages and forces the log once
+     * for all of them. The pages must then be written with
+     * {@link #writeLoggedPage(PageId)} before anyone else can change them.
+     */
+    private void logPages(Collection<Page> pages) throws IOException {
+        boolean logged = false;
+        for(Page page : pages){
             TransactionId dirtier = page.isDirty();
-            if (dirtier != null){
+            if(dirtier != null){
                 Database.getLogFile().logWrite(dirtier, page.getBeforeImage(), page);
-                Database.getLogFile().force();
+                logged = true;
             }
-            file.writePage(page);
-            this.flushedBudNotCompletedPage.put(pid,page);
+        }
+        if(logged){
+            Database.getLogFile().force();
+        }
+    }
 
+    /** Writes a dirty page whose update record is already durable in the log. */
+    private void writeLoggedPage(PageId pid) throws IOException {
+        PagePartition partition = this.partitionOf(pid);
+        Page page = partition.peek(pid);
+        if(page == null || page.isDirty() == null){
+            return;
         }
-        //this.dirtyPageMap.remove(pid);
+        DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        file.writePage(page);
+        Database.getLogFile().pageWritten(pid);
+        this.ioEpoch.incrementAndGet();
+        page.markDirty(false, null);
+        partition.setEvictable(pid, true);
     }
 
     /** Write all pages of the specified transaction to disk.
      */
-    public synchronized  void flushPages(TransactionId tid)  {
+    public void flushPages(TransactionId tid)  {
         // some code goes here
         // not necessary for lab1|lab2
         Set<PageId> pageIds = this.dirtyPageIdMap.get(tid);
@@ -460,204 +973,358 @@ public class BufferPool {
             }catch (IOException e){
                 e.printStackTrace();
             }
-            this.dirtyPageMap.remove(pid);
         }
-        pageIds.clear();
-        this.dirtyPageIdMap.remove(tid);
-
     }
 
     /**
      * Discards a page from the buffer pool.
      * Flushes the page to disk to ensure dirty pages are updated on disk.
      */
-    private synchronized  void evictPage() throws DbException{
+    private void evictPage() throws DbException{
         // some code goes here
         // not necessary for lab1
-        Node<Page> node = this.findCleanNode();
-        if(node == null){
-            throw new DbException("no clean node found !");
-        }
-        this.list.remove(node);
-        this.pagesMap.remove(node.getData().getId());
-        --this.pageCount;
-        //  因为不会驱逐脏页，因此无需刷新。
-        //  try {
-        //      this.flushPage(node.getData().getId());
-        //  }catch (IOException e){
-        //      throw new DbException("write page to disk error");
-        //  }
-    }
-
-    private Node<Page> findCleanNode(){
-        Node<Page> prev = this.list.getBack();
-        while(prev != null){
-            if(!this.dirtyPageMap.containsKey(prev.getData().getId())){
-                return prev;
+        //  不会驱逐脏页（NO STEAL），因此无需刷新。依次从各个分区中找替换策略选出的干净page
+        int n = this.partitions.length;
+        int start = this.evictCursor.getAndIncrement();
+        for (int i = 0; i < n; i++) {
+            PagePartition partition = this.partitions[(start + i) & (n - 1)];
+            if (partition.evictClean() != null) {
+                this.pageCount.decrementAndGet();
+                return;
             }
-            prev = this.list.getPrevNode(prev);
         }
-        return null;
+        throw new DbException("no clean node found !");
     }
 
 }
 
-class LinkedList <T> {
-    private Node<T> front;
-    private Node<T> back;
-    private int length;
-    private int size;
+/**
+ * One stripe of the buffer pool's page table. A partition owns the pages
+ * whose ids hash to it together with their replacement state, and is guarded
+ * by its own monitor, so accesses to pages in different partitions never
+ * contend.
+ */
+class PagePartition {
+
+    private final HashMap<PageId,Page> pages = new HashMap<>();
+
+    private final ReplacementPolicy policy;
 
-    public LinkedList(Node<T> front, Node<T> back, int length, int size) {
-        this.front = front;
-        this.back = back;
-        this.length = length;
-        this.size = size;
+    PagePartition(ReplacementPolicy policy) {
+        this.policy = policy;
     }
 
-    public Node<T> getFront() {
-        return front;
+    /** Looks up a page and records the access. */
+    synchronized Page get(PageId pid) {
+        Page page = this.pages.get(pid);
+        if (page != null) {
+            this.policy.pageAccessed(pid);
+        }
+        return page;
     }
 
-    public Node<T> getBack() {
-        return back;
+    /** Looks up a page without recording an access. */
+    synchronized Page peek(PageId pid) {
+        return this.pages.get(pid);
     }
 
-    public int getLength() {
-        return length;
+    synchronized Page putIfAbsent(PageId pid, Page page) {
+        Page old = this.pages.get(pid);
+        if (old == null) {
+            this.pages.put(pid, page);
+            this.policy.pageAdded(pid);
+        }
+        return old;
     }
 
-    public void add(Node<T> node){
-        node.next = front;
-        node.prev = null;
-        if(this.front == null){
-            this.front = node;
-            this.back = node;
+    synchronized Page put(PageId pid, Page page) {
+        Page old = this.pages.put(pid, page);
+        if (old == null) {
+            this.policy.pageAdded(pid);
+        } else {
+            this.policy.pageAccessed(pid);
         }
-        this.length++;
+        return old;
     }
 
-    public void remove(Node<T> node){
-        if(this.front == this.back){
-            this.front = null;
-            this.back = null;
-            this.length = 0;
-            return;
+    /** Replaces a resident page; returns false if the page is not resident. */
+    synchronized boolean replace(PageId pid, Page page) {
+        if (!this.pages.containsKey(pid)) {
+            return false;
         }
-        if(node.equals(this.front)){
-            this.front = node.next;
-        }else if(node.equals(this.back)){
-            this.back = node.prev;
-            this.back.next = null;
-        }else{
-            node.prev.next = node.next;
+        this.put(pid, page);
+        return true;
+    }
+
+    synchronized void setEvictable(PageId pid, boolean evictable) {
+        if (this.pages.containsKey(pid)) {
+            this.policy.setEvictable(pid, evictable);
         }
-        this.length--;
     }
 
-    public Node<T> getPrevNode(Node<T> node){
-        return node.prev;
+    /** Removes a page unless it is dirty; returns the removed page or null. */
+    synchronized Page removeIfClean(PageId pid) {
+        Page page = this.pages.get(pid);
+        if (page == null || page.isDirty() != null) {
+            return null;
+        }
+        return this.remove(pid);
     }
 
-    public List<T> getDataList(){
-        Node<T> p = this.getFront();
-        List<T> list = new ArrayList<>();
-        while(p != null){
-            if(p.getData()!=null){
-                list.add(p.getData());
-            }else{
-                System.out.printf("data is null\n");
+    synchronized Page remove(PageId pid) {
+        Page page = this.pages.remove(pid);
+        if (page != null) {
+            this.policy.pageRemoved(pid);
+        }
+        return page;
+    }
+
+    /**
+     * Removes and returns the page chosen by the replacement policy, or null
+     * if every page in this partition is dirty. Dirty pages the policy offers
+     * are pinned until they are flushed, so each is skipped at most once.
+     */
+    synchronized Page evictClean() {
+        PageId victim;
+        while ((victim = this.policy.evict()) != null) {
+            Page page = this.pages.get(victim);
+            if (page == null) {
+                continue;
             }
-            p = p.next;
+            if (page.isDirty() != null) {
+                this.policy.unevict(victim);
+                continue;
+            }
+            this.pages.remove(victim);
+            return page;
         }
-        return list;
+        return null;
+    }
+
+    synchronized List<Page> pages() {
+        return new ArrayList<>(this.pages.values());
+    }
+
+    synchronized int size() {
+        return this.pages.size();
     }
 }
 
-class Node<T>{
-    private T data;
-    Node<T> next;
-    Node<T> prev;
+/**
+ * The pages that sequential scans brought into the buffer pool. When the pool
+ * is full and the ring holds its capacity, the frame of the ring's oldest
+ * page is reused for the next page a scan reads, so a large scan cycles
+ * through a few frames instead of flushing the whole pool. A page leaves the
+ * ring as soon as it is accessed normally.
+ */
+class ScanRing {
+
+    private final int capacity;
 
-    public Node(T data, Node<T> next, Node<T> prev) {
-        this.data = data;
-        this.next = next;
-        this.prev = prev;
+    // 只在这里判断是否属于扫描环，正常访问命中时不需要加锁
+    private final Set<PageId> members = ConcurrentHashMap.newKeySet();
+
+    private final ArrayDeque<PageId> order = new ArrayDeque<>();
+
+    ScanRing(int capacity) {
+        this.capacity = capacity;
+    }
+
+    synchronized void add(PageId pid) {
+        if (this.members.add(pid)) {
+            this.order.add(pid);
+        }
     }
 
-    public T getData() {
-        return data;
+    void remove(PageId pid) {
+        if (!this.members.contains(pid)) {
+            return;
+        }
+        synchronized (this) {
+            if (this.members.remove(pid)) {
+                this.order.remove(pid);
+            }
+        }
     }
 
-    public void setData(T data) {
-        this.data = data;
+    /** Removes and returns the oldest page of the ring if the ring is full. */
+    synchronized PageId recycle() {
+        if (this.members.size() < this.capacity) {
+            return null;
+        }
+        PageId pid = this.order.poll();
+        if (pid != null) {
+            this.members.remove(pid);
+        }
+        return pid;
     }
 }
 
-class LockManager{
+/**
+ * Committed versions of pages that snapshots of read-only transactions may
+ * still need. Every commit is stamped with a timestamp from a logical clock,
+ * and a snapshot reads, of each page, the newest version committed at or
+ * before its own timestamp.
+ * <p>
+ * A commit only keeps the version it replaces while some snapshot is older
+ * than the commit, and all versions are dropped when the last snapshot ends.
+ * Reads and commits of a page are serialized on one of a fixed set of lock
+ * stripes, so snapshot reads of pages nobody committed don't allocate
+ * anything here.
+ */
+class VersionStore {
+
+    private static final int STRIPES = 64;
 
-    private ReentrantReadWriteLock rwLock;
+    /** Produces the committed image of a page that has no newer version. */
+    interface PageLoader {
+        Page load() throws TransactionAbortedException, DbException;
+    }
+
+    /** Produces the image a commit is about to replace. */
+    interface ImageSource {
+        Page get() throws DbException;
+    }
+
+    /** Makes a commit of a page durable and visible. */
+    interface PageWriter {
+        void write() throws IOException;
+    }
 
-    private Permissions perm;
+    private final AtomicLong clock = new AtomicLong(0);
 
-    private TransactionId tid;
+    // 提交时持有读锁，快照开始和结束时持有写锁，所以快照开始时没有提交进行到一半
+    private final ReentrantReadWriteLock commitLock = new ReentrantReadWriteLock();
 
-    private final int OUTTIMES = 1000;
+    // 活跃快照的时间戳和个数，只在持有commitLock时访问
+    private final TreeMap<Long, Integer> active = new TreeMap<>();
 
-    public LockManager() {
-        this.rwLock = new ReentrantReadWriteLock();
+    private final ConcurrentHashMap<PageId, PageVersions> pages = new ConcurrentHashMap<>();
+
+    private final Object[] stripes = new Object[STRIPES];
+
+    VersionStore() {
+        for (int i = 0; i < STRIPES; i++) {
+            this.stripes[i] = new Object();
+        }
     }
 
-    public void readLock() throws InterruptedException {
-        long stime = System.currentTimeMillis();
-        while(!this.rwLock.readLock().tryLock()){
-            long curtime = System.currentTimeMillis();
-            if(curtime - stime > OUTTIMES){
-                throw new InterruptedException();
-            }
+    private Object stripeOf(PageId pid) {
+        int h = pid.hashCode();
+        h ^= (h >>> 16);
+        return this.stripes[h & (STRIPES - 1)];
+    }
+
+    /** @return the timestamp of a new snapshot */
+    long openSnapshot() {
+        this.commitLock.writeLock().lock();
+        try {
+            long ts = this.clock.get();
+            this.active.merge(ts, 1, Integer::sum);
+            return ts;
+        } finally {
+            this.commitLock.writeLock().unlock();
         }
-        this.rwLock.readLock().lock();
     }
 
-    public void writeLock() throws InterruptedException {
-        long stime = System.currentTimeMillis();
-        while(!this.rwLock.writeLock().tryLock()){
-            long curtime = System.currentTimeMillis();
-            if(curtime - stime > OUTTIMES){
-                throw new InterruptedException();
+    void closeSnapshot(long ts) {
+        this.commitLock.writeLock().lock();
+        try {
+            this.active.computeIfPresent(ts, (k, n) -> n == 1 ? null : n - 1);
+            if (this.active.isEmpty()) {
+                this.pages.clear();
             }
+        } finally {
+            this.commitLock.writeLock().unlock();
         }
-        this.rwLock.writeLock().lock();
     }
 
-    public void setPermAndTransactionId(Permissions perm, TransactionId tid){
-        this.perm = perm;
-        this.tid = tid;
+    /**
+     * Starts a commit. Must be followed by {@link #endCommit()}.
+     *
+     * @return the commit's timestamp
+     */
+    long beginCommit() {
+        this.commitLock.readLock().lock();
+        return this.clock.incrementAndGet();
     }
 
-    public TransactionId getTid(){
-        return this.tid;
+    void endCommit() {
+        this.commitLock.readLock().unlock();
     }
 
-    public Permissions getPerm(){
-        return this.perm;
+    /**
+     * Commits one page at the given timestamp. If an active snapshot may
+     * still read the version being replaced, it is kept.
+     *
+     * @param before the committed image the commit replaces
+     * @param writer makes the new version durable and the page's committed
+     *   image
+     */
+    void commit(PageId pid, long ts, ImageSource before, PageWriter writer)
+            throws IOException, DbException {
+        if (this.active.isEmpty()) {
+            writer.write();
+            return;
+        }
+        synchronized (this.stripeOf(pid)) {
+            Page old = before.get();
+            writer.write();
+            this.pages.computeIfAbsent(pid, k -> new PageVersions()).retire(old, ts, this.active.firstKey());
+        }
     }
 
-    public void unlock(){
-        if(Permissions.READ_ONLY.equals(this.perm)){
-            this.rwLock.readLock().unlock();
-        }else if(Permissions.READ_WRITE.equals(this.perm)){
-            this.rwLock.writeLock().unlock();
+    /**
+     * @return the version of a page visible to a snapshot; loaded with the
+     *   loader if no commit since the snapshot started replaced it
+     */
+    Page read(PageId pid, long snapshot, PageLoader loader)
+            throws TransactionAbortedException, DbException {
+        synchronized (this.stripeOf(pid)) {
+            PageVersions versions = this.pages.get(pid);
+            if (versions == null || versions.committedAt <= snapshot) {
+                return loader.load();
+            }
+            Page image = versions.visibleAt(snapshot);
+            if (image == null) {
+                throw new DbException("no version of " + pid + " is visible at " + snapshot);
+            }
+            return image;
         }
     }
 
-    public void lockUpgrade() throws InterruptedException {
-        this.perm = Permissions.READ_WRITE;
-        this.rwLock = new ReentrantReadWriteLock();
-        this.writeLock();
-    }
+    /**
+     * The old versions of one page, oldest first. Each is valid from its own
+     * timestamp until the next one's, the last one until committedAt.
+     */
+    private static class PageVersions {
+        // 当前已提交版本的时间戳，0表示在所有活跃快照开始之前
+        long committedAt;
+        final ArrayList<Long> timestamps = new ArrayList<>();
+        final ArrayList<Page> images = new ArrayList<>();
+
+        void retire(Page image, long ts, long oldestSnapshot) {
+            this.timestamps.add(this.committedAt);
+            this.images.add(image);
+            this.committedAt = ts;
+            // 最老的快照都已经看不到的版本可以丢掉了
+            while (!this.timestamps.isEmpty()) {
+                long end = this.timestamps.size() > 1 ? this.timestamps.get(1) : this.committedAt;
+                if (end > oldestSnapshot) {
+                    break;
+                }
+                this.timestamps.remove(0);
+                this.images.remove(0);
+            }
+        }
 
-    public void resetLock(){
-        this.rwLock = new ReentrantReadWriteLock();
+        Page visibleAt(long snapshot) {
+            for (int i = this.timestamps.size() - 1; i >= 0; i--) {
+                if (this.timestamps.get(i) <= snapshot) {
+                    return this.images.get(i);
+                }
+            }
+            return null;
+        }
     }
-}
\ No newline at end of file
+}
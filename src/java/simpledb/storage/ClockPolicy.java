@@ -0,0 +1,110 @@
+package simpledb.storage;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * CLOCK (second chance) replacement. A hit only sets the page's reference
+ * bit; the clock hand sweeps the evictable pages, clearing reference bits
+ * until it finds a page whose bit is already clear.
+ * <p>
+ * Pages that become non-evictable or are removed are dropped from the
+ * clock lazily, when the hand reaches them, so every operation is
+ * amortized constant time.
+ */
+public class ClockPolicy implements ReplacementPolicy {
+
+    private final Map<PageId,Frame> frames = new HashMap<>();
+
+    // 时钟：队头就是指针当前指向的位置
+    private final ArrayDeque<Frame> clock = new ArrayDeque<>();
+
+    @Override
+    public void pageAdded(PageId pid) {
+        Frame frame = new Frame(pid);
+        Frame old = this.frames.put(pid, frame);
+        if (old != null) {
+            old.removed = true;
+        }
+        this.enqueue(frame);
+    }
+
+    @Override
+    public void pageAccessed(PageId pid) {
+        Frame frame = this.frames.get(pid);
+        if (frame != null) {
+            frame.referenced = true;
+        }
+    }
+
+    @Override
+    public void pageRemoved(PageId pid) {
+        Frame frame = this.frames.remove(pid);
+        if (frame != null) {
+            frame.removed = true;
+        }
+    }
+
+    @Override
+    public void setEvictable(PageId pid, boolean evictable) {
+        Frame frame = this.frames.get(pid);
+        if (frame == null) {
+            return;
+        }
+        frame.evictable = evictable;
+        if (evictable && !frame.inClock) {
+            this.enqueue(frame);
+        }
+    }
+
+    @Override
+    public PageId evict() {
+        // 每个frame最多被跳过一次引用位，因此最多转两圈
+        int budget = 2 * this.clock.size();
+        while (budget-- > 0) {
+            Frame frame = this.clock.poll();
+            if (frame == null) {
+                return null;
+            }
+            if (frame.removed || !frame.evictable) {
+                frame.inClock = false;
+                continue;
+            }
+            if (frame.referenced) {
+                frame.referenced = false;
+                this.clock.add(frame);
+                continue;
+            }
+            frame.inClock = false;
+            this.frames.remove(frame.pid);
+            return frame.pid;
+        }
+        return null;
+    }
+
+    @Override
+    public void unevict(PageId pid) {
+        // 不在时钟里，setEvictable(pid, true)时再放回去
+        Frame frame = new Frame(pid);
+        frame.evictable = false;
+        this.frames.put(pid, frame);
+    }
+
+    private void enqueue(Frame frame) {
+        frame.inClock = true;
+        this.clock.add(frame);
+    }
+
+    private static class Frame {
+        final PageId pid;
+        boolean referenced;
+        boolean evictable = true;
+        boolean removed;
+        boolean inClock;
+
+        Frame(PageId pid) {
+            this.pid = pid;
+        }
+    }
+}
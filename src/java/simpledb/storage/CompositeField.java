@@ -0,0 +1,131 @@
+package simpledb.storage;
+
+import simpledb.execution.Predicate;
+import simpledb.common.Type;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * Instance of Field that stores an ordered list of fields, used as the key of
+ * an index on several columns. Composite fields are ordered lexicographically.
+ * <p>
+ * Only as many leading fields are compared as the shorter of the two values has,
+ * so a value with fewer fields compares equal to every longer value it is a
+ * prefix of. This is what lets an index lookup on the leading columns of a key
+ * find the whole range of keys that start with them.
+ */
+public class CompositeField implements Field {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Field[] fields;
+
+    /**
+     * Constructor.
+     *
+     * @param fields The fields of this value, most significant first.
+     */
+    public CompositeField(Field... fields) {
+        if (fields.length == 0)
+            throw new IllegalArgumentException("a composite field needs at least one field");
+        this.fields = fields.clone();
+    }
+
+    /**
+     * @return the number of fields in this value
+     */
+    public int numFields() {
+        return fields.length;
+    }
+
+    /**
+     * @return the i-th field of this value
+     */
+    public Field getField(int i) {
+        return fields[i];
+    }
+
+    /**
+     * @return the value made of the first n fields of this one
+     */
+    public CompositeField prefix(int n) {
+        return new CompositeField(Arrays.copyOf(fields, n));
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder("(");
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0)
+                sb.append(", ");
+            sb.append(fields[i]);
+        }
+        return sb.append(")").toString();
+    }
+
+    public int hashCode() {
+        return Arrays.hashCode(fields);
+    }
+
+    public boolean equals(Object field) {
+        if (!(field instanceof CompositeField)) return false;
+        return Arrays.equals(fields, ((CompositeField) field).fields);
+    }
+
+    /**
+     * Writes each field in turn.
+     */
+    public void serialize(DataOutputStream dos) throws IOException {
+        for (Field f : fields) {
+            f.serialize(dos);
+        }
+    }
+
+    /**
+     * Compare the specified field to the value of this Field, over the leading
+     * fields the two values have in common.
+     * Return semantics are as specified by Field.compare
+     *
+     * @throws IllegalCastException if val is not a CompositeField
+     * @see Field#compare
+     */
+    public boolean compare(Predicate.Op op, Field val) {
+
+        CompositeField cVal = (CompositeField) val;
+        int cmp = 0;
+        int n = Math.min(fields.length, cVal.fields.length);
+        for (int i = 0; i < n && cmp == 0; i++) {
+            if (fields[i].compare(Predicate.Op.LESS_THAN, cVal.fields[i]))
+                cmp = -1;
+            else if (fields[i].compare(Predicate.Op.GREATER_THAN, cVal.fields[i]))
+                cmp = 1;
+        }
+
+        switch (op) {
+            case EQUALS:
+            case LIKE:
+                return cmp == 0;
+            case NOT_EQUALS:
+                return cmp != 0;
+            case GREATER_THAN:
+                return cmp > 0;
+            case GREATER_THAN_OR_EQ:
+                return cmp >= 0;
+            case LESS_THAN:
+                return cmp < 0;
+            case LESS_THAN_OR_EQ:
+                return cmp <= 0;
+        }
+
+        return false;
+    }
+
+    /**
+     * Return the Type of this field. A composite value has no type of its own.
+     *
+     * @return the type of its first field
+     */
+    public Type getType() {
+        return fields[0].getType();
+    }
+}
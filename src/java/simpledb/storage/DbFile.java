@@ -93,4 +93,11 @@ public interface DbFile {
      * @return TupleDesc of this DbFile.
      */
     TupleDesc getTupleDesc();
+
+    /**
+     * Releases the operating system resources held for this DbFile, such as
+     * its open file channel. Called by the Catalog when it drops the file.
+     * The file may still be used afterwards; it is reopened on demand.
+     */
+    void close() throws IOException;
 }
@@ -0,0 +1,131 @@
+package simpledb.storage;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+
+/**
+ * DbFileChannel keeps one FileChannel open on the file backing a DbFile for
+ * the lifetime of the DbFile, instead of opening and closing the file for
+ * every page. All reads and writes are positional, so threads reading
+ * different pages never contend for a shared file pointer.
+ * <p>
+ * The channel is opened on first use. FileChannels are closed when a thread
+ * is interrupted in the middle of an I/O operation, so a closed channel is
+ * transparently reopened.
+ */
+public class DbFileChannel {
+
+    private final File file;
+
+    private volatile FileChannel channel;
+
+    public DbFileChannel(File file) {
+        this.file = file;
+    }
+
+    private FileChannel channel() throws IOException {
+        FileChannel ch = this.channel;
+        if (ch == null || !ch.isOpen()) {
+            synchronized (this) {
+                ch = this.channel;
+                if (ch == null || !ch.isOpen()) {
+                    ch = new RandomAccessFile(this.file, "rw").getChannel();
+                    this.channel = ch;
+                }
+            }
+        }
+        return ch;
+    }
+
+    /**
+     * Reads data.length bytes starting at the given position.
+     *
+     * @throws EOFException if the file ends before data is filled
+     */
+    public void read(byte[] data, long position) throws IOException {
+        try {
+            this.readFully(data, position);
+        } catch (ClosedChannelException e) {
+            this.readFully(data, position);
+        }
+    }
+
+    private void readFully(byte[] data, long position) throws IOException {
+        FileChannel ch = this.channel();
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        while (buf.hasRemaining()) {
+            int n = ch.read(buf, position + buf.position());
+            if (n < 0) {
+                throw new EOFException("read past end of " + this.file);
+            }
+        }
+    }
+
+    /** Writes all of data starting at the given position. */
+    public void write(byte[] data, long position) throws IOException {
+        try {
+            this.writeFully(data, position);
+        } catch (ClosedChannelException e) {
+            this.writeFully(data, position);
+        }
+    }
+
+    private void writeFully(byte[] data, long position) throws IOException {
+        FileChannel ch = this.channel();
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        while (buf.hasRemaining()) {
+            ch.write(buf, position + buf.position());
+        }
+    }
+
+    /**
+     * Appends data at the current end of the file.
+     *
+     * @return the position the data was written at
+     */
+    public synchronized long append(byte[] data) throws IOException {
+        long position = this.size();
+        this.write(data, position);
+        return position;
+    }
+
+    /** @return the current size of the file in bytes */
+    public long size() throws IOException {
+        try {
+            return this.channel().size();
+        } catch (ClosedChannelException e) {
+            return this.channel().size();
+        }
+    }
+
+    /**
+     * Maps the first size bytes of the file into memory, read only. Writes
+     * made through this channel later are visible through the mapping.
+     */
+    public MappedByteBuffer map(long size) throws IOException {
+        return this.channel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+    }
+
+    /** Forces everything written to the file, and its size, to disk. */
+    public void force() throws IOException {
+        try {
+            this.channel().force(true);
+        } catch (ClosedChannelException e) {
+            this.channel().force(true);
+        }
+    }
+
+    /** Closes the channel; it is reopened if the file is used again. */
+    public synchronized void close() throws IOException {
+        if (this.channel != null) {
+            this.channel.close();
+            this.channel = null;
+        }
+    }
+}
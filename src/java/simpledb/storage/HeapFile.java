@@ -1,5 +1,6 @@
 package simpledb.storage;
 
+import simpledb.common.AccessHint;
 import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Debug;
@@ -12,6 +13,8 @@ import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.util.*;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -29,16 +32,31 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  */
 public class HeapFile implements DbFile {
 
+    /** Number of pages bulkInsert appends to the file at a time. */
+    public static final int EXTENT_PAGES = 16;
+
     // User defined variable
 
     private File backedFile;
 
+    // 一直打开着的文件通道，读写page时不用每次都打开关闭文件
+    private final DbFileChannel channel;
+
+    // 内存映射模式下直接从映射的内存中读page
+    private final boolean memoryMapped;
+
+    // 当前映射的区域，文件变长之后读到映射区域外的page时重新映射
+    private volatile MappedByteBuffer mapped;
+
     private TupleDesc td;
 
     //private Map<PageId, ReentrantReadWriteLock> pageRWLock;
 
     private Lock tableLock;
 
+    // 记录哪些page还有空的slot，插入时不用从头扫描所有page
+    private final FreeSpaceMap freeSpaceMap;
+
     /**
      * Constructs a heap file backed by the specified file.
      * 
@@ -47,11 +65,33 @@ public class HeapFile implements DbFile {
      *            file.
      */
     public HeapFile(File f, TupleDesc td) {
+        this(f, td, false);
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file, optionally reading
+     * pages through a memory mapping of the file. In that mode readPage does
+     * not copy the page out of the OS page cache, and the returned HeapPage
+     * decodes its tuples on first access. It is meant for read-mostly tables;
+     * writes still go through the file and become visible in the mapping.
+     *
+     * @param f
+     *            the file that stores the on-disk backing store for this heap
+     *            file.
+     * @param td
+     *            the schema of the tuples stored in the file.
+     * @param memoryMapped
+     *            true to read pages through a memory mapping of the file.
+     */
+    public HeapFile(File f, TupleDesc td, boolean memoryMapped) {
         // some code goes here
         this.backedFile = f;
+        this.channel = new DbFileChannel(f);
+        this.memoryMapped = memoryMapped;
         this.td = td;
         //this.pageRWLock = new HashMap<>();
         this.tableLock = new ReentrantLock();
+        this.freeSpaceMap = new FreeSpaceMap();
     }
 
     /**
@@ -64,6 +104,13 @@ public class HeapFile implements DbFile {
         return this.backedFile;
     }
 
+    /**
+     * @return true if pages of this HeapFile are read through a memory mapping
+     */
+    public boolean isMemoryMapped() {
+        return this.memoryMapped;
+    }
+
     /**
      * Returns an ID uniquely identifying this HeapFile. Implementation note:
      * you will need to generate this tableid somewhere to ensure that each
@@ -105,33 +152,102 @@ public class HeapFile implements DbFile {
         if(pid.getTableId() != this.getId()){
             throw new IllegalArgumentException();
         }
-        //ReentrantReadWriteLock lock = this.getPageRWLock(pid);
         int pageSize = BufferPool.getPageSize();
-        int offset = pid.getPageNumber() * pageSize;
-        if(this.getFile().length() < offset + pageSize){
-            throw new IllegalArgumentException();
-        }
-        byte[] data = new byte[pageSize];
-        RandomAccessFile raf = null;
+        long offset = (long) pid.getPageNumber() * pageSize;
         try {
-            //lock.readLock().lock();
-            raf = new RandomAccessFile(this.getFile(),"r");
-            raf.seek(offset);
-            raf.read(data);
-            return new HeapPage(new HeapPageId(pid.getTableId(),pid.getPageNumber()),data);
-        } catch (Exception ignored) {
-            ignored.printStackTrace();
+            if(this.channel.size() < offset + pageSize){
+                throw new IllegalArgumentException();
+            }
+            // 一个MappedByteBuffer最多映射Integer.MAX_VALUE个字节，之后的page按普通方式读
+            if(this.memoryMapped && offset + pageSize <= Integer.MAX_VALUE){
+                ByteBuffer buf = this.mappedRegion(offset + pageSize).duplicate();
+                buf.position((int) offset);
+                buf.limit((int) offset + pageSize);
+                return this.loaded(new HeapPage(new HeapPageId(pid.getTableId(),pid.getPageNumber()),buf.slice()));
+            }
+            byte[] data = new byte[pageSize];
+            this.channel.read(data, offset);
+            return this.loaded(new HeapPage(new HeapPageId(pid.getTableId(),pid.getPageNumber()),data));
+        } catch (IOException e) {
+            e.printStackTrace();
             throw new IllegalArgumentException();
-        }finally {
-            if (raf != null){
-                try {
-                    raf.close();
-                }catch (IOException ignored){
+        }
+    }
 
+    /**
+     * Records in the free space map whether a page just read from disk has
+     * room, which also corrects the map after an aborted transaction filled
+     * the page in memory.
+     */
+    private HeapPage loaded(HeapPage page) {
+        this.freeSpaceMap.update(page.getId().getPageNumber(), page.getNumEmptySlots() > 0);
+        return page;
+    }
+
+    /**
+     * Called by HeapPage when a tuple is inserted into or deleted from one of
+     * the pages of this file.
+     *
+     * @param pageNo the number of the page that changed
+     * @param hasSpace whether the page has an empty slot left
+     */
+    void freeSpaceChanged(int pageNo, boolean hasSpace) {
+        this.freeSpaceMap.update(pageNo, hasSpace);
+    }
+
+    /**
+     * Returns the number of a page that probably has an empty slot, or -1 if
+     * there is none. Builds the free space map from the page headers on disk
+     * the first time it is needed.
+     */
+    private int findFreePage() throws IOException {
+        if (!this.freeSpaceMap.isBuilt()) {
+            this.buildFreeSpaceMap();
+        }
+        return this.freeSpaceMap.next(this.numPages());
+    }
+
+    /**
+     * 只读每个page的header来重建free space map，不经过BufferPool，也不加锁。
+     * BufferPool里被修改过的page在修改时已经更新了free space map，以那些记录为准
+     */
+    private void buildFreeSpaceMap() throws IOException {
+        int pageSize = BufferPool.getPageSize();
+        int numSlots = HeapPage.slotsPerPage(this.td);
+        byte[] header = new byte[(numSlots + 7) / 8];
+        int numPages = this.numPages();
+        BitSet free = new BitSet(numPages);
+        for (int i = 0; i < numPages; i++) {
+            this.channel.read(header, (long) i * pageSize);
+            int used = 0;
+            for (byte b : header) {
+                used += Integer.bitCount(b & 0xFF);
+            }
+            // header最后一个字节里多出来的bit始终是0
+            if (used < numSlots) {
+                free.set(i);
+            }
+        }
+        this.freeSpaceMap.build(free);
+    }
+
+    /**
+     * Returns a mapping of the file covering at least the first length bytes,
+     * remapping the whole file if it has grown past the current mapping. A
+     * mapping covers at most the first Integer.MAX_VALUE bytes of the file.
+     */
+    private MappedByteBuffer mappedRegion(long length) throws IOException {
+        MappedByteBuffer region = this.mapped;
+        if (region == null || region.capacity() < length) {
+            synchronized (this) {
+                region = this.mapped;
+                if (region == null || region.capacity() < length) {
+                    region = this.channel.map(Math.min(this.channel.size(), Integer.MAX_VALUE));
+                    this.mapped = region;
                 }
             }
-            //lock.readLock().unlock();
         }
+        return region;
     }
 
     // see DbFile.java for javadocs
@@ -142,24 +258,8 @@ public class HeapFile implements DbFile {
         if(pid.getTableId() != this.getId()){
             throw new IllegalArgumentException();
         }
-        int offset = pid.getPageNumber()*BufferPool.getPageSize();
-        //ReentrantReadWriteLock lock = this.getPageRWLock(pid);
-        byte[] data = page.getPageData();
-        RandomAccessFile raf = null;
-        try {
-            //lock.writeLock().lock();
-            raf = new RandomAccessFile(this.getFile(),"rw");
-            raf.seek(offset);
-            raf.write(data);
-        } catch (Exception ignored) {
-            ignored.printStackTrace();
-            throw new IllegalArgumentException();
-        }finally {
-            if(raf != null){
-                raf.close();
-            }
-            //lock.writeLock().unlock();
-        }
+        long offset = (long) pid.getPageNumber() * BufferPool.getPageSize();
+        this.channel.write(page.getPageData(), offset);
     }
 
     /**
@@ -168,7 +268,11 @@ public class HeapFile implements DbFile {
     public int numPages() {
         // some code goes here
         int pageSize = BufferPool.getPageSize();
-        return (int)(this.getFile().length()/pageSize);
+        try {
+            return (int)(this.channel.size()/pageSize);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
     }
 
     // see DbFile.java for javadocs
@@ -181,20 +285,25 @@ public class HeapFile implements DbFile {
         boolean inserted = false;
         HeapPage page = null;
         while(!inserted){
-            PageId pid = this.findEmptyPage(tid);
-            if(pid == null){
+            int pageNo = this.findFreePage();
+            if(pageNo == -1){
                 // 新建一个新的page
                 this.tableLock.lock();
-                pid = this.findEmptyPage(tid);
-                if (pid == null){
-                    pid = new HeapPageId(this.getId(),this.numPages());
-                    page = new HeapPage((HeapPageId) pid,HeapPage.createEmptyPageData());
-                    this.writePage(page);
+                try {
+                    pageNo = this.findFreePage();
+                    if (pageNo == -1){
+                        pageNo = this.numPages();
+                        this.writePage(new HeapPage(new HeapPageId(this.getId(),pageNo),HeapPage.createEmptyPageData()));
+                        this.freeSpaceMap.update(pageNo, true);
+                    }
+                } finally {
+                    this.tableLock.unlock();
                 }
-                this.tableLock.unlock();
             }
-            page = (HeapPage) Database.getBufferPool().getPage(tid,pid,Permissions.READ_WRITE);
+            page = (HeapPage) Database.getBufferPool().getPage(tid,new HeapPageId(this.getId(),pageNo),Permissions.READ_WRITE);
             if(page.getNumEmptySlots()==0){
+                // free space map里的记录过时了
+                this.freeSpaceMap.update(pageNo, false);
                 continue;
             }
             page.insertTuple(t);
@@ -204,16 +313,126 @@ public class HeapFile implements DbFile {
         // not necessary for lab1
     }
 
-    private PageId findEmptyPage(TransactionId tid) throws TransactionAbortedException, DbException, IOException {
+    /**
+     * Appends tuples to this file on behalf of transaction tid. The tuples
+     * are packed into new pages in memory, and the pages are written to disk
+     * directly, EXTENT_PAGES at a time, after logging them; they do not go
+     * through the buffer pool. Pages of an extent left unused are empty and
+     * are used by later inserts.
+     * <p>
+     * If there are no more tuples than fit on one page, they are inserted
+     * through the buffer pool as usual instead, so small inserts do not grow
+     * the file by a whole extent.
+     *
+     * @param tid the transaction adding the tuples
+     * @param tuples the tuples to add, already opened
+     * @return the number of tuples added
+     * @see BufferPool#bulkInsertTuples
+     */
+    public int bulkInsert(TransactionId tid, DbFileIterator tuples)
+            throws DbException, IOException, TransactionAbortedException {
+        BufferPool bufferPool = Database.getBufferPool();
+        // 先读一页的tuple，装不满一页的话走普通的插入
+        int slots = HeapPage.slotsPerPage(this.td);
+        List<Tuple> head = new ArrayList<>();
+        while (head.size() <= slots && tuples.hasNext()) {
+            head.add(tuples.next());
+        }
+        if (head.size() <= slots) {
+            for (Tuple t : head) {
+                bufferPool.insertTuple(tid, this.getId(), t);
+            }
+            return head.size();
+        }
+
+        Iterator<Tuple> buffered = head.iterator();
+        Tuple next = buffered.next();
+        int count = 0;
+        while (next != null) {
+            int start = this.allocateExtent(tid);
+            List<HeapPage> pages = new ArrayList<>();
+            while (next != null && pages.size() < EXTENT_PAGES) {
+                HeapPage page = new HeapPage(new HeapPageId(this.getId(), start + pages.size()),
+                        HeapPage.createEmptyPageData());
+                while (next != null && page.getNumEmptySlots() > 0) {
+                    page.insertTuple(next);
+                    count++;
+                    next = buffered.hasNext() ? buffered.next() : tuples.hasNext() ? tuples.next() : null;
+                }
+                pages.add(page);
+            }
+            this.writeExtent(tid, start, pages);
+        }
+        return count;
+    }
+
+    /**
+     * Appends EXTENT_PAGES empty pages to the file, write locked by tid.
+     * The locks are taken before tableLock, since waiting for them while
+     * holding it would block every insert into the file; if the file grew in
+     * the meantime, they are released again and the next pages are tried.
+     *
+     * @return the number of the first page of the extent
+     */
+    private int allocateExtent(TransactionId tid) throws IOException, TransactionAbortedException {
         BufferPool bufferPool = Database.getBufferPool();
-        for(int i = 0 ; i < this.numPages() ; i++){
-            PageId pid = new HeapPageId(this.getId(),i);
-            HeapPage page = (HeapPage) bufferPool.getPage(tid,pid,Permissions.READ_ONLY);
-            if(page.getNumEmptySlots()!=0){
-                return pid;
+        while (true) {
+            int start = this.numPages();
+            for (int i = 0; i < EXTENT_PAGES; i++) {
+                bufferPool.lockForBulkInsert(tid, new HeapPageId(this.getId(), start + i));
+            }
+            this.tableLock.lock();
+            try {
+                // tableLock只用来保护文件长度的增长
+                if (this.numPages() == start) {
+                    int pageSize = BufferPool.getPageSize();
+                    this.channel.write(new byte[EXTENT_PAGES * pageSize], (long) start * pageSize);
+                    return start;
+                }
+            } finally {
+                this.tableLock.unlock();
+            }
+            // 别的插入在这期间新建了page，这些page上的锁没有读写过任何数据，可以直接放掉
+            for (int i = 0; i < EXTENT_PAGES; i++) {
+                bufferPool.unsafeReleasePage(tid, new HeapPageId(this.getId(), start + i));
             }
         }
-        return null;
+    }
+
+    /**
+     * Logs the filled pages at the start of an extent and writes them with
+     * one sequential write, then hands the free slots of the last of them
+     * and the rest of the extent over to normal inserts.
+     */
+    private void writeExtent(TransactionId tid, int start, List<HeapPage> pages) throws IOException {
+        BufferPool bufferPool = Database.getBufferPool();
+        int pageSize = BufferPool.getPageSize();
+        byte[] extent = new byte[pages.size() * pageSize];
+        List<HeapPageId> written = new ArrayList<>();
+        for (int i = 0; i < pages.size(); i++) {
+            HeapPage page = pages.get(i);
+            // 先写日志，before image是空page
+            Database.getLogFile().logWrite(tid, page.getBeforeImage(), page);
+            System.arraycopy(page.getPageData(), 0, extent, i * pageSize, pageSize);
+            written.add(page.getId());
+        }
+        Database.getLogFile().force();
+        // 先登记再写，快照在提交之前一直把这些page当作空page
+        bufferPool.bulkPagesWritten(tid, written);
+        this.channel.write(extent, (long) start * pageSize);
+        for (HeapPageId pid : written) {
+            Database.getLogFile().pageWritten(pid);
+        }
+        // 最后一个page可能没有装满，写回之后把剩下的slot登记给普通的插入使用
+        HeapPage last = pages.get(pages.size() - 1);
+        if (last.getNumEmptySlots() > 0) {
+            this.freeSpaceMap.update(start + pages.size() - 1, true);
+        }
+        // extent中没有用到的page是空的，放开给其他插入使用
+        for (int i = pages.size(); i < EXTENT_PAGES; i++) {
+            bufferPool.unsafeReleasePage(tid, new HeapPageId(this.getId(), start + i));
+            this.freeSpaceMap.update(start + i, true);
+        }
     }
 
     // see DbFile.java for javadocs
@@ -226,6 +445,13 @@ public class HeapFile implements DbFile {
         // not necessary for lab1
     }
 
+    // see DbFile.java for javadocs
+    public void close() throws IOException {
+        // 映射的内存没法显式释放，去掉引用之后由GC回收
+        this.mapped = null;
+        this.channel.close();
+    }
+
     // see DbFile.java for javadocs
     public DbFileIterator iterator(TransactionId tid) {
         // some code goes here
@@ -239,6 +465,12 @@ class HeapFileIterator extends AbstractDbFileIterator {
     Iterator<Tuple> it = null;
     private int pageNo;
 
+    // 已经发出预读请求的最大页号
+    private int prefetchedPageNo;
+
+    // open时文件的页数，扫描到最后一页时再重新检查一次文件是否变长了
+    private int numPages;
+
     final TransactionId tid;
     final HeapFile f;
 
@@ -258,7 +490,10 @@ class HeapFileIterator extends AbstractDbFileIterator {
      */
     public void open() throws DbException, TransactionAbortedException{
         this.pageNo = 0;
-        HeapPage heapPage = (HeapPage) Database.getBufferPool().getPage(this.tid, new HeapPageId(this.f.getId(), this.pageNo), Permissions.READ_ONLY);
+        this.prefetchedPageNo = 0;
+        this.numPages = this.f.numPages();
+        this.prefetchAhead();
+        HeapPage heapPage = (HeapPage) Database.getBufferPool().getPage(this.tid, new HeapPageId(this.f.getId(), this.pageNo), Permissions.READ_ONLY, AccessHint.SCAN);
         it = heapPage.iterator();
     }
 
@@ -273,9 +508,10 @@ class HeapFileIterator extends AbstractDbFileIterator {
         if (it != null && !it.hasNext()){
             it = null;
         }
-        while((it == null || !it.hasNext())&& this.pageNo < this.f.numPages() - 1){
-
-            HeapPage heapPage = (HeapPage) Database.getBufferPool().getPage(this.tid, new HeapPageId(this.f.getId(), ++this.pageNo), Permissions.READ_ONLY);
+        while((it == null || !it.hasNext())&& this.hasNextPage()){
+            ++this.pageNo;
+            this.prefetchAhead();
+            HeapPage heapPage = (HeapPage) Database.getBufferPool().getPage(this.tid, new HeapPageId(this.f.getId(), this.pageNo), Permissions.READ_ONLY, AccessHint.SCAN);
             it = heapPage.iterator();
         }
         if (it == null || !it.hasNext()){
@@ -284,6 +520,26 @@ class HeapFileIterator extends AbstractDbFileIterator {
         return it.next();
     }
 
+    private boolean hasNextPage() {
+        if (this.pageNo >= this.numPages - 1) {
+            this.numPages = this.f.numPages();
+        }
+        return this.pageNo < this.numPages - 1;
+    }
+
+    /**
+     * Asks the buffer pool to read the pages following the current page in
+     * the background, up to the prefetch window.
+     */
+    private void prefetchAhead() {
+        PagePrefetcher prefetcher = Database.getBufferPool().getPrefetcher();
+        int last = Math.min(this.pageNo + prefetcher.getWindow(), this.numPages - 1);
+        for (int i = Math.max(this.prefetchedPageNo, this.pageNo) + 1; i <= last; i++) {
+            prefetcher.prefetch(new HeapPageId(this.f.getId(), i));
+        }
+        this.prefetchedPageNo = Math.max(this.prefetchedPageNo, last);
+    }
+
     /**
      * rewind this iterator back to the beginning of the tuples
      */
@@ -302,3 +558,69 @@ class HeapFileIterator extends AbstractDbFileIterator {
     }
 }
 
+/**
+ * FreeSpaceMap remembers which pages of a HeapFile have at least one empty
+ * slot, so that an insert can go straight to such a page instead of scanning
+ * the file. It is only a hint: a page it returns may have filled up since,
+ * and the caller is expected to report that with update.
+ */
+class FreeSpaceMap {
+
+    // 第i位为1表示第i个page还有空的slot
+    private final BitSet free;
+
+    // build之前收到的更新，build时以这些记录为准
+    private BitSet updated;
+
+    private boolean built;
+
+    // 上一次返回的page，下一次从这里开始找，让插入集中在同一个page上
+    private int cursor;
+
+    FreeSpaceMap() {
+        this.free = new BitSet();
+        this.updated = new BitSet();
+    }
+
+    synchronized boolean isBuilt() {
+        return this.built;
+    }
+
+    /**
+     * Fills in the map from the state of the pages on disk, keeping whatever
+     * has been reported through update since the map was created.
+     */
+    synchronized void build(BitSet onDisk) {
+        if (this.built) {
+            return;
+        }
+        BitSet fromDisk = (BitSet) onDisk.clone();
+        fromDisk.andNot(this.updated);
+        this.free.or(fromDisk);
+        this.updated = null;
+        this.built = true;
+    }
+
+    synchronized void update(int pageNo, boolean hasSpace) {
+        this.free.set(pageNo, hasSpace);
+        if (!this.built) {
+            this.updated.set(pageNo);
+        }
+    }
+
+    /**
+     * @return the number of a page below numPages that has an empty slot,
+     *   or -1 if there is none
+     */
+    synchronized int next(int numPages) {
+        int pageNo = this.free.nextSetBit(this.cursor);
+        if (pageNo == -1 || pageNo >= numPages) {
+            pageNo = this.free.nextSetBit(0);
+        }
+        if (pageNo == -1 || pageNo >= numPages) {
+            return -1;
+        }
+        this.cursor = pageNo;
+        return pageNo;
+    }
+}
@@ -9,6 +9,7 @@ import simpledb.transaction.TransactionId;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
@@ -26,10 +27,17 @@ public class HeapPage implements Page {
     final Tuple[] tuples;
     final int numSlots;
     byte[] oldData;
-    private final Byte oldDataLock= (byte) 0;
+    private final Object oldDataLock = new Object();
 
     // User defined variable
-    private Stack<TransactionId> dirtyStack;
+    // 最后一次把该page标记为脏的事务，page是干净的时候为null
+    private volatile TransactionId dirtier;
+
+    // page的原始数据，tuple和tuple的字段在第一次被访问时才从这里解码
+    private final ByteBuffer data;
+
+    // data是否可能被其他人修改（比如内存映射文件中的一段在page写回时会变）
+    private final boolean shared;
 
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
@@ -45,30 +53,43 @@ public class HeapPage implements Page {
      * <p>
      * @see Database#getCatalog
      * @see Catalog#getTupleDesc
+     * <p>
+     * Only the header is parsed up front. Tuples, and the fields within them,
+     * are decoded from data the first time they are accessed, so data is kept
+     * by the page and must not be modified afterwards.
+     *
      * @see BufferPool#getPageSize()
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, ByteBuffer.wrap(data), false);
+    }
+
+    /**
+     * Create a HeapPage over the raw bytes of a page, such as a slice of a
+     * memory-mapped HeapFile. The format is the same as for
+     * {@link #HeapPage(HeapPageId, byte[])}, but only the header is copied out
+     * of the buffer: each tuple is decoded the first time it is accessed, and
+     * the before image is captured when the page is first marked dirty.
+     * <p>
+     * The contents of the buffer must not change while the page is in use,
+     * except by writing this page back to disk.
+     *
+     * @param id the id of the page
+     * @param data the bytes of the page, starting at position 0
+     */
+    public HeapPage(HeapPageId id, ByteBuffer data) {
+        this(id, data, true);
+    }
+
+    private HeapPage(HeapPageId id, ByteBuffer data, boolean shared) {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
-
-        // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
-        
-        tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
-        }
-        dis.close();
-
-        setBeforeImage();
+        this.header = new byte[getHeaderSize()];
+        data.duplicate().get(this.header);
+        this.tuples = new Tuple[numSlots];
+        this.data = data;
+        this.shared = shared;
     }
 
     /** Retrieve the number of tuples on this page.
@@ -76,9 +97,17 @@ public class HeapPage implements Page {
     */
     private int getNumTuples() {        
         // some code goes here
+        return slotsPerPage(Database.getCatalog().getTupleDesc(this.pid.getTableId()));
+    }
+
+    /**
+     * @return the number of tuple slots on a HeapPage of a table with the
+     *   given schema
+     */
+    static int slotsPerPage(TupleDesc td) {
         // the number of tuples is equal to: floor((BufferPool.getPageSize()*8) / (tuple size * 8 + 1))
         int pageSize = BufferPool.getPageSize();
-        int tupleSize = Database.getCatalog().getTupleDesc(this.pid.getTableId()).getSize();
+        int tupleSize = td.getSize();
         return (int)Math.floor(((double) pageSize*8)/((double) tupleSize*8+1));
     }
 
@@ -103,6 +132,9 @@ public class HeapPage implements Page {
             byte[] oldDataRef = null;
             synchronized(oldDataLock)
             {
+                if (oldData == null) {
+                    oldData = this.copyOfData();
+                }
                 oldDataRef = oldData;
             }
             return new HeapPage(pid,oldDataRef);
@@ -122,47 +154,52 @@ public class HeapPage implements Page {
     }
 
     /**
-     * @return the PageId associated with this page.
+     * Copies the bytes this page was created from.
      */
-    public HeapPageId getId() {
-    // some code goes here
-        return this.pid;
+    private byte[] copyOfData() {
+        if (!this.shared && this.data.arrayOffset() == 0
+                && this.data.array().length == this.data.capacity()) {
+            // 构造时传入的数组不会再被修改，可以直接当作before image
+            return this.data.array();
+        }
+        byte[] copy = new byte[this.data.capacity()];
+        this.data.duplicate().get(copy);
+        return copy;
     }
 
     /**
-     * Suck up tuples from the source file.
+     * Returns the tuple in slot i, decoding it from the raw page data if it
+     * has not been accessed before, or null if the slot is empty.
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
-        }
-
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
-        try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
+    public Tuple getTuple(int i) {
+        Tuple t = this.tuples[i];
+        if (t == null && this.isSlotUsed(i)) {
+            int size = this.td.getSize();
+            int offset = this.header.length + i * size;
+            if (this.shared) {
+                // data在page写回磁盘之后会变，先把这个tuple的字节复制出来
+                byte[] raw = new byte[size];
+                ByteBuffer buf = this.data.duplicate();
+                buf.position(offset);
+                buf.get(raw);
+                t = new Tuple(this.td, ByteBuffer.wrap(raw), 0);
+            } else {
+                t = new Tuple(this.td, this.data, offset);
             }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
+            t.setRecordId(new RecordId(this.pid, i));
+            this.tuples[i] = t;
         }
-
         return t;
     }
 
+    /**
+     * @return the PageId associated with this page.
+     */
+    public HeapPageId getId() {
+    // some code goes here
+        return this.pid;
+    }
+
     /**
      * Generates a byte array representing the contents of this page.
      * Used to serialize this page to disk.
@@ -205,6 +242,20 @@ public class HeapPage implements Page {
                 continue;
             }
 
+            // non-empty slot that was never decoded: copy its bytes unchanged
+            if (tuples[i] == null) {
+                byte[] raw = new byte[td.getSize()];
+                ByteBuffer buf = data.duplicate();
+                buf.position(header.length + i * td.getSize());
+                buf.get(raw);
+                try {
+                    dos.write(raw);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                continue;
+            }
+
             // non-empty slot
             for (int j=0; j<td.numFields(); j++) {
                 Field f = tuples[i].getField(j);
@@ -265,6 +316,7 @@ public class HeapPage implements Page {
         }
         this.markSlotUsed(tupleNumber,false);
         this.tuples[tupleNumber] = null;
+        this.updateFreeSpaceMap(true);
     }
 
     /**
@@ -287,17 +339,34 @@ public class HeapPage implements Page {
         t.setRecordId(new RecordId(this.getId(),slot));
         this.tuples[slot] = t;
         this.markSlotUsed(slot,true);
+        this.updateFreeSpaceMap(this.getEmptySlot() != -1);
     }
 
     private int getEmptySlot(){
-        for(int i = 0 ; i < this.numSlots ; i++){
-            if(!this.isSlotUsed(i)){
-                return i;
+        for(int word = 0 ; word * 64 < this.numSlots ; word++){
+            long free = ~this.headerWord(word) & this.slotMask(word);
+            if(free != 0){
+                return word * 64 + Long.numberOfTrailingZeros(free);
             }
         }
         return -1;
     }
 
+    /**
+     * 告诉这个page所在的HeapFile的free space map这个page还有没有空的slot
+     */
+    private void updateFreeSpaceMap(boolean hasSpace) {
+        DbFile file;
+        try {
+            file = Database.getCatalog().getDatabaseFile(this.pid.getTableId());
+        } catch (NoSuchElementException e) {
+            return;
+        }
+        if (file instanceof HeapFile) {
+            ((HeapFile) file).freeSpaceChanged(this.pid.getPageNumber(), hasSpace);
+        }
+    }
+
     /**
      * Marks this page as dirty/not dirty and record that transaction
      * that did the dirtying
@@ -305,13 +374,15 @@ public class HeapPage implements Page {
     public void markDirty(boolean dirty, TransactionId tid) {
         // some code goes here
 	// not necessary for lab1
-        if(this.dirtyStack == null){
-            this.dirtyStack = new Stack<>();
-        }
-        this.dirtyStack.remove(tid);
         if(dirty){
-            this.dirtyStack.push(tid);
+            // 第一次被修改之前，磁盘上的内容就是before image
+            synchronized (oldDataLock) {
+                if (oldData == null) {
+                    oldData = this.copyOfData();
+                }
+            }
         }
+        this.dirtier = dirty ? tid : null;
     }
 
     /**
@@ -320,10 +391,7 @@ public class HeapPage implements Page {
     public TransactionId isDirty() {
         // some code goes here
 	// Not necessary for lab1
-        if(this.dirtyStack == null || this.dirtyStack.isEmpty()){
-            return null;
-        }
-        return this.dirtyStack.pop();
+        return this.dirtier;
     }
 
     /**
@@ -331,15 +399,12 @@ public class HeapPage implements Page {
      */
     public int getNumEmptySlots() {
         // some code goes here
-        int emptyCount = 0;
-        for(byte b : header){
-            for(int i = 0 ; i < 8 ; i++){
-                if ((byte)((b >> i) & 0x1)==0){
-                    ++emptyCount;
-                }
-            }
+        // 只统计真正的slot，header最后一个字节里多出来的bit不算
+        int usedCount = 0;
+        for(int word = 0 ; word * 64 < this.numSlots ; word++){
+            usedCount += Long.bitCount(this.headerWord(word));
         }
-        return emptyCount;
+        return this.numSlots - usedCount;
     }
 
     /**
@@ -374,13 +439,68 @@ public class HeapPage implements Page {
      */
     public Iterator<Tuple> iterator() {
         // some code goes here
-        List<Tuple> tupleList= new ArrayList<>();
-        for(int i = 0 ; i < this.getNumTuples() ; i++){
-            if(this.isSlotUsed(i)){
-                tupleList.add(this.tuples[i]);
+        return new SlotIterator();
+    }
+
+    /**
+     * Returns the 64 header bits covering slots 64 * word to 64 * word + 63,
+     * with slot 64 * word in the lowest bit. Bits past the last slot are 0.
+     */
+    private long headerWord(int word) {
+        int from = word * 8;
+        int to = Math.min(from + 8, this.header.length);
+        long bits = 0;
+        for (int i = to - 1; i >= from; i--) {
+            bits = (bits << 8) | (this.header[i] & 0xFF);
+        }
+        return bits & this.slotMask(word);
+    }
+
+    /**
+     * Returns a mask of the bits of header word word that belong to slots.
+     */
+    private long slotMask(int word) {
+        int slots = this.numSlots - word * 64;
+        return slots >= 64 ? -1L : (1L << slots) - 1;
+    }
+
+    /**
+     * 直接遍历header的bitmap，每次取64个slot的bit，用numberOfTrailingZeros跳过空的slot，
+     * 不需要先把tuple复制到一个list里
+     */
+    private class SlotIterator implements Iterator<Tuple> {
+        // 当前64个slot的bitmap中还没有访问过的bit
+        private long bits;
+        private int word = -1;
+        private Tuple next;
+
+        @Override
+        public boolean hasNext() {
+            while (this.next == null) {
+                while (this.bits == 0) {
+                    if ((this.word + 1) * 64 >= numSlots) {
+                        return false;
+                    }
+                    this.word++;
+                    this.bits = headerWord(this.word);
+                }
+                int slot = this.word * 64 + Long.numberOfTrailingZeros(this.bits);
+                this.bits &= this.bits - 1;
+                // 迭代过程中tuple可能已经被删除了
+                this.next = getTuple(slot);
+            }
+            return true;
+        }
+
+        @Override
+        public Tuple next() {
+            if (!this.hasNext()) {
+                throw new NoSuchElementException();
             }
+            Tuple t = this.next;
+            this.next = null;
+            return t;
         }
-        return tupleList.iterator();
     }
 
 }
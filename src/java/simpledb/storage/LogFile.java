@@ -2,13 +2,16 @@
 package simpledb.storage;
 
 import simpledb.common.Database;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreePageId;
 import simpledb.transaction.TransactionId;
 import simpledb.common.Debug;
 
-import javax.xml.crypto.Data;
 import java.io.*;
 import java.util.*;
-import java.lang.reflect.*;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /*
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -37,6 +40,17 @@ must not be declared synchronized and must begin with a block like:
        }
     }
 </pre>
+
+<u> Group commit: </u>
+<p>
+
+Forcing the log is the expensive part of a commit, so {@link #force()}
+does not fsync the file itself: it waits for a background flusher thread,
+which forces everything appended so far with a single fsync and wakes all
+the callers whose records that covered.  Concurrent commits thus share
+fsyncs.  Callers already holding the log's monitor (checkpoints, aborts,
+recovery) force the file directly instead, since waiting would release
+the monitor half way through their operation.
 */
 
 /**
@@ -44,40 +58,67 @@ must not be declared synchronized and must begin with a block like:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
-last written checkpoint, or -1 if there are no checkpoints
+<li> The log is stored in preallocated, fixed-size segment files next to
+the log file (see LogSegments).  Records are addressed by their log
+sequence number (LSN), their byte offset from the beginning of the log,
+which never changes: truncating the log only drops whole segments from
+its front.
+
+<li> The log file itself is a small directory holding the segment size,
+the LSN of the first record still in the log, and the LSN of the last
+written checkpoint, or -1 if there are no checkpoints.
 
-<li> All additional data in the log consists of log records.  Log
-records are variable length.
+<li> All data in the segments consists of log records.  Log records are
+variable length, and the unused end of the log is zero.
 
 <li> Each log record begins with an integer type and a long integer
 transaction id.
 
 <li> Each log record ends with a long integer file offset representing
-the position in the log file where the record began.
+the position in the log file where the record began.  Recovery stops
+at the first record that does not end with its own offset.
 
 <li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
 CHECKPOINT
 
-<li> ABORT, COMMIT, and BEGIN records contain no additional data
+<li> COMMIT and BEGIN records contain no additional data
 
-<li>UPDATE RECORDS consist of two entries, a before image and an
-after image.  These images are serialized Page objects, and can be
-accessed with the LogFile.readPageData() and LogFile.writePageData()
-methods.  See LogFile.print() for an example.
+<li> ABORT and UPDATE records next hold a long integer prevLSN: the
+offset of the previous record of the same transaction (its BEGIN or
+its last UPDATE), or -1 if there is none.  Following these pointers
+backwards visits exactly the transaction's own updates, which is how
+rollback and recovery undo a transaction.
+
+<li>UPDATE RECORDS describe only the bytes of a page that an update
+changed: the serialized page id, the page length, and a list of runs,
+each an offset, a length, and the run's bytes before and after the
+update.  Runs are relative to the last image of the page logged by the
+same transaction, so redoing a transaction's records in order and
+undoing them in reverse both reproduce its page states.  Records are
+read and written by the PageDelta class; see LogFile.print() for an
+example.
 
 <li> CHECKPOINT records consist of active transactions at the time
-the checkpoint was taken and their first log record on disk.  The format
-of the record is an integer count of the number of transactions, as well
-as a long integer transaction id and a long integer first record offset
-for each active transaction.
+the checkpoint was taken and their first log record on disk, followed by
+the dirty page table: the pages that have update records in the log but
+may not have been written to their files yet, each with the offset of
+the first such record (its recLSN).  The format of the record is an
+integer count of the number of transactions, as well as a long integer
+transaction id, a long integer first record offset and a long integer
+last record offset for each active transaction, then an integer count
+of dirty pages, and a serialized page id and a long integer recLSN for
+each of them.
+
+<li> Checkpoints are fuzzy: taking one writes no pages, so recovery
+starts its redo pass at the smallest recLSN rather than at the
+checkpoint.
 
 </ul>
 */
 public class LogFile {
 
     final File logFile;
-    private RandomAccessFile raf;
+    private final LogSegments segments;
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
@@ -86,15 +127,42 @@ public class LogFile {
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
     static final long NO_CHECKPOINT_ID = -1;
+    static final long NO_PREV_RECORD = -1;
 
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
 
+    private static int segmentSize = LogSegments.DEFAULT_SEGMENT_SIZE;
+
     long currentOffset = -1;//protected by this
 //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
 
+    // 正在拼装的记录，拼好之后一次追加到日志末尾
+    private final ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+    private final DataOutputStream record = new DataOutputStream(recordBytes);
+
     final Map<Long,Long> tidToFirstLogRecord = new HashMap<>();
+    // 每个活跃事务的最后一条记录，回滚时从这里沿着prevLSN往前找
+    final Map<Long,Long> tidToLastLogRecord = new HashMap<>();
+
+    // 每个活跃事务最后一次写入日志的page内容，下一条UPDATE记录只记录和它不同的字节。
+    // page写回数据文件之后只留一个null，那时文件里的内容就是最后一次写入日志的内容
+    final Map<Long,Map<PageId,byte[]>> tidToLoggedImages = new HashMap<>();
+
+    // 脏页表：日志中有修改记录、但还没有写回数据文件的page，以及其中第一条记录的offset
+    final Map<PageId,Long> dirtyPages = new HashMap<>(); //protected by this
+
+    // 日志中offset在durableOffset之前的部分已经在磁盘上了
+    long durableOffset = 0; //protected by this
+    long forceRequested = 0; //protected by this
+    boolean flushScheduled = false; //protected by this
+    IOException flushError; //protected by this
+    int forceCount = 0; //protected by this
+
+    // 刷盘时持有，防止截断和shutdown在刷盘的同时关闭segment
+    private final Object forceLock = new Object();
+    private final ThreadPoolExecutor flusher;
 
     /** Constructor.
         Initialize and back the log file with the specified file.
@@ -109,8 +177,16 @@ public class LogFile {
     */
     public LogFile(File f) throws IOException {
 	this.logFile = f;
-        raf = new RandomAccessFile(f, "rw");
+        segments = new LogSegments(f, segmentSize);
         recoveryUndecided = true;
+        // 空闲一段时间后线程退出，有新的force请求时再启动
+        this.flusher = new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+                    Thread t = new Thread(r, "log-flusher");
+                    t.setDaemon(true);
+                    return t;
+                });
+        this.flusher.allowCoreThreadTimeOut(true);
 
         // install shutdown hook to force cleanup on close
         // Runtime.getRuntime().addShutdownHook(new Thread() {
@@ -123,6 +199,17 @@ public class LogFile {
         // may not match tableids in the current catalog.
     }
 
+    // THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
+    /** Set the size of the segment files of logs started from now on */
+    public static void setSegmentSize(int segmentSize) {
+        LogFile.segmentSize = segmentSize;
+    }
+
+    // THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
+    public static void resetSegmentSize() {
+        LogFile.segmentSize = LogSegments.DEFAULT_SEGMENT_SIZE;
+    }
+
     // we're about to append a log record. if we weren't sure whether the
     // DB wants to do recovery, we're sure now -- it didn't. So truncate
     // the log.
@@ -130,18 +217,42 @@ public class LogFile {
         totalRecords++;
         if(recoveryUndecided){
             recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            segments.reset(segmentSize);
+            currentOffset = segments.end();
         }
     }
 
+    // 开始拼装一条记录
+    private DataOutputStream beginRecord(int type, long tid) throws IOException {
+        recordBytes.reset();
+        record.writeInt(type);
+        record.writeLong(tid);
+        return record;
+    }
+
+    // 在记录末尾写上它的起始offset并追加到日志，返回这个offset
+    private long endRecord() throws IOException {
+        long start = currentOffset;
+        record.writeLong(start);
+        segments.append(recordBytes.toByteArray(), 0, recordBytes.size());
+        currentOffset = segments.end();
+        return start;
+    }
+
     public synchronized int getTotalRecords() {
         return totalRecords;
     }
-    
+
+    /** @return the number of times the log file has been forced to disk */
+    public synchronized int getForceCount() {
+        return forceCount;
+    }
+
+    /** @return the number of segment files the log currently occupies */
+    public synchronized int getSegmentCount() {
+        return segments.count();
+    }
+
     /** Write an abort record to the log for the specified tid, force
         the log to disk, and perform a rollback
         @param tid The aborting transaction.
@@ -160,36 +271,43 @@ public class LogFile {
                 // must do this here, since rollback only works for
                 // live transactions (needs tidToFirstLogRecord)
                 rollback(tid);
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                Long prev = tidToLastLogRecord.remove(tid.getId());
+                beginRecord(ABORT_RECORD, tid.getId())
+                        .writeLong(prev == null ? NO_PREV_RECORD : prev);
+                endRecord();
                 force();
                 tidToFirstLogRecord.remove(tid.getId());
+                tidToLoggedImages.remove(tid.getId());
             }
         }
     }
 
     /** Write a commit record to disk for the specified tid,
-        and force the log to disk.
+        and force the log to disk.  Returns once the commit record is
+        durable; commits arriving together share one force.
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
-
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+    public void logCommit(TransactionId tid) throws IOException {
+        synchronized (this) {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            beginRecord(COMMIT_RECORD, tid.getId());
+            endRecord();
+            tidToFirstLogRecord.remove(tid.getId());
+            tidToLastLogRecord.remove(tid.getId());
+            tidToLoggedImages.remove(tid.getId());
+        }
         force();
-        tidToFirstLogRecord.remove(tid.getId());
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
-        (with provided         before and after images.)
+        (with provided         before and after images.)  Only the bytes
+        that differ from the page image this transaction last logged (or
+        from the before image, the first time, or from the page in its
+        file once it has been written there) are written.
         @param tid The transaction performing the write
         @param before The before image of the page
         @param after The after image of the page
@@ -199,93 +317,53 @@ public class LogFile {
     public  synchronized void logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
+        Debug.log("WRITE, offset = " + currentOffset);
         preAppend();
         /* update record conists of
 
            record type
            transaction id
-           before page data (see writePageData)
-           after page data
+           offset of the transaction's previous record
+           changed bytes of the page (see PageDelta)
            start offset
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
-
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-
-        Debug.log("WRITE OFFSET = " + currentOffset);
-    }
-
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
-        PageId pid = p.getId();
-        int[] pageInfo = pid.serialize();
-
-        //page data is:
-        // page class name
-        // id class name
-        // id class bytes
-        // id class data
-        // page class bytes
-        // page class data
-
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
-
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
-
-        raf.writeInt(pageInfo.length);
-        for (int j : pageInfo) {
-            raf.writeInt(j);
-        }
-        byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
-        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
-    }
-
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
-
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
-
-        try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object[] idArgs = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = raf.readInt();
+        Map<PageId,byte[]> logged = tidToLoggedImages.computeIfAbsent(tid.getId(), k -> new HashMap<>());
+        byte[] base;
+        if (!logged.containsKey(after.getId())) {
+            base = before.getPageData();
+        } else {
+            base = logged.get(after.getId());
+            if (base == null) {
+                base = Database.getCatalog().getDatabaseFile(after.getId().getTableId())
+                        .readPage(after.getId()).getPageData();
             }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
-
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
+        }
+        byte[] data = after.getPageData();
+        logged.put(after.getId(), data);
+        dirtyPages.putIfAbsent(after.getId(), currentOffset);
 
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
+        Long prev = tidToLastLogRecord.put(tid.getId(), currentOffset);
 
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
+        DataOutputStream out = beginRecord(UPDATE_RECORD, tid.getId());
+        out.writeLong(prev == null ? NO_PREV_RECORD : prev);
+        PageDelta.diff(after.getId(), base, data).write(out);
+        endRecord();
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+        Debug.log("WRITE OFFSET = " + currentOffset);
+    }
 
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException | InvocationTargetException | IllegalAccessException | InstantiationException e){
-            e.printStackTrace();
-            throw new IOException();
+    /** Tell the log that a page whose updates were logged has been
+        written to its file, so recovery no longer needs to redo them.
+        The image of the page kept for the next update record of its
+        transaction is dropped too: that record reads the page back from
+        the file instead.
+        @param pid The page that was written
+    */
+    public synchronized void pageWritten(PageId pid) {
+        dirtyPages.remove(pid);
+        for (Map<PageId,byte[]> logged : tidToLoggedImages.values()) {
+            logged.replace(pid, null);
         }
-        return newPage;
-
     }
 
     /** Write a BEGIN record for the specified transaction
@@ -300,149 +378,120 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        beginRecord(BEGIN_RECORD, tid.getId());
+        long start = endRecord();
+        tidToFirstLogRecord.put(tid.getId(), start);
+        tidToLastLogRecord.put(tid.getId(), start);
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /** Checkpoint the log and write a checkpoint record.  The
+        checkpoint is fuzzy: it records the active transactions and the
+        dirty page table without flushing any pages, so it holds the log
+        only as long as it takes to append the record.
+    */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
-
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
-            }
+        synchronized (this) {
+            //Debug.log("CHECKPOINT, offset = " + currentOffset);
+            preAppend();
+            DataOutputStream out = beginRecord(CHECKPOINT_RECORD, -1); //no tid , but leave space for convenience
+
+            //write list of outstanding transactions and dirty pages
+            writeCheckpoint(out, tidToFirstLogRecord, tidToLastLogRecord, dirtyPages);
+            long startCpOffset = endRecord();
+            force();
+
+            //once the CP is on disk, make sure the CP location in the
+            // log's directory is updated
+            segments.setCheckpoint(startCpOffset);
+            //Debug.log("CP OFFSET = " + currentOffset);
         }
 
         logTruncate();
     }
 
+    // checkpoint记录的内容：活跃事务和它们的第一条、最后一条记录，然后是脏页表
+    private static void writeCheckpoint(DataOutput out, Map<Long,Long> first, Map<Long,Long> last,
+                                        Map<PageId,Long> dirty) throws IOException {
+        out.writeInt(first.size());
+        for (Map.Entry<Long,Long> e : first.entrySet()) {
+            Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + e.getKey());
+            out.writeLong(e.getKey());
+            out.writeLong(e.getValue());
+            out.writeLong(last.getOrDefault(e.getKey(), e.getValue()));
+        }
+        out.writeInt(dirty.size());
+        for (Map.Entry<PageId,Long> e : dirty.entrySet()) {
+            PageDelta.writePageId(out, e.getKey());
+            out.writeLong(e.getValue());
+        }
+    }
+
+    // 读出checkpoint记录的内容，三个map都可以为null
+    private static void readCheckpoint(DataInput in, Map<Long,Long> first, Map<Long,Long> last,
+                                       Map<PageId,Long> dirty) throws IOException {
+        int numTransactions = in.readInt();
+        while (numTransactions-- > 0) {
+            long tid = in.readLong();
+            long firstRecord = in.readLong();
+            long lastRecord = in.readLong();
+            if (first != null) {
+                first.put(tid, firstRecord);
+            }
+            if (last != null) {
+                last.put(tid, lastRecord);
+            }
+        }
+        int numDirty = in.readInt();
+        while (numDirty-- > 0) {
+            PageId pid = PageDelta.readPageId(in);
+            long recLSN = in.readLong();
+            if (dirty != null) {
+                dirty.put(pid, recLSN);
+            }
+        }
+    }
+
     /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
+        consumption.  Offsets don't change: the segments holding only
+        records before the oldest one still needed are dropped, and
+        recycled in the background.
+    */
     public synchronized void logTruncate() throws IOException {
         preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
+        long cpLoc = segments.checkpoint();
+        if (cpLoc == NO_CHECKPOINT_ID) {
+            return;
+        }
 
         long minLogRecord = cpLoc;
 
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
-
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
-            }
+        LogSegments.Reader in = segments.reader(cpLoc);
+        int cpType = in.readInt();
+        @SuppressWarnings("unused")
+        long cpTid = in.readLong();
 
-            int numOutstanding = raf.readInt();
+        if (cpType != CHECKPOINT_RECORD) {
+            throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+        }
 
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
-                }
-            }
+        Map<Long,Long> outstanding = new HashMap<>();
+        Map<PageId,Long> dirty = new HashMap<>();
+        readCheckpoint(in, outstanding, null, dirty);
+        // 活跃事务的记录要留着回滚，脏页的记录要留着重做
+        for (long firstLogRecord : outstanding.values()) {
+            minLogRecord = Math.min(minLogRecord, firstLogRecord);
+        }
+        for (long recLSN : dirty.values()) {
+            minLogRecord = Math.min(minLogRecord, recLSN);
         }
 
         // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
-
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
-                }
-
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
-
-            } catch (EOFException e) {
-                break;
-            }
+        Debug.log("TRUNCATING LOG BEFORE " + minLogRecord + "; " + segments.count() + " SEGMENTS");
+        synchronized (forceLock) {
+            segments.truncate(minLogRecord);
         }
-
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
-
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
-
-        currentOffset = raf.getFilePointer();
         //print();
     }
 
@@ -460,39 +509,43 @@ public class LogFile {
             synchronized(this) {
                 preAppend();
                 // some code goes here
-                // 定位到这个transaction
-                Long tidLogs = tidToFirstLogRecord.get(tid.getId());
-                raf.seek(tidLogs);
-                // 然后是record信息
-                while(raf.getFilePointer()<raf.length()){
-                    int type = raf.readInt();
-                    long logTid = raf.readLong();
-                    if (type == BEGIN_RECORD || type == ABORT_RECORD || type == COMMIT_RECORD){
-                        raf.readLong();
-                        continue;
-                    }
-                    if (type == CHECKPOINT_RECORD){
-                        int numTransactions = raf.readInt();
-                        while (numTransactions-- > 0) {
-                            raf.readLong();
-                            raf.readLong();
-                        }
-                        raf.readLong();
-                        continue;
-                    }
-                    if (type == UPDATE_RECORD){
-                        Page page = readPageData(raf);
-                        if(logTid == tid.getId()){
-                            Database.getCatalog().getDatabaseFile(page.getId().getTableId()).writePage(page);
-                        }
-                        readPageData(raf);
-                        raf.readLong();   //这个是offset没用
-                    }
+                // 从这个事务的最后一条记录开始，沿着prevLSN往前撤销，不用读其他事务的记录
+                Long last = tidToLastLogRecord.get(tid.getId());
+                List<PageDelta> updates = undoChain(last == null ? NO_PREV_RECORD : last, null, 0);
+                tidToLoggedImages.remove(tid.getId());
+                // 撤销时page已经写回了原来的内容
+                for(PageDelta delta : updates){
+                    dirtyPages.remove(delta.pid);
                 }
             }
         }
     }
 
+    /* 从offset处的记录开始沿着prevLSN往前，撤销一个事务的修改，直到它的BEGIN记录。
+       dirty不为null时只撤销脏页表中recLSN不晚于upTo的page。返回撤销了的修改。
+       调用者持有this */
+    private List<PageDelta> undoChain(long offset, Map<PageId,Long> dirty, long upTo) throws IOException {
+        List<PageDelta> undone = new ArrayList<>();
+        LogSegments.Reader in = segments.reader(offset);
+        // 已经被截断的记录不用再撤销
+        while (offset != NO_PREV_RECORD && offset >= segments.start()) {
+            in.seek(offset);
+            int type = in.readInt();
+            in.readLong();
+            if (type != UPDATE_RECORD) {
+                break;
+            }
+            offset = in.readLong();
+            PageDelta delta = PageDelta.read(in);
+            Long recLSN = dirty == null ? null : dirty.get(delta.pid);
+            if (dirty == null || (recLSN != null && recLSN <= upTo)) {
+                delta.apply(true);
+                undone.add(delta);
+            }
+        }
+        return undone;
+    }
+
     /** Shutdown the logging system, writing out whatever state
         is necessary so that start up can happen quickly (without
         extensive recovery.)
@@ -500,7 +553,9 @@ public class LogFile {
     public synchronized void shutdown() {
         try {
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            synchronized (forceLock) {
+                segments.close();
+            }
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -510,137 +565,194 @@ public class LogFile {
     /** Recover the database system by ensuring that the updates of
         committed transactions are installed and that the
         updates of uncommitted transactions are not installed.
+        <p>
+        Recovery has three passes.  Analysis reads forward from the last
+        checkpoint to rebuild the active transactions and the dirty page
+        table, and finds where the valid records end.  Redo repeats
+        history from the smallest recLSN, applying an update only to a
+        page that is dirty and whose recLSN it does not precede; when it
+        reaches an ABORT record it repeats the rollback that record
+        stands for.  Undo rolls back the transactions still active at the
+        crash by following their prevLSN chains, and logs an ABORT record
+        for each, so a later recovery won't undo them again.
     */
     public void recover() throws IOException {
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
                 recoveryUndecided = false;
                 // some code goes here
-                Map<Long,List<Page[]>> tidToPagesMap = new HashMap<>();
-                Set<Long>tidSet = new HashSet<>();
-                Set<Long> commitedSet = new HashSet<>();
-                raf.seek(0);
-                long cpidx = raf.readLong();
-                //if (cpidx > 0){
-                //    raf.seek(cpidx);
-                //}
-                while(raf.getFilePointer()<raf.length()){
-                    int type = raf.readInt();
-                    long logTid = raf.readLong();
-                    if (type == BEGIN_RECORD || type == ABORT_RECORD || type == COMMIT_RECORD){
-                        raf.readLong();
-                        tidSet.add(logTid);
-                        if (type == COMMIT_RECORD){
-                            commitedSet.add(logTid);
+                // 分析：从最后一个checkpoint开始，找出崩溃时的活跃事务（和它们的最后一条记录）和脏页
+                Map<Long,Long> active = new HashMap<>();
+                Map<PageId,Long> dirty = new HashMap<>();
+                long cpLoc = segments.checkpoint();
+                LogSegments.Reader in = segments.reader(segments.start());
+                if (cpLoc != NO_CHECKPOINT_ID) {
+                    in.seek(cpLoc);
+                    in.readInt();
+                    in.readLong();
+                    readCheckpoint(in, null, active, dirty);
+                    in.readLong();
+                }
+                long end = in.position();
+                while (true) {
+                    long offset = end;
+                    long logTid;
+                    PageDelta delta = null;
+                    int type;
+                    // 日志末尾是0或者崩溃时没写完的记录，读到结尾的offset和记录开头不一致就停下
+                    try {
+                        type = in.readInt();
+                        logTid = in.readLong();
+                        switch (type) {
+                        case ABORT_RECORD:
+                            in.readLong();
+                            break;
+                        case COMMIT_RECORD:
+                        case BEGIN_RECORD:
+                            break;
+                        case CHECKPOINT_RECORD:
+                            readCheckpoint(in, null, null, null);
+                            break;
+                        case UPDATE_RECORD:
+                            in.readLong();
+                            delta = PageDelta.read(in);
+                            break;
+                        default:
+                            type = -1;
                         }
-                        continue;
-                    }
-                    if (type == CHECKPOINT_RECORD){
-                        int numTransactions = raf.readInt();
-                        while (numTransactions-- > 0) {
-                            tidSet.add(raf.readLong());
-                            raf.readLong();
+                        if (type == -1 || in.readLong() != offset) {
+                            break;
                         }
-                        raf.readLong();
-                        continue;
+                    } catch (IOException | RuntimeException e) {
+                        break;
                     }
-                    if (type == UPDATE_RECORD){
-                        List<Page[]> list = tidToPagesMap.getOrDefault(logTid, new ArrayList<>());
-                        Page[] images = new Page[2];
-                        images[0] = readPageData(raf);
-                        //if(logTid == tid.getId()){
-                        //    Database.getCatalog().getDatabaseFile(page.getId().getTableId()).writePage(page);
-                        //}
-                        images[1] = readPageData(raf);
-                        list.add(images);
-                        tidToPagesMap.put(logTid,list);
-                        raf.readLong();   //这个是offset没用
+                    switch (type) {
+                    case BEGIN_RECORD:
+                        active.put(logTid, offset);
+                        break;
+                    case ABORT_RECORD:
+                    case COMMIT_RECORD:
+                        active.remove(logTid);
+                        break;
+                    case UPDATE_RECORD:
+                        dirty.putIfAbsent(delta.pid, offset);
+                        active.put(logTid, offset);
+                        break;
                     }
+                    end = in.position();
                 }
-                for(Long tid : tidSet){
-                    List<Page[]> pages = tidToPagesMap.get(tid);
-                    if (commitedSet.contains(tid)){
-                        if(pages != null){
-                            for(Page[] images : pages){
-                                Page page = images[1];
-                                Database.getCatalog().getDatabaseFile(page.getId().getTableId()).writePage(page);
-                            }
-                        }
-                    }else{
-                        if(pages != null){
-                            for(Page[] images : pages){
-                                Page page = images[0];
-                                Database.getCatalog().getDatabaseFile(page.getId().getTableId()).writePage(page);
-                            }
+                segments.setEnd(end);
+
+                // 重做：从最小的recLSN开始按日志顺序重放历史
+                in.seek(end);
+                if (!dirty.isEmpty()) {
+                    in.seek(Math.max(Collections.min(dirty.values()), segments.start()));
+                }
+                while (in.position() < end) {
+                    long offset = in.position();
+                    int type = in.readInt();
+                    in.readLong();
+                    switch (type) {
+                    case ABORT_RECORD:
+                        long prev = in.readLong();
+                        // 当时的rollback写回的page中，之后的修改都会被重做的那些要重新回滚
+                        undoChain(prev, dirty, offset);
+                        break;
+                    case CHECKPOINT_RECORD:
+                        readCheckpoint(in, null, null, null);
+                        break;
+                    case UPDATE_RECORD:
+                        in.readLong();
+                        PageDelta delta = PageDelta.read(in);
+                        Long recLSN = dirty.get(delta.pid);
+                        if (recLSN != null && recLSN <= offset) {
+                            delta.apply(false);
                         }
+                        break;
                     }
+                    in.readLong();
                 }
+
+                // 撤销：沿着prevLSN回滚崩溃时还没有结束的事务，并记录ABORT
+                currentOffset = end;
+                durableOffset = end;
+                for (Map.Entry<Long,Long> e : active.entrySet()) {
+                    undoChain(e.getValue(), null, 0);
+                    beginRecord(ABORT_RECORD, e.getKey()).writeLong(e.getValue());
+                    endRecord();
+                }
+                force();
             }
          }
     }
 
     /** Print out a human readable represenation of the log */
-    public void print() throws IOException {
-        long curOffset = raf.getFilePointer();
-
-        raf.seek(0);
-
-        System.out.println("0: checkpoint record at offset " + raf.readLong());
+    public synchronized void print() throws IOException {
+        System.out.println("checkpoint record at offset " + segments.checkpoint()
+                + ", log starts at offset " + segments.start());
 
-        while (true) {
+        LogSegments.Reader in = segments.reader(segments.start());
+        while (in.position() < currentOffset) {
             try {
-                int cpType = raf.readInt();
-                long cpTid = raf.readLong();
+                int cpType = in.readInt();
+                long cpTid = in.readLong();
 
-                System.out.println((raf.getFilePointer() - (INT_SIZE + LONG_SIZE)) + ": RECORD TYPE " + cpType);
-                System.out.println((raf.getFilePointer() - LONG_SIZE) + ": TID " + cpTid);
+                System.out.println((in.position() - (INT_SIZE + LONG_SIZE)) + ": RECORD TYPE " + cpType);
+                System.out.println((in.position() - LONG_SIZE) + ": TID " + cpTid);
 
                 switch (cpType) {
                 case BEGIN_RECORD:
                     System.out.println(" (BEGIN)");
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+                    System.out.println(in.position() + ": RECORD START OFFSET: " + in.readLong());
                     break;
                 case ABORT_RECORD:
                     System.out.println(" (ABORT)");
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+                    System.out.println(in.position() + ": PREVIOUS RECORD: " + in.readLong());
+                    System.out.println(in.position() + ": RECORD START OFFSET: " + in.readLong());
                     break;
                 case COMMIT_RECORD:
                     System.out.println(" (COMMIT)");
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+                    System.out.println(in.position() + ": RECORD START OFFSET: " + in.readLong());
                     break;
 
                 case CHECKPOINT_RECORD:
                     System.out.println(" (CHECKPOINT)");
-                    int numTransactions = raf.readInt();
-                    System.out.println((raf.getFilePointer() - INT_SIZE) + ": NUMBER OF OUTSTANDING RECORDS: " + numTransactions);
+                    int numTransactions = in.readInt();
+                    System.out.println((in.position() - INT_SIZE) + ": NUMBER OF OUTSTANDING RECORDS: " + numTransactions);
 
                     while (numTransactions-- > 0) {
-                        long tid = raf.readLong();
-                        long firstRecord = raf.readLong();
-                        System.out.println((raf.getFilePointer() - (LONG_SIZE + LONG_SIZE)) + ": TID: " + tid);
-                        System.out.println((raf.getFilePointer() - LONG_SIZE) + ": FIRST LOG RECORD: " + firstRecord);
+                        long tid = in.readLong();
+                        long firstRecord = in.readLong();
+                        long lastRecord = in.readLong();
+                        System.out.println((in.position() - (3 * LONG_SIZE)) + ": TID: " + tid);
+                        System.out.println((in.position() - (LONG_SIZE + LONG_SIZE)) + ": FIRST LOG RECORD: " + firstRecord);
+                        System.out.println((in.position() - LONG_SIZE) + ": LAST LOG RECORD: " + lastRecord);
+                    }
+                    int numDirty = in.readInt();
+                    System.out.println((in.position() - INT_SIZE) + ": NUMBER OF DIRTY PAGES: " + numDirty);
+
+                    while (numDirty-- > 0) {
+                        PageId pid = PageDelta.readPageId(in);
+                        long recLSN = in.readLong();
+                        System.out.println((in.position() - LONG_SIZE) + ": PAGE " + pid.getTableId() + "/"
+                                + pid.getPageNumber() + " RECLSN: " + recLSN);
                     }
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+                    System.out.println(in.position() + ": RECORD START OFFSET: " + in.readLong());
 
                     break;
                 case UPDATE_RECORD:
                     System.out.println(" (UPDATE)");
+                    System.out.println(in.position() + ": PREVIOUS RECORD: " + in.readLong());
 
-                    long start = raf.getFilePointer();
-                    Page before = readPageData(raf);
-
-                    long middle = raf.getFilePointer();
-                    Page after = readPageData(raf);
+                    long start = in.position();
+                    PageDelta delta = PageDelta.read(in);
 
-                    System.out.println(start + ": before image table id " + before.getId().getTableId());
-                    System.out.println((start + INT_SIZE) + ": before image page number " + before.getId().getPageNumber());
-                    System.out.println((start + INT_SIZE) + " TO " + (middle - INT_SIZE) + ": page data");
+                    System.out.println(start + ": table id " + delta.pid.getTableId());
+                    System.out.println(start + ": page number " + delta.pid.getPageNumber());
+                    System.out.println(start + " TO " + (in.position()) + ": " + delta.offsets.length
+                            + " changed runs, " + delta.changedBytes() + " bytes");
 
-                    System.out.println(middle + ": after image table id " + after.getId().getTableId());
-                    System.out.println((middle + INT_SIZE) + ": after image page number " + after.getId().getPageNumber());
-                    System.out.println((middle + INT_SIZE) + " TO " + (raf.getFilePointer()) + ": page data");
-
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+                    System.out.println(in.position() + ": RECORD START OFFSET: " + in.readLong());
 
                     break;
                 }
@@ -650,13 +762,268 @@ public class LogFile {
                 break;
             }
         }
+    }
+
+    /** Force everything logged so far to disk.  Unless the caller holds
+        this log's monitor, the fsync is done by the flusher thread and
+        shared with any other callers waiting at the same time.
+    */
+    public void force() throws IOException {
+        if (Thread.holdsLock(this)) {
+            syncLog();
+            return;
+        }
+        synchronized (this) {
+            awaitDurable(currentOffset);
+        }
+    }
+
+    // 等待flusher把offset之前的日志刷到磁盘上，等待时释放this
+    private void awaitDurable(long offset) throws IOException {
+        if (offset > forceRequested) {
+            forceRequested = offset;
+        }
+        if (!flushScheduled) {
+            flushScheduled = true;
+            flushError = null;
+            flusher.execute(this::flushLoop);
+        }
+        while (durableOffset < offset) {
+            if (flushError != null) {
+                throw new IOException("log force failed", flushError);
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted waiting for log force");
+            }
+        }
+    }
+
+    // flusher线程：只要还有等待的调用者，就把当前写到的所有日志一次刷到磁盘
+    private void flushLoop() {
+        while (true) {
+            long from, target;
+            synchronized (this) {
+                if (durableOffset >= forceRequested) {
+                    flushScheduled = false;
+                    return;
+                }
+                from = durableOffset;
+                target = currentOffset;
+            }
+            try {
+                synchronized (forceLock) {
+                    segments.force(from, target);
+                }
+            } catch (IOException e) {
+                synchronized (this) {
+                    flushError = e;
+                    flushScheduled = false;
+                    notifyAll();
+                }
+                return;
+            }
+            synchronized (this) {
+                forceCount++;
+                if (target > durableOffset) {
+                    durableOffset = target;
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    // 调用者持有this，直接刷盘
+    private void syncLog() throws IOException {
+        synchronized (forceLock) {
+            segments.force(durableOffset, currentOffset);
+        }
+        forceCount++;
+        if (currentOffset > durableOffset) {
+            durableOffset = currentOffset;
+        }
+        notifyAll();
+    }
+
+}
+
+
+/**
+ * The bytes of one page that an update changed, stored as runs of bytes
+ * with their values before and after the update. Runs separated by only a
+ * few unchanged bytes are merged, since each run costs two ints.
+ */
+class PageDelta {
+
+    private static final int MERGE_GAP = 8;
+
+    final PageId pid;
+    final int pageLength;
+    final int[] offsets;
+    final byte[][] before;
+    final byte[][] after;
+
+    private PageDelta(PageId pid, int pageLength, int[] offsets, byte[][] before, byte[][] after) {
+        this.pid = pid;
+        this.pageLength = pageLength;
+        this.offsets = offsets;
+        this.before = before;
+        this.after = after;
+    }
+
+    /** @return the changes that turn page data {@code from} into {@code to} */
+    static PageDelta diff(PageId pid, byte[] from, byte[] to) {
+        List<int[]> runs = new ArrayList<>();
+        int i = 0;
+        while (i < to.length) {
+            if (!differs(from, to, i)) {
+                i++;
+                continue;
+            }
+            int start = i;
+            int end = i + 1;
+            for (int j = end; j < to.length && j < end + MERGE_GAP; j++) {
+                if (differs(from, to, j)) {
+                    end = j + 1;
+                }
+            }
+            runs.add(new int[]{start, end});
+            i = end;
+        }
+        int[] offsets = new int[runs.size()];
+        byte[][] before = new byte[runs.size()][];
+        byte[][] after = new byte[runs.size()][];
+        for (int r = 0; r < runs.size(); r++) {
+            int start = runs.get(r)[0];
+            int end = runs.get(r)[1];
+            offsets[r] = start;
+            before[r] = new byte[end - start];
+            for (int j = start; j < end; j++) {
+                before[r][j - start] = j < from.length ? from[j] : 0;
+            }
+            after[r] = Arrays.copyOfRange(to, start, end);
+        }
+        return new PageDelta(pid, to.length, offsets, before, after);
+    }
+
+    private static boolean differs(byte[] from, byte[] to, int i) {
+        return i >= from.length || from[i] != to[i];
+    }
 
-        // Return the file pointer to its original position
-        raf.seek(curOffset);
+    /** @return the number of bytes this update changed */
+    int changedBytes() {
+        int n = 0;
+        for (byte[] run : this.after) {
+            n += run.length;
+        }
+        return n;
     }
 
-    public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+    static void writePageId(DataOutput out, PageId pid) throws IOException {
+        int[] pageInfo = pid.serialize();
+        out.writeInt(pageInfo.length);
+        for (int j : pageInfo) {
+            out.writeInt(j);
+        }
     }
 
+    static PageId readPageId(DataInput in) throws IOException {
+        int[] pageInfo = new int[in.readInt()];
+        for (int j = 0; j < pageInfo.length; j++) {
+            pageInfo[j] = in.readInt();
+        }
+        // 日志里不记录类名，根据表的类型确定page id的类型
+        if (Database.getCatalog().getDatabaseFile(pageInfo[0]) instanceof BTreeFile) {
+            return new BTreePageId(pageInfo[0], pageInfo[1], pageInfo[2]);
+        }
+        return new HeapPageId(pageInfo[0], pageInfo[1]);
+    }
+
+    void write(DataOutput out) throws IOException {
+        writePageId(out, this.pid);
+        out.writeInt(this.pageLength);
+        out.writeInt(this.offsets.length);
+        for (int r = 0; r < this.offsets.length; r++) {
+            out.writeInt(this.offsets[r]);
+            out.writeInt(this.after[r].length);
+            out.write(this.before[r]);
+            out.write(this.after[r]);
+        }
+    }
+
+    static PageDelta read(DataInput in) throws IOException {
+        PageId pid = readPageId(in);
+        int pageLength = in.readInt();
+        int numRuns = in.readInt();
+        int[] offsets = new int[numRuns];
+        byte[][] before = new byte[numRuns][];
+        byte[][] after = new byte[numRuns][];
+        for (int r = 0; r < numRuns; r++) {
+            offsets[r] = in.readInt();
+            int len = in.readInt();
+            before[r] = new byte[len];
+            after[r] = new byte[len];
+            in.readFully(before[r]);
+            in.readFully(after[r]);
+        }
+        return new PageDelta(pid, pageLength, offsets, before, after);
+    }
+
+    /**
+     * Installs the page's bytes from before (undo) or after (redo) this
+     * update in the page on disk. Either is idempotent.
+     */
+    void apply(boolean undo) throws IOException {
+        DbFile file = Database.getCatalog().getDatabaseFile(this.pid.getTableId());
+        byte[] data;
+        try {
+            data = file.readPage(this.pid).getPageData();
+        } catch (IllegalArgumentException e) {
+            // page在崩溃之前还没有写到磁盘上
+            data = new byte[this.pageLength];
+        }
+        byte[][] runs = undo ? this.before : this.after;
+        for (int r = 0; r < this.offsets.length; r++) {
+            System.arraycopy(runs[r], 0, data, this.offsets[r], runs[r].length);
+        }
+        file.writePage(new RawPage(this.pid, data));
+    }
+}
+
+/**
+ * A page rebuilt from the log, only good for writing back to its file.
+ */
+class RawPage implements Page {
+
+    private final PageId pid;
+    private final byte[] data;
+
+    RawPage(PageId pid, byte[] data) {
+        this.pid = pid;
+        this.data = data;
+    }
+
+    public PageId getId() {
+        return this.pid;
+    }
+
+    public TransactionId isDirty() {
+        return null;
+    }
+
+    public void markDirty(boolean dirty, TransactionId tid) {
+    }
+
+    public byte[] getPageData() {
+        return this.data;
+    }
+
+    public Page getBeforeImage() {
+        return this;
+    }
+
+    public void setBeforeImage() {
+    }
 }
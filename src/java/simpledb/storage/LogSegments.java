@@ -0,0 +1,398 @@
+package simpledb.storage;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * LogSegments stores the write-ahead log for {@link LogFile} in fixed-size
+ * segment files, addressed by log sequence numbers (LSNs): byte offsets into
+ * the log that only ever grow, so records never have to be renumbered.
+ * Segment n holds the LSNs from n * segmentSize up to (n + 1) * segmentSize
+ * and is stored in the file named after the log with ".n" appended.
+ * <p>
+ * Segments are preallocated to their full size and zero-filled when they are
+ * created, so appending never changes a file's length and forcing the log
+ * only has to sync data. A small directory file, the log's own file, records
+ * the segment size, the first LSN still in the log, and the LSN of the last
+ * checkpoint.
+ * <p>
+ * Truncating the log just moves its start forward. Segments that end before
+ * the new start are renamed out of the way at once and zero-filled on a
+ * background thread, then kept as spares that later segments reuse instead
+ * of allocating new files.
+ */
+class LogSegments {
+
+    /** Default size of a segment file, in bytes. */
+    static final int DEFAULT_SEGMENT_SIZE = 1 << 20;
+
+    private static final int MAGIC = 0x4c4f4753;
+
+    private static final int MAX_SPARES = 2;
+
+    private static final int READ_BUFFER = 8192;
+
+    private final File directory;
+
+    private int segmentSize;
+
+    // 日志中还保留的第一个LSN，以及下一条记录的LSN
+    private long start;
+    private long end;
+    private long checkpoint;
+
+    private final TreeMap<Long,FileChannel> segments = new TreeMap<>();
+
+    // 已经清零、可以直接拿来当新segment用的文件
+    private final Deque<File> spares = new ArrayDeque<>();
+    private long spareNo;
+
+    private final ThreadPoolExecutor recycler;
+
+    /**
+     * Opens the log stored with the given directory file. If there is a log,
+     * all its segments are considered written until {@link #setEnd(long)}
+     * says where the valid records stop.
+     *
+     * @param directory the directory file
+     * @param segmentSize the size of segments if a new log is created
+     */
+    LogSegments(File directory, int segmentSize) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.checkpoint = LogFile.NO_CHECKPOINT_ID;
+        this.recycler = new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+                    Thread t = new Thread(r, "log-recycler");
+                    t.setDaemon(true);
+                    return t;
+                });
+        this.recycler.allowCoreThreadTimeOut(true);
+
+        if (directory.length() >= 24) {
+            try (DataInputStream in = new DataInputStream(new FileInputStream(directory))) {
+                if (in.readInt() == MAGIC) {
+                    this.segmentSize = in.readInt();
+                    this.start = in.readLong();
+                    this.checkpoint = in.readLong();
+                }
+            }
+        }
+        this.end = this.start;
+        for (long n = this.start / this.segmentSize; this.segmentFile(n).exists(); n++) {
+            this.segments.put(n, this.open(this.segmentFile(n)));
+            this.end = (n + 1) * this.segmentSize;
+        }
+    }
+
+    private File segmentFile(long n) {
+        return new File(this.directory.getPath() + "." + n);
+    }
+
+    private FileChannel open(File f) throws IOException {
+        return new RandomAccessFile(f, "rw").getChannel();
+    }
+
+    /** @return the first LSN still in the log */
+    synchronized long start() {
+        return this.start;
+    }
+
+    /** @return the LSN the next append goes to */
+    synchronized long end() {
+        return this.end;
+    }
+
+    /** @return the LSN of the last checkpoint record, or NO_CHECKPOINT_ID */
+    synchronized long checkpoint() {
+        return this.checkpoint;
+    }
+
+    /** @return the number of segment files holding the log */
+    synchronized int count() {
+        return this.segments.size();
+    }
+
+    /**
+     * Throws the whole log away and starts a new, empty one.
+     *
+     * @param segmentSize the size of the new log's segments
+     */
+    synchronized void reset(int segmentSize) throws IOException {
+        this.close();
+        File dir = this.directory.getAbsoluteFile().getParentFile();
+        String prefix = this.directory.getName() + ".";
+        // 只删除segment文件和备用文件
+        File[] files = dir.listFiles((d, name) -> name.startsWith(prefix)
+                && name.substring(prefix.length()).matches("\\d+|spare\\d+-\\d+"));
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        this.spares.clear();
+        this.segmentSize = segmentSize;
+        this.start = 0;
+        this.end = 0;
+        this.checkpoint = LogFile.NO_CHECKPOINT_ID;
+        this.writeDirectory();
+    }
+
+    /** Appends bytes at the end of the log, creating segments as needed. */
+    synchronized void append(byte[] data, int off, int len) throws IOException {
+        while (len > 0) {
+            long n = this.end / this.segmentSize;
+            int pos = (int) (this.end % this.segmentSize);
+            int k = Math.min(len, this.segmentSize - pos);
+            FileChannel channel = this.segments.get(n);
+            if (channel == null) {
+                channel = this.allocate(n);
+            }
+            ByteBuffer buf = ByteBuffer.wrap(data, off, k);
+            while (buf.hasRemaining()) {
+                channel.write(buf, pos + buf.position() - off);
+            }
+            this.end += k;
+            off += k;
+            len -= k;
+        }
+    }
+
+    // 优先用清零过的备用文件，没有的话创建一个新的并预分配空间
+    private FileChannel allocate(long n) throws IOException {
+        File f = this.segmentFile(n);
+        File spare = this.spares.poll();
+        FileChannel channel;
+        if (spare != null && spare.renameTo(f)) {
+            channel = this.open(f);
+        } else {
+            channel = this.open(f);
+            channel.write(ByteBuffer.allocate(this.segmentSize), 0);
+            // 文件的长度只在这里变化，之后刷盘只需要同步数据
+            channel.force(true);
+        }
+        this.segments.put(n, channel);
+        return channel;
+    }
+
+    /**
+     * Forces the segments holding the given range of LSNs to disk. The
+     * caller must make sure the range is not truncated meanwhile.
+     */
+    void force(long from, long to) throws IOException {
+        List<FileChannel> channels;
+        synchronized (this) {
+            from = Math.max(from, this.start);
+            if (from >= to) {
+                return;
+            }
+            channels = new ArrayList<>(this.segments.subMap(from / this.segmentSize, true,
+                    (to - 1) / this.segmentSize, true).values());
+        }
+        for (FileChannel channel : channels) {
+            channel.force(false);
+        }
+    }
+
+    /** Records the LSN of the last checkpoint in the directory. */
+    synchronized void setCheckpoint(long lsn) throws IOException {
+        this.checkpoint = lsn;
+        this.writeDirectory();
+    }
+
+    /**
+     * Drops the log before the given LSN. Segments that end before it are
+     * recycled in the background.
+     */
+    synchronized void truncate(long lsn) throws IOException {
+        if (lsn <= this.start) {
+            return;
+        }
+        this.start = Math.min(lsn, this.end);
+        this.writeDirectory();
+        long first = this.start / this.segmentSize;
+        Iterator<Map.Entry<Long,FileChannel>> it = this.segments.headMap(first).entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long,FileChannel> e = it.next();
+            it.remove();
+            e.getValue().close();
+            // 先改名，之后同名的segment就和它无关了；清零在后台做
+            File spare = new File(this.directory.getPath() + ".spare" + (this.spareNo++) + "-" + System.nanoTime());
+            if (this.spares.size() >= MAX_SPARES || !this.segmentFile(e.getKey()).renameTo(spare)) {
+                this.segmentFile(e.getKey()).delete();
+                continue;
+            }
+            this.recycler.execute(() -> this.zeroFill(spare));
+        }
+    }
+
+    private void zeroFill(File spare) {
+        try (FileChannel channel = FileChannel.open(spare.toPath(), StandardOpenOption.WRITE)) {
+            ByteBuffer zeros = ByteBuffer.allocate(64 * 1024);
+            long size = channel.size();
+            for (long pos = 0; pos < size; pos += zeros.capacity()) {
+                zeros.clear();
+                zeros.limit((int) Math.min(zeros.capacity(), size - pos));
+                channel.write(zeros, pos);
+            }
+            channel.force(false);
+        } catch (NoSuchFileException e) {
+            // 日志已经被重置，文件被删掉了
+            return;
+        } catch (IOException e) {
+            spare.delete();
+            return;
+        }
+        synchronized (this) {
+            if (spare.exists() && this.spares.size() < MAX_SPARES) {
+                this.spares.add(spare);
+            } else {
+                spare.delete();
+            }
+        }
+    }
+
+    /**
+     * Sets where the valid records of a reopened log end. The rest of the
+     * last segment is zeroed and later segments are dropped, so that records
+     * appended from here on are followed by zeros.
+     */
+    synchronized void setEnd(long lsn) throws IOException {
+        this.end = Math.max(lsn, this.start);
+        long last = this.end / this.segmentSize;
+        Iterator<Map.Entry<Long,FileChannel>> it = this.segments.tailMap(last, false).entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long,FileChannel> e = it.next();
+            it.remove();
+            e.getValue().close();
+            this.segmentFile(e.getKey()).delete();
+        }
+        FileChannel channel = this.segments.get(last);
+        if (channel != null) {
+            int pos = (int) (this.end % this.segmentSize);
+            channel.write(ByteBuffer.allocate(this.segmentSize - pos), pos);
+            channel.force(false);
+        }
+    }
+
+    private void writeDirectory() throws IOException {
+        try (RandomAccessFile dir = new RandomAccessFile(this.directory, "rw")) {
+            dir.seek(0);
+            dir.writeInt(MAGIC);
+            dir.writeInt(this.segmentSize);
+            dir.writeLong(this.start);
+            dir.writeLong(this.checkpoint);
+            dir.setLength(dir.getFilePointer());
+            dir.getFD().sync();
+        }
+    }
+
+    /** Closes all segment files. */
+    synchronized void close() throws IOException {
+        for (FileChannel channel : this.segments.values()) {
+            channel.close();
+        }
+        this.segments.clear();
+    }
+
+    private synchronized FileChannel channelAt(long lsn) {
+        return this.segments.get(lsn / this.segmentSize);
+    }
+
+    /** @return a reader positioned at the given LSN */
+    Reader reader(long lsn) {
+        return new Reader(new SegmentInput(lsn));
+    }
+
+    /**
+     * Reads the log sequentially. Reading past the end of the log throws
+     * EOFException.
+     */
+    class Reader extends DataInputStream {
+
+        private final SegmentInput input;
+
+        private Reader(SegmentInput input) {
+            super(input);
+            this.input = input;
+        }
+
+        /** @return the LSN of the next byte to read */
+        long position() {
+            return this.input.position;
+        }
+
+        /** Moves the reader to the given LSN. */
+        void seek(long lsn) {
+            this.input.position = lsn;
+        }
+    }
+
+    private class SegmentInput extends InputStream {
+
+        private long position;
+
+        // buffer中是从bufferStart开始的bufferLength个字节
+        private final byte[] buffer = new byte[READ_BUFFER];
+        private long bufferStart;
+        private int bufferLength;
+
+        SegmentInput(long position) {
+            this.position = position;
+        }
+
+        @Override
+        public int read() throws IOException {
+            // 单个字节直接从buffer里取，readInt等方法是逐个字节调用read()的
+            if (!this.buffered() && !this.fill()) {
+                return -1;
+            }
+            return this.buffer[(int) (this.position++ - this.bufferStart)] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!this.buffered() && !this.fill()) {
+                return -1;
+            }
+            int n = (int) Math.min(len, this.bufferStart + this.bufferLength - this.position);
+            System.arraycopy(this.buffer, (int) (this.position - this.bufferStart), b, off, n);
+            this.position += n;
+            return n;
+        }
+
+        private boolean buffered() {
+            return this.position >= this.bufferStart && this.position < this.bufferStart + this.bufferLength;
+        }
+
+        // 从position开始读入一段，不跨segment
+        private boolean fill() throws IOException {
+            long limit = end();
+            FileChannel channel = channelAt(this.position);
+            if (this.position < start() || this.position >= limit || channel == null) {
+                return false;
+            }
+            int pos = (int) (this.position % segmentSize);
+            int len = (int) Math.min(this.buffer.length, Math.min(segmentSize - pos, limit - this.position));
+            ByteBuffer buf = ByteBuffer.wrap(this.buffer, 0, len);
+            while (buf.hasRemaining()) {
+                if (channel.read(buf, pos + buf.position()) < 0) {
+                    break;
+                }
+            }
+            this.bufferStart = this.position;
+            this.bufferLength = buf.position();
+            return this.bufferLength > 0;
+        }
+    }
+}
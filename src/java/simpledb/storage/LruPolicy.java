@@ -0,0 +1,65 @@
+package simpledb.storage;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Least-recently-used replacement. Evictable pages are kept in access order,
+ * so a hit moves the page to the tail and the victim is always the head.
+ */
+public class LruPolicy implements ReplacementPolicy {
+
+    // 可以被驱逐的page，最久未访问的在最前面
+    private final LinkedHashSet<PageId> order = new LinkedHashSet<>();
+
+    private final Set<PageId> pinned = new HashSet<>();
+
+    @Override
+    public void pageAdded(PageId pid) {
+        this.pinned.remove(pid);
+        this.order.remove(pid);
+        this.order.add(pid);
+    }
+
+    @Override
+    public void pageAccessed(PageId pid) {
+        if (this.order.remove(pid)) {
+            this.order.add(pid);
+        }
+    }
+
+    @Override
+    public void pageRemoved(PageId pid) {
+        this.order.remove(pid);
+        this.pinned.remove(pid);
+    }
+
+    @Override
+    public void setEvictable(PageId pid, boolean evictable) {
+        if (evictable) {
+            if (this.pinned.remove(pid)) {
+                this.order.add(pid);
+            }
+        } else if (this.order.remove(pid)) {
+            this.pinned.add(pid);
+        }
+    }
+
+    @Override
+    public PageId evict() {
+        Iterator<PageId> it = this.order.iterator();
+        if (!it.hasNext()) {
+            return null;
+        }
+        PageId victim = it.next();
+        it.remove();
+        return victim;
+    }
+
+    @Override
+    public void unevict(PageId pid) {
+        this.pinned.add(pid);
+    }
+}
@@ -0,0 +1,178 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * PagePrefetcher reads pages into the BufferPool on background threads ahead
+ * of a scan that is about to ask for them, so that a scan does not wait for
+ * each of its pages in turn.
+ * <p>
+ * Prefetching is only a hint. It takes no locks, never evicts a page that is
+ * not part of the buffer pool's scan ring, and silently gives up on a page it
+ * cannot read or install. A transaction that asks for a page while it is
+ * still being prefetched waits for that read instead of issuing its own.
+ *
+ * @see BufferPool#getPrefetcher()
+ */
+public class PagePrefetcher {
+
+    /** Default number of pages read ahead of a scan. */
+    public static final int DEFAULT_WINDOW = 4;
+
+    private static final int THREADS = 2;
+
+    private final BufferPool bufferPool;
+
+    private final ThreadPoolExecutor executor;
+
+    // 正在后台读取的page，用来去重，以及让getPage等待已经发出的读请求
+    private final ConcurrentHashMap<PageId,CompletableFuture<Prefetched>> inFlight;
+
+    private volatile int window;
+
+    PagePrefetcher(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+        this.inFlight = new ConcurrentHashMap<>();
+        this.window = DEFAULT_WINDOW;
+        AtomicInteger threadNo = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(THREADS, THREADS, 1, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+                    Thread t = new Thread(r, "page-prefetcher-" + threadNo.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /** @return the number of pages scans read ahead, 0 if prefetching is off */
+    public int getWindow() {
+        return this.window;
+    }
+
+    /**
+     * Sets the number of pages scans read ahead.
+     *
+     * @param window the read-ahead distance in pages, 0 to turn prefetching off
+     */
+    public void setWindow(int window) {
+        this.window = Math.max(0, window);
+    }
+
+    /**
+     * Starts reading a page into the buffer pool if it is neither resident
+     * nor already being read.
+     *
+     * @param pid the page to prefetch, may be null
+     */
+    public void prefetch(PageId pid) {
+        this.prefetch(pid, null, 1);
+    }
+
+    /**
+     * Prefetches a page and the depth - 1 pages that follow it, where the
+     * page following a given page is only known once that page is read, as
+     * with the right-sibling pointers of B+ tree leaves.
+     *
+     * @param pid the first page to prefetch, may be null
+     * @param successor returns the id of the page after the given page, or
+     *   null if there is none
+     * @param depth the number of pages to prefetch
+     */
+    public void prefetch(PageId pid, Function<Page,PageId> successor, int depth) {
+        while (pid != null && depth > 0) {
+            Page resident = this.bufferPool.peekPage(pid);
+            if (resident == null) {
+                CompletableFuture<Prefetched> future = new CompletableFuture<>();
+                if (this.inFlight.putIfAbsent(pid, future) != null) {
+                    return;
+                }
+                // 另一个预读可能在上面的检查之后刚刚把page装入，它会先装入再移出inFlight
+                resident = this.bufferPool.peekPage(pid);
+                if (resident == null) {
+                    this.submit(pid, future, successor, depth);
+                    return;
+                }
+                this.inFlight.remove(pid, future);
+                future.complete(null);
+            }
+            if (successor == null) {
+                return;
+            }
+            pid = successor.apply(resident);
+            depth--;
+        }
+    }
+
+    private void submit(PageId pid, CompletableFuture<Prefetched> future,
+                        Function<Page,PageId> successor, int depth) {
+        try {
+            this.executor.execute(() -> this.load(pid, future, successor, depth));
+        } catch (RejectedExecutionException e) {
+            this.inFlight.remove(pid, future);
+            future.complete(null);
+        }
+    }
+
+    private void load(PageId pid, CompletableFuture<Prefetched> future,
+                      Function<Page,PageId> successor, int depth) {
+        Prefetched result = null;
+        try {
+            if (Database.getBufferPool() != this.bufferPool) {
+                // bufferPool已经被替换掉了，没有必要再读
+                return;
+            }
+            long epoch = this.bufferPool.ioEpoch();
+            Page page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+            if (page != null) {
+                result = new Prefetched(page, epoch);
+                this.bufferPool.installPrefetchedPage(pid, page, epoch);
+            }
+        } catch (RuntimeException e) {
+            // 预读只是一个提示，读不到就算了
+            result = null;
+        } finally {
+            future.complete(result);
+            this.inFlight.remove(pid, future);
+        }
+        if (result != null && successor != null && depth > 1) {
+            this.prefetch(successor.apply(result.page), successor, depth - 1);
+        }
+    }
+
+    /**
+     * Waits for a read of the page that is already in progress.
+     *
+     * @return the page as read by the prefetcher, or null if the page is not
+     *   being prefetched or the read may have become stale
+     */
+    Page await(PageId pid) {
+        CompletableFuture<Prefetched> future = this.inFlight.get(pid);
+        if (future == null) {
+            return null;
+        }
+        Prefetched result = future.join();
+        if (result == null || result.epoch != this.bufferPool.ioEpoch()) {
+            return null;
+        }
+        return result.page;
+    }
+
+    private static class Prefetched {
+        final Page page;
+        final long epoch;
+
+        Prefetched(Page page, long epoch) {
+            this.page = page;
+            this.epoch = epoch;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package simpledb.storage;
+
+/**
+ * ReplacementPolicy decides which page the BufferPool evicts when it needs
+ * room for a new page. The BufferPool keeps one policy instance per page
+ * table partition and only calls it while holding that partition's lock, so
+ * implementations need not be thread safe.
+ * <p>
+ * A page that is not evictable (because it is dirty, for example) is still
+ * tracked by the policy but must never be returned from {@link #evict()}.
+ *
+ * @see BufferPool
+ */
+public interface ReplacementPolicy {
+
+    /** Starts tracking a page that was just added to the buffer pool. */
+    void pageAdded(PageId pid);
+
+    /** Records a hit on a page that is already tracked. */
+    void pageAccessed(PageId pid);
+
+    /** Stops tracking a page that was removed from the buffer pool. */
+    void pageRemoved(PageId pid);
+
+    /**
+     * Marks a tracked page as a candidate (or not) for eviction.
+     *
+     * @param pid the page
+     * @param evictable false if the page must stay in the buffer pool
+     */
+    void setEvictable(PageId pid, boolean evictable);
+
+    /**
+     * Chooses a victim among the evictable pages and stops tracking it.
+     *
+     * @return the id of the page to evict, or null if no page is evictable
+     */
+    PageId evict();
+
+    /**
+     * Takes back the victim just returned by {@link #evict()} when the
+     * buffer pool cannot evict it after all, e.g. because it is dirty. The
+     * page is tracked again as not evictable, and goes back to where it was
+     * before evict() chose it once {@link #setEvictable} says it may be
+     * evicted; this is not counted as a new reference.
+     *
+     * @param pid the page evict() returned
+     */
+    void unevict(PageId pid);
+}
@@ -1,6 +1,9 @@
 package simpledb.storage;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Iterator;
 
@@ -21,6 +24,12 @@ public class Tuple implements Serializable {
 
     private RecordId recordId;
 
+    // 从page的原始数据创建的tuple，字段在第一次被访问时才解码
+    private transient ByteBuffer data;
+
+    // 该tuple在data中的起始位置
+    private int offset;
+
     /**
      * Create a new tuple with the specified schema (type).
      *
@@ -34,6 +43,24 @@ public class Tuple implements Serializable {
         this.fields = new Field[td.numFields()];
     }
 
+    /**
+     * Create a tuple whose fields are decoded from the serialized tuple
+     * starting at the given offset of data the first time each one is read.
+     * The bytes of the tuple must not change while it is in use.
+     *
+     * @param td
+     *            the schema of this tuple.
+     * @param data
+     *            the buffer holding the serialized tuple.
+     * @param offset
+     *            the index in data of the first byte of the tuple.
+     */
+    Tuple(TupleDesc td, ByteBuffer data, int offset) {
+        this(td);
+        this.data = data;
+        this.offset = offset;
+    }
+
     /**
      * @return The TupleDesc representing the schema of this tuple.
      */
@@ -83,7 +110,34 @@ public class Tuple implements Serializable {
      */
     public Field getField(int i) {
         // some code goes here
-        return this.fields[i];
+        Field f = this.fields[i];
+        ByteBuffer d = this.data;
+        if (f == null && d != null) {
+            int fieldOffset = this.offset;
+            for (int j = 0; j < i; j++) {
+                fieldOffset += this.td.getFieldType(j).getLen();
+            }
+            f = this.td.getFieldType(i).parse(d, fieldOffset);
+            this.fields[i] = f;
+        }
+        return f;
+    }
+
+    /**
+     * 解码所有还没有被解码的字段，之后不再引用page的原始数据
+     */
+    private void decodeAll() {
+        if (this.data != null) {
+            for (int i = 0; i < this.fields.length; i++) {
+                this.getField(i);
+            }
+            this.data = null;
+        }
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        this.decodeAll();
+        out.defaultWriteObject();
     }
 
     /**
@@ -98,14 +152,15 @@ public class Tuple implements Serializable {
         // some code goes here
         StringBuilder sb = new StringBuilder();
         for(int i = 0 ; i < this.td.numFields()-1 ; i++){
-            sb.append(this.fields[i].toString());
+            sb.append(this.getField(i).toString());
             sb.append("\t");
         }
-        sb.append(this.fields[this.td.numFields()-1].toString());
+        sb.append(this.getField(this.td.numFields()-1).toString());
         return sb.toString();
     }
 
     private Field[] getFields(){
+        this.decodeAll();
         return this.fields;
     }
 
@@ -125,6 +180,8 @@ public class Tuple implements Serializable {
     public void resetTupleDesc(TupleDesc td)
     {
         // some code goes here
+        // 字段的位置是按原来的TupleDesc计算的，先全部解码
+        this.decodeAll();
         this.td = td;
     }
 }
@@ -0,0 +1,98 @@
+package simpledb.storage;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+/**
+ * Simplified 2Q replacement. Pages referenced once sit in a FIFO probation
+ * queue (A1in); only a page that is referenced again after it was evicted
+ * from probation, i.e. while its id is still remembered in the ghost queue
+ * (A1out), is promoted to the LRU-ordered hot queue (Am). A one-off scan
+ * therefore churns through probation without displacing hot pages.
+ */
+public class TwoQueuePolicy implements ReplacementPolicy {
+
+    /** Number of evicted page ids remembered in the ghost queue. */
+    private static final int GHOST_CAPACITY = 64;
+
+    private final LinkedHashSet<PageId> probation = new LinkedHashSet<>();
+
+    private final LinkedHashSet<PageId> hot = new LinkedHashSet<>();
+
+    private final LinkedHashSet<PageId> ghosts = new LinkedHashSet<>();
+
+    // 不可驱逐的page，记录它原来是否在hot队列中
+    private final Map<PageId,Boolean> pinned = new HashMap<>();
+
+    @Override
+    public void pageAdded(PageId pid) {
+        this.pageRemoved(pid);
+        if (this.ghosts.remove(pid)) {
+            this.hot.add(pid);
+        } else {
+            this.probation.add(pid);
+        }
+    }
+
+    @Override
+    public void pageAccessed(PageId pid) {
+        // 在probation中的page再次被访问不会改变位置
+        if (this.hot.remove(pid)) {
+            this.hot.add(pid);
+        }
+    }
+
+    @Override
+    public void pageRemoved(PageId pid) {
+        this.probation.remove(pid);
+        this.hot.remove(pid);
+        this.pinned.remove(pid);
+    }
+
+    @Override
+    public void setEvictable(PageId pid, boolean evictable) {
+        if (evictable) {
+            Boolean wasHot = this.pinned.remove(pid);
+            if (wasHot != null) {
+                (wasHot ? this.hot : this.probation).add(pid);
+            }
+        } else if (this.hot.remove(pid)) {
+            this.pinned.put(pid, true);
+        } else if (this.probation.remove(pid)) {
+            this.pinned.put(pid, false);
+        }
+    }
+
+    @Override
+    public PageId evict() {
+        int resident = this.probation.size() + this.hot.size() + this.pinned.size();
+        if (!this.probation.isEmpty() && (this.hot.isEmpty() || this.probation.size() * 4 > resident)) {
+            PageId victim = removeFirst(this.probation);
+            this.ghosts.add(victim);
+            if (this.ghosts.size() > GHOST_CAPACITY) {
+                removeFirst(this.ghosts);
+            }
+            return victim;
+        }
+        if (!this.hot.isEmpty()) {
+            return removeFirst(this.hot);
+        }
+        return null;
+    }
+
+    @Override
+    public void unevict(PageId pid) {
+        // 从probation中选出的victim刚被放进ghosts，不能当作再次访问而晋升到hot队列
+        boolean wasHot = !this.ghosts.remove(pid);
+        this.pinned.put(pid, wasHot);
+    }
+
+    private static PageId removeFirst(LinkedHashSet<PageId> queue) {
+        Iterator<PageId> it = queue.iterator();
+        PageId first = it.next();
+        it.remove();
+        return first;
+    }
+}
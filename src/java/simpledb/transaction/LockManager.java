@@ -0,0 +1,571 @@
+package simpledb.transaction;
+
+import simpledb.common.Permissions;
+import simpledb.storage.PageId;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * LockManager is the lock table behind the BufferPool's strict two-phase
+ * locking. Locks are hierarchical: tables are locked in one of the five
+ * {@link LockMode}s, pages only SHARED or EXCLUSIVE, and the caller is
+ * responsible for taking the right intention lock on a table before locking
+ * one of its pages.
+ * <p>
+ * Each lockable resource has a set of holders, each with its own lock mode,
+ * and a FIFO queue of waiting requests. A request that cannot be granted
+ * parks until it is; a holder that asks for a stronger mode is upgraded in
+ * place, ahead of the other waiters.
+ * <p>
+ * Every resource has its own latch, so transactions locking different pages,
+ * or sharing a read lock on the same hot page, do not serialize on a global
+ * mutex. Each transaction's locks are indexed by table so that they can all
+ * be released at once when it completes.
+ * <p>
+ * Whenever a transaction starts to wait, the wait-for graph is searched for
+ * a cycle through it. If there is one, the youngest transaction on the
+ * cycle is chosen as the victim and its request fails with a
+ * TransactionAbortedException. No other request ever fails.
+ */
+public class LockManager {
+
+    /**
+     * The modes a resource can be locked in. Pages are only ever locked
+     * SHARED or EXCLUSIVE; the intention modes say that the holder locks
+     * pages of a table in the corresponding mode.
+     */
+    public enum LockMode {
+        INTENTION_SHARED, INTENTION_EXCLUSIVE, SHARED, SHARED_INTENTION_EXCLUSIVE, EXCLUSIVE;
+
+        // 兼容矩阵，顺序与枚举的声明顺序一致
+        private static final boolean[][] COMPATIBLE = {
+                {true, true, true, true, false},
+                {true, true, false, false, false},
+                {true, false, true, false, false},
+                {true, false, false, false, false},
+                {false, false, false, false, false},
+        };
+
+        /** @return true if two transactions can hold this and the other mode at once */
+        public boolean compatibleWith(LockMode other) {
+            return COMPATIBLE[this.ordinal()][other.ordinal()];
+        }
+
+        /**
+         * @return true if holding this mode grants everything the other mode
+         *   does. A table lock that covers SHARED or EXCLUSIVE makes the
+         *   corresponding page locks on the table unnecessary.
+         */
+        public boolean covers(LockMode other) {
+            switch (this) {
+                case EXCLUSIVE:
+                    return true;
+                case SHARED_INTENTION_EXCLUSIVE:
+                    return other != EXCLUSIVE;
+                case SHARED:
+                    return other == SHARED || other == INTENTION_SHARED;
+                case INTENTION_EXCLUSIVE:
+                    return other == INTENTION_EXCLUSIVE || other == INTENTION_SHARED;
+                default:
+                    return other == INTENTION_SHARED;
+            }
+        }
+
+        /** @return the weakest mode that covers both this and the other mode */
+        public LockMode combine(LockMode other) {
+            if (this.covers(other)) {
+                return this;
+            }
+            if (other.covers(this)) {
+                return other;
+            }
+            // 只有SHARED和INTENTION_EXCLUSIVE互不覆盖
+            return SHARED_INTENTION_EXCLUSIVE;
+        }
+
+        /** @return the page lock mode needed for the given permissions */
+        public static LockMode of(Permissions perm) {
+            return perm == Permissions.READ_WRITE ? EXCLUSIVE : SHARED;
+        }
+    }
+
+    private final ConcurrentHashMap<Object, LockEntry> table = new ConcurrentHashMap<>();
+
+    // 每个事务持有的表锁和page锁，事务结束时一次性释放
+    private final ConcurrentHashMap<TransactionId, TransactionLocks> locks = new ConcurrentHashMap<>();
+
+    // 正在等待的事务和它的请求，一个事务同一时间最多等待一个请求
+    private final ConcurrentHashMap<TransactionId, Request> waiting = new ConcurrentHashMap<>();
+
+    // 同一时间只有一个线程做死锁检测，也只有它会同时持有多个page的latch
+    private final ReentrantLock detector = new ReentrantLock();
+
+    /**
+     * Acquires a lock on a page, blocking until it is granted. Requesting a
+     * lock the transaction already holds, or a shared lock while holding an
+     * exclusive one, returns immediately. The caller should hold the
+     * matching intention lock on the page's table.
+     *
+     * @param tid the transaction requesting the lock
+     * @param pid the page to lock
+     * @param perm READ_ONLY for a shared lock, READ_WRITE for an exclusive one
+     * @throws TransactionAbortedException if the transaction was chosen as
+     *   the victim of a deadlock, or interrupted while waiting
+     */
+    public void acquire(TransactionId tid, PageId pid, Permissions perm)
+            throws TransactionAbortedException {
+        this.acquire(tid, pid, LockMode.of(perm), true);
+    }
+
+    /**
+     * Acquires a lock on a table, blocking until it is granted. If the
+     * transaction already holds the table in another mode, it ends up holding
+     * the weakest mode that covers both.
+     *
+     * @throws TransactionAbortedException if the transaction was chosen as
+     *   the victim of a deadlock, or interrupted while waiting
+     */
+    public void acquireTable(TransactionId tid, int tableId, LockMode mode)
+            throws TransactionAbortedException {
+        LockMode held = this.getTableLockMode(tid, tableId);
+        if (held != null && held.covers(mode)) {
+            // 事务对自己的表锁的读写只发生在自己的线程里，不用去碰热点表的latch
+            return;
+        }
+        this.acquire(tid, new TableResource(tableId), mode, true);
+    }
+
+    /**
+     * Acquires a lock on a table only if it can be granted right away.
+     *
+     * @return true if the transaction holds a lock covering mode on the table
+     */
+    public boolean tryAcquireTable(TransactionId tid, int tableId, LockMode mode) {
+        try {
+            return this.acquire(tid, new TableResource(tableId), mode, false);
+        } catch (TransactionAbortedException e) {
+            // 不等待的请求不会被中止
+            return false;
+        }
+    }
+
+    private boolean acquire(TransactionId tid, Object resource, LockMode mode, boolean wait)
+            throws TransactionAbortedException {
+        Request request;
+        while (true) {
+            LockEntry entry = this.table.computeIfAbsent(resource, LockEntry::new);
+            entry.latch.lock();
+            try {
+                if (entry.removed) {
+                    // 在拿到latch之前这个entry刚好被清理掉了，重新找
+                    continue;
+                }
+                LockMode held = entry.holders.get(tid);
+                if (held != null && held.covers(mode)) {
+                    return true;
+                }
+                LockMode target = held == null ? mode : held.combine(mode);
+                boolean upgrade = held != null;
+                // 没有人在排队时直接授予；升级请求不用等前面排队的请求
+                if ((upgrade || entry.queue.isEmpty()) && entry.canGrant(tid, target)) {
+                    this.grant(entry, tid, target);
+                    return true;
+                }
+                if (!wait) {
+                    this.removeIfUnused(entry);
+                    return false;
+                }
+                request = new Request(tid, target, entry);
+                if (upgrade) {
+                    entry.queue.addFirst(request);
+                } else {
+                    entry.queue.addLast(request);
+                }
+                this.waiting.put(tid, request);
+                break;
+            } finally {
+                entry.latch.unlock();
+            }
+        }
+        this.resolveDeadlocks(request);
+        this.await(request);
+        return true;
+    }
+
+    private void await(Request request) throws TransactionAbortedException {
+        LockEntry entry = request.entry;
+        entry.latch.lock();
+        try {
+            try {
+                while (!request.granted && !request.aborted) {
+                    request.ready.await();
+                }
+            } catch (InterruptedException e) {
+                request.aborted = true;
+            } finally {
+                if (!request.granted) {
+                    this.cancel(request);
+                }
+            }
+            if (!request.granted) {
+                throw new TransactionAbortedException();
+            }
+        } finally {
+            entry.latch.unlock();
+        }
+    }
+
+    /** @return true if the transaction holds a lock of any mode on the page */
+    public boolean holdsLock(TransactionId tid, PageId pid) {
+        return this.getLockMode(tid, pid) != null;
+    }
+
+    /** @return the mode the transaction holds the page in, or null */
+    public LockMode getLockMode(TransactionId tid, PageId pid) {
+        LockEntry entry = this.table.get(pid);
+        if (entry == null) {
+            return null;
+        }
+        entry.latch.lock();
+        try {
+            return entry.holders.get(tid);
+        } finally {
+            entry.latch.unlock();
+        }
+    }
+
+    /** @return the mode the transaction holds the table in, or null */
+    public LockMode getTableLockMode(TransactionId tid, int tableId) {
+        TransactionLocks txnLocks = this.locks.get(tid);
+        return txnLocks == null ? null : txnLocks.tables.get(tableId);
+    }
+
+    /** @return a snapshot of the tables the transaction holds locks on */
+    public Set<Integer> getLockedTables(TransactionId tid) {
+        TransactionLocks txnLocks = this.locks.get(tid);
+        return txnLocks == null ? Collections.emptySet() : new HashSet<>(txnLocks.tables.keySet());
+    }
+
+    /** @return a snapshot of the pages the transaction holds locks on */
+    public Set<PageId> getLockedPages(TransactionId tid) {
+        TransactionLocks txnLocks = this.locks.get(tid);
+        Set<PageId> pages = new HashSet<>();
+        if (txnLocks != null) {
+            for (Set<PageId> pids : txnLocks.pages.values()) {
+                pages.addAll(pids);
+            }
+        }
+        return pages;
+    }
+
+    /** @return a snapshot of the pages of a table the transaction holds locks on */
+    public Set<PageId> getLockedPages(TransactionId tid, int tableId) {
+        TransactionLocks txnLocks = this.locks.get(tid);
+        Set<PageId> pids = txnLocks == null ? null : txnLocks.pages.get(tableId);
+        return pids == null ? Collections.emptySet() : new HashSet<>(pids);
+    }
+
+    /** @return the number of pages of a table the transaction holds locks on */
+    public int countLockedPages(TransactionId tid, int tableId) {
+        TransactionLocks txnLocks = this.locks.get(tid);
+        Set<PageId> pids = txnLocks == null ? null : txnLocks.pages.get(tableId);
+        return pids == null ? 0 : pids.size();
+    }
+
+    /** Releases the lock a transaction holds on a page, if any. */
+    public void release(TransactionId tid, PageId pid) {
+        TransactionLocks txnLocks = this.locks.get(tid);
+        Set<PageId> pids = txnLocks == null ? null : txnLocks.pages.get(pid.getTableId());
+        if (pids != null) {
+            pids.remove(pid);
+        }
+        this.releaseEntry(tid, pid);
+    }
+
+    /**
+     * Releases all locks of a transaction, and cancels the request it is
+     * waiting for, if any.
+     */
+    public void releaseAll(TransactionId tid) {
+        // 先取消正在等待的请求，之后就不会再有新的锁被授予给这个事务了
+        Request pending = this.waiting.get(tid);
+        if (pending != null) {
+            pending.entry.latch.lock();
+            try {
+                if (!pending.granted && !pending.aborted) {
+                    this.abort(pending);
+                }
+            } finally {
+                pending.entry.latch.unlock();
+            }
+        }
+        TransactionLocks txnLocks = this.locks.remove(tid);
+        if (txnLocks == null) {
+            return;
+        }
+        // 先放page锁再放表锁，等在表锁上的事务被唤醒后就能拿到page锁
+        for (Set<PageId> pids : txnLocks.pages.values()) {
+            for (PageId pid : pids) {
+                this.releaseEntry(tid, pid);
+            }
+        }
+        for (Integer tableId : txnLocks.tables.keySet()) {
+            this.releaseEntry(tid, new TableResource(tableId));
+        }
+    }
+
+    private void releaseEntry(TransactionId tid, Object resource) {
+        LockEntry entry = this.table.get(resource);
+        if (entry == null) {
+            return;
+        }
+        entry.latch.lock();
+        try {
+            LockMode held = entry.holders.remove(tid);
+            if (held != null) {
+                entry.counts[held.ordinal()]--;
+                this.grantWaiters(entry);
+                this.removeIfUnused(entry);
+            }
+        } finally {
+            entry.latch.unlock();
+        }
+    }
+
+    // 以下方法都要在持有entry.latch时调用
+
+    private void grant(LockEntry entry, TransactionId tid, LockMode mode) {
+        LockMode old = entry.holders.put(tid, mode);
+        if (old != null) {
+            entry.counts[old.ordinal()]--;
+        }
+        entry.counts[mode.ordinal()]++;
+        TransactionLocks txnLocks = this.locks.computeIfAbsent(tid, k -> new TransactionLocks());
+        if (entry.resource instanceof TableResource) {
+            txnLocks.tables.put(((TableResource) entry.resource).tableId, mode);
+        } else {
+            PageId pid = (PageId) entry.resource;
+            txnLocks.pages.computeIfAbsent(pid.getTableId(), k -> ConcurrentHashMap.newKeySet()).add(pid);
+        }
+    }
+
+    /**
+     * 按FIFO顺序授予队首所有可以授予的请求
+     */
+    private void grantWaiters(LockEntry entry) {
+        Request head;
+        while ((head = entry.queue.peekFirst()) != null && entry.canGrant(head.tid, head.mode)) {
+            entry.queue.pollFirst();
+            this.waiting.remove(head.tid, head);
+            this.grant(entry, head.tid, head.mode);
+            head.granted = true;
+            head.ready.signal();
+        }
+    }
+
+    /** Fails a waiting request and wakes up its thread. */
+    private void abort(Request request) {
+        request.aborted = true;
+        this.cancel(request);
+        request.ready.signal();
+    }
+
+    private void cancel(Request request) {
+        this.waiting.remove(request.tid, request);
+        if (request.entry.queue.remove(request)) {
+            // 排在它后面的请求可能可以授予了
+            this.grantWaiters(request.entry);
+        }
+        this.removeIfUnused(request.entry);
+    }
+
+    private void removeIfUnused(LockEntry entry) {
+        if (entry.holders.isEmpty() && entry.queue.isEmpty()) {
+            entry.removed = true;
+            this.table.remove(entry.resource, entry);
+        }
+    }
+
+    /**
+     * Looks for cycles in the wait-for graph through a transaction that has
+     * just started to wait, and aborts the youngest transaction on each.
+     * Any new cycle has to pass through that transaction, since the graph was
+     * acyclic before.
+     */
+    private void resolveDeadlocks(Request request) {
+        this.detector.lock();
+        try {
+            List<Request> cycle;
+            while ((cycle = this.findCycle(request)) != null) {
+                Request victim = cycle.get(0);
+                for (Request r : cycle) {
+                    if (r.tid.getId() > victim.tid.getId()) {
+                        victim = r;
+                    }
+                }
+                this.abortIfDeadlocked(cycle, victim);
+            }
+        } finally {
+            this.detector.unlock();
+        }
+    }
+
+    private List<Request> findCycle(Request start) {
+        List<Request> path = new ArrayList<>();
+        return this.findCycle(start, start, path, new HashSet<>()) ? path : null;
+    }
+
+    private boolean findCycle(Request start, Request request, List<Request> path,
+                              Set<TransactionId> visited) {
+        List<TransactionId> blockers;
+        request.entry.latch.lock();
+        try {
+            if (request.granted || request.aborted) {
+                return false;
+            }
+            blockers = request.entry.blockersOf(request);
+        } finally {
+            request.entry.latch.unlock();
+        }
+        path.add(request);
+        for (TransactionId blocker : blockers) {
+            if (blocker.equals(start.tid)) {
+                return true;
+            }
+            Request next = this.waiting.get(blocker);
+            if (next != null && visited.add(blocker) && this.findCycle(start, next, path, visited)) {
+                return true;
+            }
+        }
+        path.remove(path.size() - 1);
+        return false;
+    }
+
+    /**
+     * 上面找环的时候每条边是分别看到的，这里锁住环上所有的page，确认环还在之后再中止victim
+     */
+    private void abortIfDeadlocked(List<Request> cycle, Request victim) {
+        Set<LockEntry> entries = new LinkedHashSet<>();
+        for (Request r : cycle) {
+            entries.add(r.entry);
+        }
+        for (LockEntry entry : entries) {
+            entry.latch.lock();
+        }
+        try {
+            for (int i = 0; i < cycle.size(); i++) {
+                Request r = cycle.get(i);
+                TransactionId next = cycle.get((i + 1) % cycle.size()).tid;
+                if (r.granted || r.aborted || !r.entry.blockersOf(r).contains(next)) {
+                    return;
+                }
+            }
+            this.abort(victim);
+        } finally {
+            for (LockEntry entry : entries) {
+                entry.latch.unlock();
+            }
+        }
+    }
+
+    /** The key a table's lock entry is stored under. */
+    private static final class TableResource {
+        final int tableId;
+
+        TableResource(int tableId) {
+            this.tableId = tableId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof TableResource && ((TableResource) o).tableId == this.tableId;
+        }
+
+        @Override
+        public int hashCode() {
+            return Integer.hashCode(this.tableId);
+        }
+    }
+
+    /**
+     * The locks one transaction holds: the mode of each locked table, and
+     * the locked pages grouped by table.
+     */
+    private static class TransactionLocks {
+        final Map<Integer, LockMode> tables = new ConcurrentHashMap<>();
+        final Map<Integer, Set<PageId>> pages = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * The holders of one page or table and the requests waiting for it,
+     * guarded by the entry's latch.
+     */
+    private static class LockEntry {
+        final Object resource;
+        final ReentrantLock latch = new ReentrantLock();
+        final Map<TransactionId, LockMode> holders = new HashMap<>();
+        final Deque<Request> queue = new ArrayDeque<>();
+
+        // 每种模式的持有者个数，判断能否授予时不用遍历所有持有者
+        final int[] counts = new int[LockMode.values().length];
+
+        // 已经从锁表中移除，拿到latch之后发现这个标记的线程要重新查锁表
+        boolean removed;
+
+        LockEntry(Object resource) {
+            this.resource = resource;
+        }
+
+        boolean canGrant(TransactionId tid, LockMode mode) {
+            LockMode held = this.holders.get(tid);
+            for (LockMode other : LockMode.values()) {
+                int n = this.counts[other.ordinal()] - (other == held ? 1 : 0);
+                if (n > 0 && !mode.compatibleWith(other)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * 请求要等待的事务：模式冲突的持有者，以及排在它前面的所有请求。
+         * grantWaiters严格按FIFO授予，即使前面的请求与它兼容，它也要等前面的请求先被授予
+         */
+        List<TransactionId> blockersOf(Request request) {
+            List<TransactionId> blockers = new ArrayList<>();
+            for (Map.Entry<TransactionId, LockMode> holder : this.holders.entrySet()) {
+                if (!holder.getKey().equals(request.tid) && !request.mode.compatibleWith(holder.getValue())) {
+                    blockers.add(holder.getKey());
+                }
+            }
+            for (Request ahead : this.queue) {
+                if (ahead == request) {
+                    break;
+                }
+                if (!ahead.tid.equals(request.tid)) {
+                    blockers.add(ahead.tid);
+                }
+            }
+            return blockers;
+        }
+    }
+
+    private static class Request {
+        final TransactionId tid;
+        final LockMode mode;
+        final LockEntry entry;
+        final Condition ready;
+        boolean granted;
+        boolean aborted;
+
+        Request(TransactionId tid, LockMode mode, LockEntry entry) {
+            this.tid = tid;
+            this.mode = mode;
+            this.entry = entry;
+            this.ready = entry.latch.newCondition();
+        }
+    }
+}
@@ -11,10 +11,21 @@ import java.io.*;
 
 public class Transaction {
     private final TransactionId tid;
+    private final boolean readOnly;
     volatile boolean started = false;
 
     public Transaction() {
+        this(false);
+    }
+
+    /**
+     * @param readOnly if true, the transaction reads a snapshot of the
+     *   database as of its start, without taking locks, and cannot modify
+     *   anything
+     */
+    public Transaction(boolean readOnly) {
         tid = new TransactionId();
+        this.readOnly = readOnly;
     }
 
     /** Start the transaction running */
@@ -25,12 +36,19 @@ public class Transaction {
         } catch (IOException e) {
             e.printStackTrace();
         }
+        if (readOnly) {
+            Database.getBufferPool().beginSnapshot(tid);
+        }
     }
 
     public TransactionId getId() {
         return tid;
     }
 
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
     /** Finish the transaction */
     public void commit() throws IOException {
         transactionComplete(false);
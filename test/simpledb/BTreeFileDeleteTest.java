@@ -249,6 +249,66 @@ public class BTreeFileDeleteTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Stealing from the left sibling when only the key in front of its last
+	 * child rotates through the parent keeps every child
+	 */
+	@Test
+	public void testStealOneChildFromLeftInternalPage() throws Exception {
+		File emptyFile = File.createTempFile("empty", ".dat");
+		emptyFile.deleteOnExit();
+		Database.reset();
+		BTreeFile empty = BTreeUtility.createEmptyBTreeFile(emptyFile.getAbsolutePath(), 2, 0, 16);
+		int tableid = empty.getId();
+		int keyField = 0;
+
+		// page和sibling一共10个entry，平均下来只有sibling最后一个孩子要移到page中
+		BTreePageId pageId = new BTreePageId(tableid, 1, BTreePageId.INTERNAL);
+		BTreePageId siblingId = new BTreePageId(tableid, 2, BTreePageId.INTERNAL);
+		BTreeInternalPage page = BTreeUtility.createRandomInternalPage(pageId, keyField, BTreePageId.LEAF,
+				4, BTreeUtility.MAX_RAND_VALUE/2, BTreeUtility.MAX_RAND_VALUE, 11);
+		BTreeInternalPage sibling = BTreeUtility.createRandomInternalPage(siblingId, keyField,
+				BTreePageId.LEAF, 6, 0, BTreeUtility.MAX_RAND_VALUE/2, 4);
+
+		BTreePageId parentId = new BTreePageId(tableid, 3, BTreePageId.INTERNAL);
+		BTreeInternalPage parent = new BTreeInternalPage(parentId, BTreeInternalPage.createEmptyPageData(), keyField);
+		BTreeEntry entry = new BTreeEntry(page.iterator().next().getKey(), siblingId, pageId);
+		parent.insertEntry(entry);
+		page.setParentId(parentId);
+		sibling.setParentId(parentId);
+
+		Set<BTreePageId> children = new HashSet<>();
+		children.addAll(childrenOf(page));
+		children.addAll(childrenOf(sibling));
+		BTreePageId lastChild = sibling.reverseIterator().next().getRightChild();
+
+		Map<PageId, Page> dirtypages = new HashMap<>();
+		dirtypages.put(pageId, page);
+		dirtypages.put(siblingId, sibling);
+		dirtypages.put(parentId, parent);
+		empty.stealFromLeftInternalPage(tid, dirtypages, page, sibling, parent, entry);
+
+		assertEquals(5, page.getNumEntries());
+		assertEquals(5, sibling.getNumEntries());
+		assertEquals(lastChild, page.iterator().next().getLeftChild());
+		Set<BTreePageId> after = new HashSet<>();
+		after.addAll(childrenOf(page));
+		after.addAll(childrenOf(sibling));
+		assertEquals(children, after);
+	}
+
+	private static List<BTreePageId> childrenOf(BTreeInternalPage page) {
+		List<BTreePageId> children = new ArrayList<>();
+		Iterator<BTreeEntry> it = page.iterator();
+		BTreeEntry e = null;
+		while(it.hasNext()) {
+			e = it.next();
+			children.add(e.getLeftChild());
+		}
+		children.add(e.getRightChild());
+		return children;
+	}
+
 	@Test
 	public void testStealFromRightInternalPage() throws Exception {
 		File emptyFile = File.createTempFile("empty", ".dat");
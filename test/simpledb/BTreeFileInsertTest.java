@@ -136,6 +136,40 @@ public class BTreeFileInsertTest extends SimpleDbTestBase {
 				entriesPerPage/2 - 1 == otherPage.getNumEntries());
 	}    
 
+	/**
+	 * Both halves of a split internal page point to the parent the middle key
+	 * was pushed into
+	 */
+	@Test
+	public void testSplitInternalPageSetsParents() throws Exception {
+		File emptyFile = File.createTempFile("empty", ".dat");
+		emptyFile.deleteOnExit();
+		Database.reset();
+		int entriesPerPage = BTreeUtility.getNumEntriesPerPage();
+		BTreeFile empty = BTreeUtility.createEmptyBTreeFile(emptyFile.getAbsolutePath(), 2, 0, 3 + entriesPerPage);
+		int tableid = empty.getId();
+		int keyField = 0;
+
+		BTreePageId leftPageId = new BTreePageId(tableid, 2, BTreePageId.INTERNAL);
+		BTreeInternalPage leftPage = BTreeUtility.createRandomInternalPage(leftPageId, keyField, BTreePageId.LEAF,
+				0, BTreeUtility.MAX_RAND_VALUE, 3);
+		BTreePageId parentId = new BTreePageId(tableid, 1, BTreePageId.INTERNAL);
+		BTreeInternalPage parent = new BTreeInternalPage(parentId,
+				BTreeInternalPage.createEmptyPageData(), keyField);
+		leftPage.setParentId(parentId);
+
+		Map<PageId, Page> dirtypages = new HashMap<>();
+		dirtypages.put(leftPageId, leftPage);
+		dirtypages.put(parentId, parent);
+		empty.splitInternalPage(tid, dirtypages, leftPage, new IntField(BTreeUtility.MAX_RAND_VALUE/2));
+
+		BTreeEntry parentEntry = parent.iterator().next();
+		BTreePage left = (BTreePage) dirtypages.get(parentEntry.getLeftChild());
+		BTreePage right = (BTreePage) dirtypages.get(parentEntry.getRightChild());
+		assertEquals(parentId, left.getParentId());
+		assertEquals(parentId, right.getParentId());
+	}
+
 	@Test
 	public void testReusePage() throws Exception {
 		File emptyFile = File.createTempFile("empty", ".dat");
@@ -1,6 +1,7 @@
 package simpledb;
 
 import simpledb.common.Database;
+import simpledb.common.Permissions;
 import simpledb.common.Utility;
 import simpledb.execution.IndexPredicate;
 import simpledb.index.*;
@@ -136,6 +137,33 @@ public class BTreeFileReadTest extends SimpleDbTestBase {
 		it.close();
 	}
 
+	/**
+	 * Unit test for the latch coupling in BTreeFile searches: afterwards only
+	 * the leaf page is still locked, not the root or the root pointer page
+	 */
+	@Test public void searchReleasesInternalPages() throws Exception {
+		BTreeFile twoLeafPageFile = BTreeUtility.createBTreeFile(2, 520,
+				null, null, 0);
+		DbFileIterator it = twoLeafPageFile.indexIterator(tid,
+				new IndexPredicate(Op.EQUALS, new IntField(5)));
+		it.open();
+		assertTrue(it.hasNext());
+		it.close();
+
+		BufferPool bp = Database.getBufferPool();
+		TransactionId other = new TransactionId();
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(twoLeafPageFile.getId());
+		BTreePageId rootId = ((BTreeRootPtrPage) bp.getPage(other, rootPtrId, Permissions.READ_ONLY)).getRootId();
+		assertEquals(BTreePageId.INTERNAL, rootId.pgcateg());
+		BTreeInternalPage root = (BTreeInternalPage) bp.getPage(other, rootId, Permissions.READ_ONLY);
+		BTreePageId leftLeaf = root.iterator().next().getLeftChild();
+		bp.transactionComplete(other);
+
+		assertFalse(bp.holdsLock(tid, rootPtrId));
+		assertFalse(bp.holdsLock(tid, rootId));
+		assertTrue(bp.holdsLock(tid, leftLeaf));
+	}
+
 	/**
 	 * Unit test for BTreeFile.indexIterator()
 	 */
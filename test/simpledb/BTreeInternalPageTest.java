@@ -8,6 +8,7 @@ import simpledb.TestUtil.SkeletonFile;
 import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.common.Utility;
+import simpledb.execution.Predicate;
 import simpledb.storage.BufferPool;
 import simpledb.storage.IntField;
 import simpledb.systemtest.SimpleDbTestBase;
@@ -174,6 +175,78 @@ public class BTreeInternalPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeInternalPage.reverseIterator() on a page with empty
+	 * slots between its entries
+	 */
+	@Test public void testReverseIteratorAfterDelete() throws Exception {
+		BTreeInternalPage page = new BTreeInternalPage(pid, EXAMPLE_DATA, 0);
+		Iterator<BTreeEntry> it = page.iterator();
+		int i = 0;
+		while (it.hasNext()) {
+			BTreeEntry e = it.next();
+			if (i++ % 2 == 1)
+				page.deleteKeyAndRightChild(e);
+		}
+
+		List<BTreeEntry> entries = new ArrayList<>();
+		it = page.iterator();
+		while (it.hasNext())
+			entries.add(it.next());
+		Collections.reverse(entries);
+
+		int row = 0;
+		it = page.reverseIterator();
+		while (it.hasNext()) {
+			BTreeEntry e = it.next();
+			assertEquals(entries.get(row).getKey(), e.getKey());
+			assertEquals(entries.get(row).getLeftChild(), e.getLeftChild());
+			assertEquals(entries.get(row).getRightChild(), e.getRightChild());
+			row++;
+		}
+		assertEquals(entries.size(), row);
+	}
+
+	/**
+	 * Unit test for BTreeInternalPage.findChild(), checked against a linear scan
+	 * of the entries, both on a full page and with empty slots between entries
+	 */
+	@Test public void findChild() throws Exception {
+		BTreeInternalPage page = new BTreeInternalPage(pid, EXAMPLE_DATA, 0);
+		checkFindChild(page);
+
+		Iterator<BTreeEntry> it = page.iterator();
+		int i = 0;
+		while (it.hasNext()) {
+			BTreeEntry e = it.next();
+			if (i++ % 3 != 0)
+				page.deleteKeyAndRightChild(e);
+		}
+		checkFindChild(page);
+	}
+
+	private void checkFindChild(BTreeInternalPage page) {
+		List<BTreeEntry> entries = new ArrayList<>();
+		Iterator<BTreeEntry> it = page.iterator();
+		while (it.hasNext())
+			entries.add(it.next());
+
+		assertEquals(entries.get(0).getLeftChild(), page.findChild(null));
+		for (int key = 0; key < 65536; key += 97) {
+			IntField f = new IntField(key);
+			BTreePageId expected = entries.get(entries.size() - 1).getRightChild();
+			for (BTreeEntry e : entries) {
+				if (f.compare(Predicate.Op.LESS_THAN_OR_EQ, e.getKey())) {
+					expected = e.getLeftChild();
+					break;
+				}
+			}
+			assertEquals(expected, page.findChild(f));
+		}
+		for (BTreeEntry e : entries)
+			assertEquals(e.getLeftChild(), page.findChild(e.getKey()));
+	}
+
 	/**
 	 * Unit test for BTreeInternalPage.getNumEmptySlots()
 	 */
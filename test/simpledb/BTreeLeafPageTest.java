@@ -7,6 +7,7 @@ import simpledb.TestUtil.SkeletonFile;
 import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.common.Utility;
+import simpledb.execution.Predicate;
 import simpledb.index.BTreeLeafPage;
 import simpledb.index.BTreePageId;
 import simpledb.index.BTreeUtility;
@@ -196,6 +197,43 @@ public class BTreeLeafPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeLeafPage.iterator(Field), both on a full page and with
+	 * empty slots between tuples
+	 */
+	@Test public void testIteratorFromKey() throws Exception {
+		BTreeLeafPage page = new BTreeLeafPage(pid, EXAMPLE_DATA, 0);
+		checkIteratorFromKey(page);
+
+		Iterator<Tuple> it = page.iterator();
+		int i = 0;
+		while (it.hasNext()) {
+			Tuple t = it.next();
+			if (i++ % 3 != 0)
+				page.deleteTuple(t);
+		}
+		checkIteratorFromKey(page);
+	}
+
+	private void checkIteratorFromKey(BTreeLeafPage page) {
+		List<Tuple> tuples = new ArrayList<>();
+		Iterator<Tuple> it = page.iterator();
+		while (it.hasNext())
+			tuples.add(it.next());
+
+		for (int key = 0; key < 65536; key += 97) {
+			IntField f = new IntField(key);
+			it = page.iterator(f);
+			for (Tuple t : tuples) {
+				if (t.getField(0).compare(Predicate.Op.GREATER_THAN_OR_EQ, f)) {
+					assertTrue(it.hasNext());
+					assertSame(t, it.next());
+				}
+			}
+			assertFalse(it.hasNext());
+		}
+	}
+
 	/**
 	 * Unit test for BTreeLeafPage.getNumEmptySlots()
 	 */
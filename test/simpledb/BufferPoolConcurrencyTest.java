@@ -0,0 +1,99 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class BufferPoolConcurrencyTest extends SimpleDbTestBase {
+
+    private static final int POOL_PAGES = 16;
+    private static final int FILE_PAGES = 64;
+    private static final int THREADS = 8;
+    private static final int READS = 500;
+
+    private HeapFile f;
+    private BufferPool bp;
+    private byte[][] expected;
+
+    @Before public void setUp() throws Exception {
+        // 两个int字段的tuple，一个page能放的个数
+        int perPage = BufferPool.getPageSize() * 8 / (2 * 4 * 8 + 1);
+        f = SystemTestUtil.createRandomHeapFile(2, perPage * FILE_PAGES, null, null);
+        assertEquals(FILE_PAGES, f.numPages());
+        expected = new byte[FILE_PAGES][];
+        for (int i = 0; i < FILE_PAGES; i++) {
+            expected[i] = f.readPage(new HeapPageId(f.getId(), i)).getPageData();
+        }
+        bp = Database.resetBufferPool(POOL_PAGES);
+    }
+
+    /**
+     * Many threads read random pages of a file four times the size of the
+     * pool, so pages are evicted from every partition while others are read
+     * into it. Each read returns the right page, the pool never holds more
+     * pages than its capacity, and no frame is lost: afterwards the pool
+     * still fills up to its capacity.
+     */
+    @Test(timeout = 60000) public void concurrentReadsAndEvictions() throws Exception {
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            final long seed = i;
+            Thread t = new Thread(() -> {
+                Random rand = new Random(seed);
+                try {
+                    TransactionId tid = new TransactionId();
+                    for (int j = 0; j < READS; j++) {
+                        HeapPageId pid = new HeapPageId(f.getId(), rand.nextInt(FILE_PAGES));
+                        Page p = bp.getPage(tid, pid, Permissions.READ_ONLY);
+                        assertEquals(pid, p.getId());
+                        assertTrue(Arrays.equals(expected[pid.getPageNumber()], p.getPageData()));
+                    }
+                    bp.transactionComplete(tid);
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            });
+            threads.add(t);
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        assertTrue(bp.getNumCachedPages() <= POOL_PAGES);
+
+        // 顺序读一遍整个文件，bufferPool应该正好被装满
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < FILE_PAGES; i++) {
+            bp.getPage(tid, new HeapPageId(f.getId(), i), Permissions.READ_ONLY);
+            assertTrue(bp.getNumCachedPages() <= POOL_PAGES);
+        }
+        assertEquals(POOL_PAGES, bp.getNumCachedPages());
+        assertTrue(bp.isCached(new HeapPageId(f.getId(), FILE_PAGES - 1)));
+        bp.transactionComplete(tid);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolConcurrencyTest.class);
+    }
+}
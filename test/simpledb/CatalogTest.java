@@ -65,6 +65,26 @@ public class CatalogTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * The Catalog closes the files it drops: one replaced by a new DbFile
+     * with the same id, and all of them when it is cleared
+     */
+    @Test public void closesDroppedFiles() {
+        SkeletonFile f1 = (SkeletonFile) Database.getCatalog().getDatabaseFile(id1);
+        SkeletonFile f2 = (SkeletonFile) Database.getCatalog().getDatabaseFile(id2);
+        Database.getCatalog().addTable(f1, nameThisTestRun);
+        Assert.assertFalse(f1.isClosed());
+
+        SkeletonFile replacement = new SkeletonFile(id1, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(replacement, nameThisTestRun);
+        Assert.assertTrue(f1.isClosed());
+        Assert.assertFalse(f2.isClosed());
+
+        Database.getCatalog().clear();
+        Assert.assertTrue(f2.isClosed());
+        Assert.assertTrue(replacement.isClosed());
+    }
+
     /**
      * Unit test for Catalog.getDatabaseFile()
      */
@@ -0,0 +1,125 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.Transaction;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class GroupCommitTest extends SimpleDbTestBase {
+
+    private static final int THREADS = 8;
+    private static final int COMMITS = 25;
+
+    private final List<HeapFile> files = new ArrayList<>();
+    private LogFile log;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        for (int i = 0; i < THREADS; i++) {
+            File f = File.createTempFile("groupcommit", ".dat");
+            f.deleteOnExit();
+            files.add(Utility.createEmptyHeapFile(f.getAbsolutePath(), 2));
+        }
+        log = Database.getLogFile();
+    }
+
+    /** Commits COMMITS transactions, each inserting one tuple into f */
+    private static class Committer extends Thread {
+        private final HeapFile f;
+        private Exception error;
+
+        Committer(HeapFile f) {
+            this.f = f;
+        }
+
+        @Override public void run() {
+            try {
+                for (int i = 0; i < COMMITS; i++) {
+                    Transaction t = new Transaction();
+                    t.start();
+                    Database.getBufferPool().insertTuple(t.getId(), f.getId(), Utility.getHeapTuple(i, 2));
+                    t.commit();
+                }
+            } catch (Exception e) {
+                error = e;
+            }
+        }
+    }
+
+    private static int count(HeapFile f) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        DbFileIterator it = f.iterator(t.getId());
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        t.commit();
+        return n;
+    }
+
+    /**
+     * Transactions committing at the same time share log forces: without
+     * group commit each one forces twice, once for its pages and once for
+     * its commit record
+     */
+    @Test(timeout = 60000) public void concurrentCommitsShareForces() throws Exception {
+        int before = log.getForceCount();
+        List<Committer> committers = new ArrayList<>();
+        for (HeapFile f : files) {
+            committers.add(new Committer(f));
+        }
+        for (Committer c : committers) {
+            c.start();
+        }
+        for (Committer c : committers) {
+            c.join();
+            assertNull(c.error);
+        }
+        int forces = log.getForceCount() - before;
+        assertTrue(forces > 0);
+        assertTrue("" + forces, forces < 2 * THREADS * COMMITS);
+
+        for (HeapFile f : files) {
+            assertEquals(COMMITS, count(f));
+        }
+    }
+
+    /**
+     * Truncating the log at a checkpoint drops segments from its front;
+     * commits before and after it must still complete
+     */
+    @Test(timeout = 60000) public void commitAcrossCheckpoint() throws Exception {
+        Committer first = new Committer(files.get(0));
+        first.run();
+        assertNull(first.error);
+        log.logCheckpoint();
+
+        Committer second = new Committer(files.get(0));
+        second.run();
+        assertNull(second.error);
+        assertEquals(2 * COMMITS, count(files.get(0)));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(GroupCommitTest.class);
+    }
+}
@@ -6,6 +6,8 @@ import simpledb.storage.*;
 import simpledb.systemtest.SimpleDbTestBase;
 import simpledb.systemtest.SystemTestUtil;
 
+import java.io.File;
+import java.io.RandomAccessFile;
 import java.util.*;
 import org.junit.After;
 import org.junit.Before;
@@ -81,6 +83,70 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         assertFalse(page.isSlotUsed(20));
     }
 
+    /**
+     * Unit test for HeapFile.readPage() on a memory-mapped HeapFile: pages
+     * read through the mapping match pages read through the file
+     */
+    @Test
+    public void readPageMemoryMapped() throws Exception {
+        HeapFile twoPageFile = SystemTestUtil.createRandomHeapFile(2, 520,
+                null, null);
+        HeapFile mapped = new HeapFile(twoPageFile.getFile(), td, true);
+        assertTrue(mapped.isMemoryMapped());
+        assertFalse(twoPageFile.isMemoryMapped());
+        assertEquals(twoPageFile.numPages(), mapped.numPages());
+
+        for (int i = 0; i < twoPageFile.numPages(); i++) {
+            HeapPage expected = (HeapPage) twoPageFile.readPage(
+                    new HeapPageId(twoPageFile.getId(), i));
+            HeapPage actual = (HeapPage) mapped.readPage(
+                    new HeapPageId(mapped.getId(), i));
+            assertEquals(expected.getNumEmptySlots(), actual.getNumEmptySlots());
+            Iterator<Tuple> e = expected.iterator();
+            Iterator<Tuple> a = actual.iterator();
+            while (e.hasNext()) {
+                assertTrue(a.hasNext());
+                assertEquals(e.next().toString(), a.next().toString());
+            }
+            assertFalse(a.hasNext());
+            assertArrayEquals(expected.getPageData(), actual.getPageData());
+        }
+    }
+
+    /**
+     * Pages of a memory-mapped HeapFile past the first 2GB, which a single
+     * mapping cannot reach, are read from the file
+     */
+    @Test
+    public void readPageMemoryMappedPast2GB() throws Exception {
+        HeapFile source = SystemTestUtil.createRandomHeapFile(2, 20, null, null);
+        byte[] data = source.readPage(new HeapPageId(source.getId(), 0)).getPageData();
+        int pageSize = BufferPool.getPageSize();
+
+        // 稀疏文件，只有最后几页真正写了数据
+        File f = File.createTempFile("table", ".dat");
+        f.deleteOnExit();
+        int last = Integer.MAX_VALUE / pageSize + 2;
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            raf.setLength((long) (last + 1) * pageSize);
+            for (int i = last - 2; i <= last; i++) {
+                raf.seek((long) i * pageSize);
+                raf.write(data);
+            }
+        }
+        HeapFile mapped = new HeapFile(f, td, true);
+        Database.getCatalog().addTable(mapped, UUID.randomUUID().toString());
+        assertEquals(last + 1, mapped.numPages());
+        // 映射范围内的最后一页
+        HeapPage empty = (HeapPage) mapped.readPage(new HeapPageId(mapped.getId(), last - 3));
+        assertArrayEquals(HeapPage.createEmptyPageData(), empty.getPageData());
+        for (int i = last - 2; i <= last; i++) {
+            HeapPage page = (HeapPage) mapped.readPage(new HeapPageId(mapped.getId(), i));
+            assertArrayEquals(data, page.getPageData());
+        }
+        assertTrue(f.delete());
+    }
+
     @Test
     public void testIteratorBasic() throws Exception {
         HeapFile smallFile = SystemTestUtil.createRandomHeapFile(2, 3, null,
@@ -7,12 +7,14 @@ import org.junit.Test;
 import static org.junit.Assert.*;
 import junit.framework.JUnit4TestAdapter;
 import simpledb.common.Database;
+import simpledb.common.Permissions;
 import simpledb.common.Utility;
 import simpledb.storage.*;
 import simpledb.systemtest.SystemTestUtil;
 import simpledb.transaction.TransactionId;
 
 import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
     private TransactionId tid;
@@ -50,6 +52,201 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         assertEquals(3, empty.numPages());
     }
 
+    /**
+     * Inserts go to a page with room without visiting the full pages in
+     * front of it, and reuse space freed by deletes
+     */
+    @Test public void insertUsesFreeSpaceMap() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 504 * 3 + 500, null, null);
+        assertEquals(4, f.numPages());
+        BufferPool bp = Database.getBufferPool();
+
+        Page page = f.insertTuple(tid, Utility.getHeapTuple(1, 2)).get(0);
+        assertEquals(3, page.getId().getPageNumber());
+        for (int i = 0; i < 3; i++) {
+            assertFalse(bp.holdsLock(tid, new HeapPageId(f.getId(), i)));
+        }
+
+        // free a slot on page 1, then fill up page 3
+        Tuple victim = null;
+        DbFileIterator it = f.iterator(tid);
+        it.open();
+        while (victim == null) {
+            Tuple t = it.next();
+            if (t.getRecordId().getPageId().getPageNumber() == 1) {
+                victim = t;
+            }
+        }
+        it.close();
+        bp.deleteTuple(tid, victim);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(3, f.insertTuple(tid, Utility.getHeapTuple(1, 2)).get(0)
+                    .getId().getPageNumber());
+        }
+
+        page = f.insertTuple(tid, Utility.getHeapTuple(2, 2)).get(0);
+        assertEquals(1, page.getId().getPageNumber());
+        page = f.insertTuple(tid, Utility.getHeapTuple(3, 2)).get(0);
+        assertEquals(4, page.getId().getPageNumber());
+        assertEquals(5, f.numPages());
+    }
+
+    private static DbFileIterator heapTuples(int count) {
+        return new AbstractDbFileIterator() {
+            private int i = 0;
+
+            @Override
+            public void open() {
+            }
+
+            @Override
+            public void rewind() {
+                i = 0;
+            }
+
+            @Override
+            protected Tuple readNext() {
+                return i < count ? Utility.getHeapTuple(i++, 2) : null;
+            }
+        };
+    }
+
+    /**
+     * Unit test for HeapFile.bulkInsert(): tuples are appended in whole
+     * extents, visible after commit, and the rest of the last extent is
+     * used by later inserts
+     */
+    @Test public void bulkInsert() throws Exception {
+        int count = 504 * 20 + 7;
+        // the empty file starts with one empty page
+        assertEquals(count, empty.bulkInsert(tid, heapTuples(count)));
+        assertEquals(1 + 2 * HeapFile.EXTENT_PAGES, empty.numPages());
+        Database.getBufferPool().transactionComplete(tid);
+
+        TransactionId reader = new TransactionId();
+        DbFileIterator it = empty.iterator(reader);
+        it.open();
+        int seen = 0;
+        while (it.hasNext()) {
+            assertEquals(seen, ((IntField) it.next().getField(0)).getValue());
+            seen++;
+        }
+        it.close();
+        assertEquals(count, seen);
+
+        for (int i = 0; i < 2 * 504; i++) {
+            Page page = empty.insertTuple(reader, Utility.getHeapTuple(-1, 2)).get(0);
+            assertTrue(page.getId().getPageNumber() == 0 || page.getId().getPageNumber() > 20);
+        }
+        assertEquals(1 + 2 * HeapFile.EXTENT_PAGES, empty.numPages());
+        Database.getBufferPool().transactionComplete(reader);
+    }
+
+    /**
+     * The free slots of the last, partly filled page of a bulk insert are
+     * used by later inserts
+     */
+    @Test public void bulkInsertPartialPageReused() throws Exception {
+        // 先插入一条，让free space map在bulk insert之前就建好
+        Database.getBufferPool().insertTuple(tid, empty.getId(), Utility.getHeapTuple(-1, 2));
+        empty.bulkInsert(tid, heapTuples(504 * 2 + 7));
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(1 + HeapFile.EXTENT_PAGES, empty.numPages());
+
+        tid = new TransactionId();
+        int free = 503 + (504 - 7) + 504 * (HeapFile.EXTENT_PAGES - 3);
+        for (int i = 0; i < free; i++) {
+            Database.getBufferPool().insertTuple(tid, empty.getId(), Utility.getHeapTuple(i, 2));
+        }
+        assertEquals(1 + HeapFile.EXTENT_PAGES, empty.numPages());
+    }
+
+    /**
+     * Pages written by an aborted bulk insert are empty again, and a load
+     * that fits on one page goes through the buffer pool
+     */
+    @Test public void bulkInsertAbort() throws Exception {
+        empty.bulkInsert(tid, heapTuples(504 * 3));
+        Database.getBufferPool().transactionComplete(tid, false);
+        assertEquals(1 + HeapFile.EXTENT_PAGES, empty.numPages());
+
+        tid = new TransactionId();
+        DbFileIterator it = empty.iterator(tid);
+        it.open();
+        assertFalse(it.hasNext());
+        it.close();
+
+        assertEquals(3, empty.bulkInsert(tid, heapTuples(3)));
+        assertEquals(1 + HeapFile.EXTENT_PAGES, empty.numPages());
+        assertTrue(Database.getBufferPool().holdsLock(tid, new HeapPageId(empty.getId(), 0)));
+    }
+
+    /**
+     * Pages emptied by an aborted bulk insert are used by later inserts
+     * instead of growing the file
+     */
+    @Test public void bulkInsertAbortFreesPages() throws Exception {
+        // 先插入一条，让free space map在bulk insert之前就建好
+        Database.getBufferPool().insertTuple(tid, empty.getId(), Utility.getHeapTuple(-1, 2));
+        empty.bulkInsert(tid, heapTuples(504 * 3));
+        Database.getBufferPool().transactionComplete(tid, false);
+        assertEquals(1 + HeapFile.EXTENT_PAGES, empty.numPages());
+
+        tid = new TransactionId();
+        for (int i = 0; i < 504 * (1 + HeapFile.EXTENT_PAGES); i++) {
+            Database.getBufferPool().insertTuple(tid, empty.getId(), Utility.getHeapTuple(i, 2));
+        }
+        assertEquals(1 + HeapFile.EXTENT_PAGES, empty.numPages());
+    }
+
+    /**
+     * A bulk insert waiting for its locks doesn't block other inserts into
+     * the file that need a new page
+     */
+    @Test public void bulkInsertWaitsWithoutBlockingInserts() throws Exception {
+        TransactionId reader = new TransactionId();
+        Database.getBufferPool().lockTable(reader, empty.getId(), Permissions.READ_ONLY);
+
+        AtomicReference<Object> bulk = new AtomicReference<>();
+        Thread loader = new Thread(() -> {
+            try {
+                bulk.set(empty.bulkInsert(tid, heapTuples(504 * 3)));
+            } catch (Exception e) {
+                bulk.set(e);
+            }
+        });
+        loader.setDaemon(true);
+        loader.start();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (loader.getState() != Thread.State.WAITING) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+
+        // 第一页装满之后要新建page
+        AtomicReference<Object> inserted = new AtomicReference<>();
+        Thread inserter = new Thread(() -> {
+            try {
+                for (int i = 0; i < 505; i++) {
+                    Database.getBufferPool().insertTuple(reader, empty.getId(), Utility.getHeapTuple(-1, 2));
+                }
+                inserted.set(Boolean.TRUE);
+            } catch (Exception e) {
+                inserted.set(e);
+            }
+        });
+        inserter.setDaemon(true);
+        inserter.start();
+        inserter.join(5000);
+        assertEquals(Boolean.TRUE, inserted.get());
+        Database.getBufferPool().transactionComplete(reader);
+
+        loader.join(5000);
+        assertEquals(504 * 3, bulk.get());
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(2 + HeapFile.EXTENT_PAGES, empty.numPages());
+    }
+
     @Test
     public void testAlternateEmptyAndFullPagesThenIterate() throws Exception {
         // Create HeapFile/Table
@@ -13,6 +13,7 @@ import java.util.*;
 
 import org.junit.Before;
 import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
@@ -102,6 +103,40 @@ public class HeapPageReadTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Unit test for HeapPage.iterator(): empty slots are skipped, including
+     * slots emptied while the iterator is in use
+     */
+    @Test public void testIteratorSkipsEmptySlots() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+        Iterator<Tuple> all = page.iterator();
+        List<Tuple> tuples = new ArrayList<>();
+        while (all.hasNext()) {
+            tuples.add(all.next());
+        }
+        page.deleteTuple(tuples.get(0));
+        page.deleteTuple(tuples.get(5));
+
+        Iterator<Tuple> it = page.iterator();
+        int seen = 0;
+        int row = 1;
+        while (it.hasNext()) {
+            Tuple tup = it.next();
+            if (row == 5) {
+                row++;
+            }
+            assertEquals(EXAMPLE_VALUES[row][0], ((IntField) tup.getField(0)).getValue());
+            if (row == 7) {
+                // the iterator has already read the bitmap word for this slot
+                page.deleteTuple(tuples.get(8));
+                row++;
+            }
+            row++;
+            seen++;
+        }
+        assertEquals(EXAMPLE_VALUES.length - 3, seen);
+    }
+
     /**
      * Unit test for HeapPage.getNumEmptySlots()
      */
@@ -123,6 +158,24 @@ public class HeapPageReadTest extends SimpleDbTestBase {
             assertFalse(page.isSlotUsed(i));
     }
 
+    /**
+     * Tuples and fields are decoded on demand: reading one field of one
+     * tuple gives the right value, the tuple's other fields are still
+     * available afterwards, and undecoded tuples survive getPageData
+     */
+    @Test public void testLazyDecoding() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+        Iterator<Tuple> it = page.iterator();
+        it.next();
+        Tuple second = it.next();
+        assertEquals(EXAMPLE_VALUES[1][1], ((IntField) second.getField(1)).getValue());
+        assertEquals(EXAMPLE_VALUES[1][0], ((IntField) second.getField(0)).getValue());
+        assertEquals(new RecordId(pid, 1), second.getRecordId());
+
+        assertArrayEquals(EXAMPLE_DATA, page.getPageData());
+        assertArrayEquals(EXAMPLE_DATA, new HeapPage(pid, EXAMPLE_DATA).getPageData());
+    }
+
     /**
      * JUnit suite target
      */
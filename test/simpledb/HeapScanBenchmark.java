@@ -0,0 +1,105 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.storage.*;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Measures the heap allocated per page by full scans of a HeapFile. Not a
+ * JUnit test; run it with
+ * <pre>
+ *   java -cp bin/src:bin/test:lib/* simpledb.HeapScanBenchmark [rows]
+ * </pre>
+ * It compares HeapPage.iterator(), which walks the header bitmap directly,
+ * with copying the used tuples of each page into a list first, and reports
+ * the allocation of a full HeapFile scan through the buffer pool.
+ */
+public class HeapScanBenchmark {
+
+    private static final int ROUNDS = 20;
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private static long allocatedBytes() {
+        return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /** The pre-bitmap iterator: copy every used tuple into a list. */
+    private static Iterator<Tuple> copyingIterator(HeapPage page) {
+        List<Tuple> tuples = new ArrayList<>();
+        Iterator<Tuple> it = page.iterator();
+        while (it.hasNext()) {
+            tuples.add(it.next());
+        }
+        return tuples.iterator();
+    }
+
+    private static long drain(Iterator<Tuple> it) {
+        long n = 0;
+        while (it.hasNext()) {
+            if (it.next() != null) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, rows, null, null);
+        int numPages = f.numPages();
+        Database.resetBufferPool(numPages + 1);
+
+        // 先把所有page读进来并解码所有tuple，之后只测量迭代器本身的分配
+        HeapPage[] pages = new HeapPage[numPages];
+        for (int i = 0; i < numPages; i++) {
+            pages[i] = (HeapPage) f.readPage(new HeapPageId(f.getId(), i));
+            drain(pages[i].iterator());
+        }
+
+        long bitmap = Long.MAX_VALUE;
+        long copying = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            long before = allocatedBytes();
+            for (HeapPage page : pages) {
+                drain(page.iterator());
+            }
+            bitmap = Math.min(bitmap, allocatedBytes() - before);
+
+            before = allocatedBytes();
+            for (HeapPage page : pages) {
+                drain(copyingIterator(page));
+            }
+            copying = Math.min(copying, allocatedBytes() - before);
+        }
+
+        long scan = Long.MAX_VALUE;
+        long tuples = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            TransactionId tid = new TransactionId();
+            DbFileIterator it = f.iterator(tid);
+            long before = allocatedBytes();
+            it.open();
+            tuples = 0;
+            while (it.hasNext()) {
+                it.next();
+                tuples++;
+            }
+            it.close();
+            scan = Math.min(scan, allocatedBytes() - before);
+            Database.getBufferPool().transactionComplete(tid);
+        }
+
+        System.out.printf("%d tuples on %d pages%n", tuples, numPages);
+        System.out.printf("HeapPage.iterator():     %8.1f bytes/page%n", (double) bitmap / numPages);
+        System.out.printf("list-copying iterator:   %8.1f bytes/page%n", (double) copying / numPages);
+        System.out.printf("HeapFile full scan:      %8.1f bytes/page%n", (double) scan / numPages);
+    }
+}
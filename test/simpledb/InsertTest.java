@@ -9,6 +9,7 @@ import junit.framework.JUnit4TestAdapter;
 import simpledb.common.Utility;
 import simpledb.execution.Insert;
 import simpledb.execution.OpIterator;
+import simpledb.execution.OpIteratorFileIterator;
 import simpledb.storage.TupleDesc;
 import simpledb.transaction.TransactionId;
 
@@ -61,6 +62,28 @@ public class InsertTest extends TestUtil.CreateHeapFile {
     assertEquals(1, empty.numPages());
   }
 
+  /**
+   * The adapter that hands Insert's child to the buffer pool rewinds
+   * the child too
+   */
+  @Test public void childAdapterRewinds() throws Exception {
+    scan1.open();
+    OpIteratorFileIterator it = new OpIteratorFileIterator(scan1);
+    it.open();
+    assertTrue(it.hasNext());
+    it.next();
+    it.next();
+    it.rewind();
+    int count = 0;
+    while (it.hasNext()) {
+      it.next();
+      count++;
+    }
+    assertEquals(7, count);
+    it.close();
+    scan1.close();
+  }
+
   /**
    * JUnit suite target
    */
@@ -0,0 +1,277 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Permissions;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.PageId;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.LockManager;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class LockManagerTest extends SimpleDbTestBase {
+
+    private static final long TIMEOUT_MS = 5000;
+
+    private LockManager lm;
+    private PageId p0, p1;
+
+    @Before public void setUp() {
+        lm = new LockManager();
+        p0 = new HeapPageId(1, 0);
+        p1 = new HeapPageId(1, 1);
+    }
+
+    /**
+     * Acquires a lock on a new thread, recording the outcome.
+     */
+    private static class Acquirer extends Thread {
+        final AtomicReference<Object> result = new AtomicReference<>();
+        private final LockManager lm;
+        private final TransactionId tid;
+        private final PageId pid;
+        private final Permissions perm;
+        private final int tableId;
+        private final LockManager.LockMode mode;
+
+        Acquirer(LockManager lm, TransactionId tid, PageId pid, Permissions perm) {
+            this(lm, tid, pid, perm, -1, null);
+        }
+
+        /** Acquires a table lock instead of a page lock. */
+        Acquirer(LockManager lm, TransactionId tid, int tableId, LockManager.LockMode mode) {
+            this(lm, tid, null, null, tableId, mode);
+        }
+
+        private Acquirer(LockManager lm, TransactionId tid, PageId pid, Permissions perm,
+                         int tableId, LockManager.LockMode mode) {
+            this.lm = lm;
+            this.tid = tid;
+            this.pid = pid;
+            this.perm = perm;
+            this.tableId = tableId;
+            this.mode = mode;
+            setDaemon(true);
+            start();
+        }
+
+        public void run() {
+            try {
+                if (pid != null) {
+                    lm.acquire(tid, pid, perm);
+                } else {
+                    lm.acquireTable(tid, tableId, mode);
+                }
+                result.set(Boolean.TRUE);
+            } catch (TransactionAbortedException e) {
+                result.set(e);
+            }
+        }
+
+        /** Waits until the thread is parked waiting for its lock. */
+        void awaitParked() throws InterruptedException {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            while (getState() != State.WAITING && result.get() == null) {
+                assertTrue(System.currentTimeMillis() < deadline);
+                Thread.sleep(5);
+            }
+        }
+    }
+
+    /**
+     * Several transactions share a read lock; a writer waits, parked, until
+     * all of them are gone
+     */
+    @Test public void sharedHolders() throws Exception {
+        TransactionId t1 = new TransactionId(), t2 = new TransactionId(), t3 = new TransactionId();
+        lm.acquire(t1, p0, Permissions.READ_ONLY);
+        lm.acquire(t2, p0, Permissions.READ_ONLY);
+        assertTrue(lm.holdsLock(t1, p0));
+        assertTrue(lm.holdsLock(t2, p0));
+
+        Acquirer writer = new Acquirer(lm, t3, p0, Permissions.READ_WRITE);
+        writer.awaitParked();
+        assertNull(writer.result.get());
+        assertEquals(Thread.State.WAITING, writer.getState());
+
+        lm.releaseAll(t1);
+        Thread.sleep(50);
+        assertNull(writer.result.get());
+        lm.releaseAll(t2);
+        writer.join(TIMEOUT_MS);
+        assertEquals(Boolean.TRUE, writer.result.get());
+        assertEquals(LockManager.LockMode.EXCLUSIVE, lm.getLockMode(t3, p0));
+    }
+
+    /**
+     * Many threads reading the same page all hold it at once; a reader that
+     * arrives after a queued writer waits behind it
+     */
+    @Test public void concurrentReaders() throws Exception {
+        Acquirer[] readers = new Acquirer[16];
+        TransactionId[] tids = new TransactionId[readers.length];
+        for (int i = 0; i < readers.length; i++) {
+            tids[i] = new TransactionId();
+            readers[i] = new Acquirer(lm, tids[i], p0, Permissions.READ_ONLY);
+        }
+        for (Acquirer reader : readers) {
+            reader.join(TIMEOUT_MS);
+            assertEquals(Boolean.TRUE, reader.result.get());
+        }
+        for (TransactionId tid : tids) {
+            assertEquals(LockManager.LockMode.SHARED, lm.getLockMode(tid, p0));
+        }
+
+        Acquirer writer = new Acquirer(lm, new TransactionId(), p0, Permissions.READ_WRITE);
+        writer.awaitParked();
+        Acquirer late = new Acquirer(lm, new TransactionId(), p0, Permissions.READ_ONLY);
+        late.awaitParked();
+        assertNull(late.result.get());
+
+        for (TransactionId tid : tids) {
+            lm.releaseAll(tid);
+        }
+        writer.join(TIMEOUT_MS);
+        assertEquals(Boolean.TRUE, writer.result.get());
+        assertNull(late.result.get());
+    }
+
+    /**
+     * releaseAll drops every lock of a transaction, and nothing else
+     */
+    @Test public void releaseAll() throws Exception {
+        TransactionId t1 = new TransactionId(), t2 = new TransactionId();
+        lm.acquire(t1, p0, Permissions.READ_ONLY);
+        lm.acquire(t1, p1, Permissions.READ_WRITE);
+        lm.acquire(t2, p0, Permissions.READ_ONLY);
+        assertEquals(2, lm.getLockedPages(t1).size());
+
+        lm.releaseAll(t1);
+        assertTrue(lm.getLockedPages(t1).isEmpty());
+        assertFalse(lm.holdsLock(t1, p0));
+        assertFalse(lm.holdsLock(t1, p1));
+        assertTrue(lm.holdsLock(t2, p0));
+        lm.acquire(t2, p1, Permissions.READ_WRITE);
+        assertEquals(LockManager.LockMode.EXCLUSIVE, lm.getLockMode(t2, p1));
+    }
+
+    /**
+     * Intention locks on a table are compatible with each other but not with
+     * a table lock covering the pages they are for; IX and S combine to SIX
+     */
+    @Test public void intentionLocks() throws Exception {
+        TransactionId t1 = new TransactionId(), t2 = new TransactionId(), t3 = new TransactionId();
+        lm.acquireTable(t1, 1, LockManager.LockMode.INTENTION_EXCLUSIVE);
+        lm.acquireTable(t2, 1, LockManager.LockMode.INTENTION_SHARED);
+        assertFalse(lm.tryAcquireTable(t3, 1, LockManager.LockMode.SHARED));
+        assertNull(lm.getTableLockMode(t3, 1));
+
+        lm.acquireTable(t1, 1, LockManager.LockMode.SHARED);
+        assertEquals(LockManager.LockMode.SHARED_INTENTION_EXCLUSIVE, lm.getTableLockMode(t1, 1));
+        assertFalse(lm.tryAcquireTable(t2, 1, LockManager.LockMode.INTENTION_EXCLUSIVE));
+
+        lm.releaseAll(t1);
+        assertTrue(lm.tryAcquireTable(t3, 1, LockManager.LockMode.SHARED));
+        assertTrue(lm.getLockedTables(t1).isEmpty());
+    }
+
+    /**
+     * A sole reader is upgraded in place; a reader asking for a shared lock
+     * it already holds exclusively keeps the exclusive lock
+     */
+    @Test public void upgrade() throws Exception {
+        TransactionId t1 = new TransactionId();
+        lm.acquire(t1, p0, Permissions.READ_ONLY);
+        lm.acquire(t1, p0, Permissions.READ_WRITE);
+        assertEquals(LockManager.LockMode.EXCLUSIVE, lm.getLockMode(t1, p0));
+        lm.acquire(t1, p0, Permissions.READ_ONLY);
+        assertEquals(LockManager.LockMode.EXCLUSIVE, lm.getLockMode(t1, p0));
+        lm.release(t1, p0);
+        assertFalse(lm.holdsLock(t1, p0));
+    }
+
+    /**
+     * In a deadlock the youngest transaction is aborted and the other one
+     * gets its lock
+     */
+    @Test public void deadlockAbortsYoungest() throws Exception {
+        TransactionId older = new TransactionId(), younger = new TransactionId();
+        lm.acquire(older, p0, Permissions.READ_WRITE);
+        lm.acquire(younger, p1, Permissions.READ_WRITE);
+
+        Acquirer a1 = new Acquirer(lm, older, p1, Permissions.READ_WRITE);
+        a1.awaitParked();
+        Acquirer a2 = new Acquirer(lm, younger, p0, Permissions.READ_WRITE);
+        a2.join(TIMEOUT_MS);
+        assertTrue(a2.result.get() instanceof TransactionAbortedException);
+        assertNull(a1.result.get());
+
+        lm.releaseAll(younger);
+        a1.join(TIMEOUT_MS);
+        assertEquals(Boolean.TRUE, a1.result.get());
+    }
+
+    /**
+     * Two readers upgrading the same page deadlock; the older one wins
+     */
+    @Test public void upgradeDeadlock() throws Exception {
+        TransactionId older = new TransactionId(), younger = new TransactionId();
+        lm.acquire(younger, p0, Permissions.READ_ONLY);
+        lm.acquire(older, p0, Permissions.READ_ONLY);
+
+        Acquirer a1 = new Acquirer(lm, older, p0, Permissions.READ_WRITE);
+        a1.awaitParked();
+        Acquirer a2 = new Acquirer(lm, younger, p0, Permissions.READ_WRITE);
+        a2.join(TIMEOUT_MS);
+        assertTrue(a2.result.get() instanceof TransactionAbortedException);
+
+        lm.releaseAll(younger);
+        a1.join(TIMEOUT_MS);
+        assertEquals(Boolean.TRUE, a1.result.get());
+    }
+
+    /**
+     * A request queued behind a compatible one still waits for it, so a
+     * cycle that only closes through the order of the queue is a deadlock
+     * too
+     */
+    @Test public void queueOrderDeadlock() throws Exception {
+        TransactionId holder = new TransactionId(), older = new TransactionId(), younger = new TransactionId();
+        lm.acquireTable(holder, 1, LockManager.LockMode.INTENTION_EXCLUSIVE);
+        lm.acquire(older, p0, Permissions.READ_WRITE);
+
+        // younger的S与holder的IX冲突；older的IS与两者都兼容，但排在younger后面
+        Acquirer a1 = new Acquirer(lm, younger, 1, LockManager.LockMode.SHARED);
+        a1.awaitParked();
+        Acquirer a2 = new Acquirer(lm, older, 1, LockManager.LockMode.INTENTION_SHARED);
+        a2.awaitParked();
+        assertNull(a2.result.get());
+
+        // holder等older，older等younger，younger等holder
+        Acquirer a3 = new Acquirer(lm, holder, p0, Permissions.READ_WRITE);
+        a1.join(TIMEOUT_MS);
+        assertTrue(a1.result.get() instanceof TransactionAbortedException);
+        a2.join(TIMEOUT_MS);
+        assertEquals(Boolean.TRUE, a2.result.get());
+        assertNull(a3.result.get());
+
+        lm.releaseAll(older);
+        a3.join(TIMEOUT_MS);
+        assertEquals(Boolean.TRUE, a3.result.get());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockManagerTest.class);
+    }
+}
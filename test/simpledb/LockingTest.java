@@ -3,7 +3,9 @@ package simpledb;
 import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import junit.framework.JUnit4TestAdapter;
 import simpledb.common.Database;
 import simpledb.common.Permissions;
@@ -186,6 +188,38 @@ public class LockingTest extends TestUtil.CreateHeapFile {
     bp.getPage(tid1, p1, Permissions.READ_WRITE);
   }
 
+  /**
+   * Unit test for BufferPool.getPage() with lock escalation.
+   * Past the threshold, a reader's page locks are replaced by a shared
+   * table lock, which covers pages the reader never touched and keeps
+   * writers off the whole table.
+   */
+  @Test public void lockEscalation() throws Exception {
+    BufferPool.setLockEscalationThreshold(1);
+    try {
+      PageId p2 = new HeapPageId(empty.getId(), 2);
+      bp.getPage(tid1, p0, Permissions.READ_ONLY);
+      assertFalse(bp.holdsLock(tid1, p2));
+      bp.getPage(tid1, p1, Permissions.READ_ONLY);
+      assertTrue(bp.holdsLock(tid1, p2));
+
+      grabLock(tid2, p2, Permissions.READ_ONLY, true);
+      grabLock(tid2, p2, Permissions.READ_WRITE, false);
+    } finally {
+      BufferPool.resetLockEscalationThreshold();
+    }
+  }
+
+  /**
+   * Unit test for BufferPool.lockTable().
+   * A table write lock keeps everybody else off every page of the table.
+   */
+  @Test public void lockTable() throws Exception {
+    bp.lockTable(tid1, empty.getId(), Permissions.READ_WRITE);
+    assertTrue(bp.holdsLock(tid1, p1));
+    grabLock(tid2, p1, Permissions.READ_ONLY, false);
+  }
+
   /**
    * JUnit suite target
    */
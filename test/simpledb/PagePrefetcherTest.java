@@ -0,0 +1,211 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class PagePrefetcherTest extends SimpleDbTestBase {
+
+    private static final int PAGES = 4;
+
+    private GatedHeapFile f;
+    private BufferPool bp;
+    private PagePrefetcher prefetcher;
+
+    @Before public void setUp() throws Exception {
+        // 两个int字段的tuple，一个page能放的个数
+        int perPage = BufferPool.getPageSize() * 8 / (2 * 4 * 8 + 1);
+        HeapFile created = SystemTestUtil.createRandomHeapFile(2, perPage * PAGES, null, null);
+        f = new GatedHeapFile(created.getFile(), created.getTupleDesc());
+        Database.getCatalog().addTable(f, UUID.randomUUID().toString());
+        bp = Database.resetBufferPool(16);
+        prefetcher = bp.getPrefetcher();
+    }
+
+    private HeapPageId pid(int pageNo) {
+        return new HeapPageId(f.getId(), pageNo);
+    }
+
+    /** Waits until the reader blocks, either on a prefetch or on the gate. */
+    private static void awaitBlocked(Thread t) throws InterruptedException {
+        while (t.getState() != Thread.State.WAITING) {
+            assertTrue(t.isAlive());
+            Thread.sleep(5);
+        }
+    }
+
+    /** Prefetched pages are installed in the pool, and reading them later costs no I/O. */
+    @Test(timeout = 10000) public void prefetchedPagesAreCached() throws Exception {
+        for (int i = 0; i < PAGES; i++) {
+            prefetcher.prefetch(pid(i));
+        }
+        for (int i = 0; i < PAGES; i++) {
+            while (!bp.isCached(pid(i))) {
+                Thread.sleep(5);
+            }
+        }
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < PAGES; i++) {
+            assertEquals(pid(i), bp.getPage(tid, pid(i), Permissions.READ_ONLY).getId());
+            assertEquals(1, f.reads(pid(i)));
+        }
+        bp.transactionComplete(tid);
+    }
+
+    /** A transaction asking for a page that is being prefetched waits for that read. */
+    @Test(timeout = 10000) public void getPageJoinsInFlightRead() throws Exception {
+        f.hold(pid(0));
+        prefetcher.prefetch(pid(0));
+        f.awaitEntered();
+
+        PageReader reader = new PageReader(bp, pid(0));
+        reader.start();
+        awaitBlocked(reader);
+        f.release();
+        reader.join();
+
+        assertNotNull(reader.page);
+        assertEquals(1, f.reads(pid(0)));
+        assertTrue(bp.isCached(pid(0)));
+    }
+
+    /**
+     * A page prefetched before some page is discarded may be stale: it is
+     * not installed, and a transaction waiting for it reads it again.
+     */
+    @Test(timeout = 10000) public void staleReadDroppedAfterDiscard() throws Exception {
+        f.hold(pid(0));
+        prefetcher.prefetch(pid(0));
+        f.awaitEntered();
+        bp.discardPage(pid(1));
+
+        PageReader reader = new PageReader(bp, pid(0));
+        reader.start();
+        awaitBlocked(reader);
+        f.release();
+        reader.join();
+
+        assertNotNull(reader.page);
+        assertEquals(2, f.reads(pid(0)));
+        assertEquals(1, bp.getNumCachedPages());
+    }
+
+    /** The same holds when a transaction aborts while the page is being prefetched. */
+    @Test(timeout = 10000) public void staleReadDroppedAfterAbort() throws Exception {
+        HeapFile other = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        TransactionId writer = new TransactionId();
+        bp.insertTuple(writer, other.getId(), Utility.getHeapTuple(1, 2));
+
+        f.hold(pid(0));
+        prefetcher.prefetch(pid(0));
+        f.awaitEntered();
+        bp.transactionComplete(writer, false);
+
+        PageReader reader = new PageReader(bp, pid(0));
+        reader.start();
+        awaitBlocked(reader);
+        f.release();
+        reader.join();
+
+        assertNotNull(reader.page);
+        assertEquals(2, f.reads(pid(0)));
+        assertTrue(bp.isCached(pid(0)));
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PagePrefetcherTest.class);
+    }
+}
+
+/**
+ * A HeapFile that counts the reads of each page and can hold the reads of
+ * one page until the test lets them through.
+ */
+class GatedHeapFile extends HeapFile {
+
+    private final ConcurrentHashMap<PageId, AtomicInteger> reads = new ConcurrentHashMap<>();
+    private volatile PageId gated;
+    private volatile CountDownLatch entered = new CountDownLatch(1);
+    private volatile CountDownLatch gate = new CountDownLatch(0);
+
+    GatedHeapFile(File f, TupleDesc td) {
+        super(f, td);
+    }
+
+    /** Holds every read of the page until release() is called. */
+    void hold(PageId pid) {
+        this.entered = new CountDownLatch(1);
+        this.gate = new CountDownLatch(1);
+        this.gated = pid;
+    }
+
+    void release() {
+        this.gate.countDown();
+    }
+
+    /** Waits until a read of the held page has started. */
+    void awaitEntered() throws InterruptedException {
+        this.entered.await();
+    }
+
+    int reads(PageId pid) {
+        AtomicInteger n = this.reads.get(pid);
+        return n == null ? 0 : n.get();
+    }
+
+    @Override
+    public Page readPage(PageId pid) {
+        this.reads.computeIfAbsent(pid, k -> new AtomicInteger()).incrementAndGet();
+        if (pid.equals(this.gated)) {
+            this.entered.countDown();
+            try {
+                this.gate.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return super.readPage(pid);
+    }
+}
+
+/** Reads one page in a transaction of its own on a separate thread. */
+class PageReader extends Thread {
+
+    private final BufferPool bp;
+    private final PageId pid;
+    volatile Page page;
+
+    PageReader(BufferPool bp, PageId pid) {
+        this.bp = bp;
+        this.pid = pid;
+    }
+
+    @Override
+    public void run() {
+        TransactionId tid = new TransactionId();
+        try {
+            this.page = this.bp.getPage(tid, this.pid, Permissions.READ_ONLY);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        this.bp.transactionComplete(tid);
+    }
+}
@@ -0,0 +1,131 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.storage.ClockPolicy;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.LruPolicy;
+import simpledb.storage.PageId;
+import simpledb.storage.ReplacementPolicy;
+import simpledb.storage.TwoQueuePolicy;
+import simpledb.systemtest.SimpleDbTestBase;
+
+import static org.junit.Assert.*;
+
+public class ReplacementPolicyTest extends SimpleDbTestBase {
+
+    private static PageId pid(int pgNo) {
+        return new HeapPageId(1, pgNo);
+    }
+
+    private static void addPages(ReplacementPolicy policy, int n) {
+        for (int i = 0; i < n; i++) {
+            policy.pageAdded(pid(i));
+        }
+    }
+
+    /**
+     * Unit test for LruPolicy: the least recently accessed page goes first
+     */
+    @Test public void lruOrder() {
+        ReplacementPolicy policy = new LruPolicy();
+        addPages(policy, 3);
+        policy.pageAccessed(pid(0));
+        assertEquals(pid(1), policy.evict());
+        assertEquals(pid(2), policy.evict());
+        assertEquals(pid(0), policy.evict());
+        assertNull(policy.evict());
+    }
+
+    /**
+     * Unit test for ClockPolicy: a referenced page gets a second chance
+     */
+    @Test public void clockSecondChance() {
+        ReplacementPolicy policy = new ClockPolicy();
+        addPages(policy, 3);
+        policy.pageAccessed(pid(0));
+        assertEquals(pid(1), policy.evict());
+        assertEquals(pid(2), policy.evict());
+        assertEquals(pid(0), policy.evict());
+        assertNull(policy.evict());
+    }
+
+    /**
+     * Unit test for TwoQueuePolicy: pages seen once are evicted before
+     * pages that came back after being evicted
+     */
+    @Test public void twoQueueScanResistance() {
+        ReplacementPolicy policy = new TwoQueuePolicy();
+        addPages(policy, 2);
+        assertEquals(pid(0), policy.evict());
+        // pid(0) is remembered, so re-adding it makes it hot
+        policy.pageAdded(pid(0));
+        for (int i = 10; i < 15; i++) {
+            policy.pageAdded(pid(i));
+        }
+        assertEquals(pid(1), policy.evict());
+        for (int i = 10; i < 15; i++) {
+            assertEquals(pid(i), policy.evict());
+        }
+        assertEquals(pid(0), policy.evict());
+        assertNull(policy.evict());
+    }
+
+    /**
+     * A victim the buffer pool cannot evict because it is dirty goes back
+     * to the probation queue it came from, not to the hot queue
+     */
+    @Test public void twoQueueDirtyVictim() {
+        ReplacementPolicy policy = new TwoQueuePolicy();
+        policy.pageAdded(pid(5));
+        assertEquals(pid(5), policy.evict());
+        policy.pageAdded(pid(5));
+        addPages(policy, 2);
+
+        assertEquals(pid(0), policy.evict());
+        policy.unevict(pid(0));
+        assertEquals(pid(1), policy.evict());
+        policy.setEvictable(pid(0), true);
+        assertEquals(pid(0), policy.evict());
+        assertEquals(pid(5), policy.evict());
+        assertNull(policy.evict());
+    }
+
+    /**
+     * Pages that are not evictable are never chosen, and are chosen again
+     * once they become evictable, also after the buffer pool handed back a
+     * victim it could not evict
+     */
+    @Test public void skipsPinnedPages() {
+        ReplacementPolicy[] policies = {
+                new LruPolicy(), new ClockPolicy(), new TwoQueuePolicy() };
+        for (ReplacementPolicy policy : policies) {
+            addPages(policy, 3);
+            policy.setEvictable(pid(0), false);
+            policy.setEvictable(pid(1), false);
+            assertEquals(pid(2), policy.evict());
+            assertNull(policy.evict());
+            policy.setEvictable(pid(1), true);
+            assertEquals(pid(1), policy.evict());
+            policy.pageRemoved(pid(0));
+            assertNull(policy.evict());
+
+            // 选出来却没能驱逐的page在重新变为可驱逐之前不会再被选中
+            policy.pageAdded(pid(3));
+            assertEquals(pid(3), policy.evict());
+            policy.unevict(pid(3));
+            assertNull(policy.evict());
+            policy.setEvictable(pid(3), true);
+            assertEquals(pid(3), policy.evict());
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReplacementPolicyTest.class);
+    }
+}
@@ -0,0 +1,76 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.execution.SeqScan;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+public class ScanRingTest extends SimpleDbTestBase {
+
+    private static final int POOL_PAGES = 16;
+    private static final int WORKING_SET_PAGES = 8;
+    private static final int SCAN_PAGES = 64;
+
+    private int rowsPerPage;
+    private HeapFile hot;
+    private HeapFile big;
+    private BufferPool bp;
+
+    @Before public void setUp() throws Exception {
+        // 两个int字段的tuple，一个page能放的个数
+        rowsPerPage = BufferPool.getPageSize() * 8 / (2 * 4 * 8 + 1);
+        hot = SystemTestUtil.createRandomHeapFile(2, rowsPerPage * WORKING_SET_PAGES, null, null);
+        big = SystemTestUtil.createRandomHeapFile(2, rowsPerPage * SCAN_PAGES, null, null);
+        bp = Database.resetBufferPool(POOL_PAGES);
+    }
+
+    private void touchWorkingSet(TransactionId tid) throws Exception {
+        for (int i = 0; i < WORKING_SET_PAGES; i++) {
+            bp.getPage(tid, new HeapPageId(hot.getId(), i), Permissions.READ_ONLY);
+        }
+    }
+
+    /**
+     * A sequential scan of a table four times the size of the pool reuses a
+     * few frames for its pages instead of evicting the pages other
+     * transactions keep using.
+     */
+    @Test public void largeScanKeepsWorkingSet() throws Exception {
+        TransactionId tid = new TransactionId();
+        touchWorkingSet(tid);
+        touchWorkingSet(tid);
+        bp.transactionComplete(tid);
+
+        TransactionId scanner = new TransactionId();
+        SeqScan scan = new SeqScan(scanner, big.getId(), "");
+        scan.open();
+        int n = 0;
+        while (scan.hasNext()) {
+            scan.next();
+            n++;
+        }
+        scan.close();
+        assertEquals(rowsPerPage * SCAN_PAGES, n);
+        bp.transactionComplete(scanner);
+
+        for (int i = 0; i < WORKING_SET_PAGES; i++) {
+            assertTrue(bp.isCached(new HeapPageId(hot.getId(), i)));
+        }
+        assertTrue(bp.getNumCachedPages() <= POOL_PAGES);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ScanRingTest.class);
+    }
+}
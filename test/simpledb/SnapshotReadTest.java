@@ -0,0 +1,182 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.execution.SeqScan;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SnapshotReadTest extends SimpleDbTestBase {
+
+    private static final int ROWS = 1000;
+
+    private HeapFile f;
+    private BufferPool bp;
+
+    @Before public void setUp() throws Exception {
+        f = SystemTestUtil.createRandomHeapFile(2, ROWS, null, null);
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    }
+
+    private static int count(HeapFile f, TransactionId tid) throws Exception {
+        DbFileIterator it = f.iterator(tid);
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        return n;
+    }
+
+    private Tuple firstTuple(TransactionId tid) throws Exception {
+        DbFileIterator it = f.iterator(tid);
+        it.open();
+        Tuple t = it.next();
+        it.close();
+        return t;
+    }
+
+    /**
+     * A snapshot keeps seeing the database as of its start, however many
+     * transactions commit after it; a later snapshot sees their changes
+     */
+    @Test public void snapshotIgnoresLaterCommits() throws Exception {
+        Transaction reader = new Transaction(true);
+        reader.start();
+        assertEquals(ROWS, count(f, reader.getId()));
+
+        for (int round = 0; round < 2; round++) {
+            Transaction writer = new Transaction();
+            writer.start();
+            bp.deleteTuple(writer.getId(), firstTuple(writer.getId()));
+            for (int i = 0; i < 10; i++) {
+                bp.insertTuple(writer.getId(), f.getId(), Utility.getHeapTuple(i, 2));
+            }
+            writer.commit();
+        }
+        assertEquals(ROWS, count(f, reader.getId()));
+
+        Transaction later = new Transaction(true);
+        later.start();
+        assertEquals(ROWS + 18, count(f, later.getId()));
+        assertEquals(ROWS, count(f, reader.getId()));
+        reader.commit();
+        later.commit();
+    }
+
+    /**
+     * Readers neither wait for a writer's locks nor see its uncommitted
+     * changes, and the writer doesn't wait for them either
+     */
+    @Test(timeout = 10000) public void noWaiting() throws Exception {
+        Transaction writer = new Transaction();
+        writer.start();
+        bp.deleteTuple(writer.getId(), firstTuple(writer.getId()));
+
+        Transaction reader = new Transaction(true);
+        reader.start();
+        assertEquals(ROWS, count(f, reader.getId()));
+        assertFalse(bp.holdsLock(reader.getId(), new HeapPageId(f.getId(), 0)));
+
+        bp.getPage(writer.getId(), new HeapPageId(f.getId(), 1), Permissions.READ_WRITE);
+        writer.commit();
+        assertEquals(ROWS, count(f, reader.getId()));
+        reader.commit();
+    }
+
+    /**
+     * Pages a bulk insert writes straight to disk stay invisible to
+     * snapshots until the insert commits, and to older snapshots after
+     */
+    @Test public void bulkInsert() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile source = SystemTestUtil.createRandomHeapFile(2, 2000, null, tuples);
+        Transaction writer = new Transaction();
+        writer.start();
+        DbFileIterator it = source.iterator(writer.getId());
+        it.open();
+        bp.bulkInsertTuples(writer.getId(), f.getId(), it);
+        it.close();
+
+        Transaction reader = new Transaction(true);
+        reader.start();
+        assertEquals(ROWS, count(f, reader.getId()));
+        writer.commit();
+        assertEquals(ROWS, count(f, reader.getId()));
+
+        Transaction later = new Transaction(true);
+        later.start();
+        assertEquals(ROWS + tuples.size(), count(f, later.getId()));
+        reader.commit();
+        later.commit();
+    }
+
+    /**
+     * A snapshot scanning a table big enough for SeqScan to lock it whole
+     * takes no table lock, so writers don't wait for it, during the scan or
+     * after it
+     */
+    @Test(timeout = 10000) public void largeScanTakesNoTableLock() throws Exception {
+        BufferPool.setLockEscalationThreshold(1);
+        try {
+            assertTrue(f.numPages() > BufferPool.getLockEscalationThreshold());
+            Transaction reader = new Transaction(true);
+            reader.start();
+            SeqScan scan = new SeqScan(reader.getId(), f.getId());
+            scan.open();
+            int n = 0;
+            while (scan.hasNext()) {
+                scan.next();
+                n++;
+            }
+            assertEquals(ROWS, n);
+
+            Transaction writer = new Transaction();
+            writer.start();
+            bp.insertTuple(writer.getId(), f.getId(), Utility.getHeapTuple(-1, 2));
+            writer.commit();
+            scan.close();
+            reader.commit();
+
+            writer = new Transaction();
+            writer.start();
+            bp.insertTuple(writer.getId(), f.getId(), Utility.getHeapTuple(-2, 2));
+            writer.commit();
+        } finally {
+            BufferPool.resetLockEscalationThreshold();
+        }
+    }
+
+    /**
+     * A read-only transaction may not modify pages
+     */
+    @Test(expected = DbException.class) public void readOnly() throws Exception {
+        Transaction reader = new Transaction(true);
+        reader.start();
+        bp.getPage(reader.getId(), new HeapPageId(f.getId(), 0), Permissions.READ_WRITE);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SnapshotReadTest.class);
+    }
+}
@@ -198,6 +198,7 @@ public class TestUtil {
     public static class SkeletonFile implements DbFile {
         private final int tableid;
         private final TupleDesc td;
+        private boolean closed;
 
         public SkeletonFile(int tableid, TupleDesc td) {
             this.tableid = tableid;
@@ -236,6 +237,15 @@ public class TestUtil {
             throw new RuntimeException("not implemented");
         }
 
+        public void close() {
+            closed = true;
+        }
+
+        /** @return whether the Catalog has closed this file */
+        public boolean isClosed() {
+            return closed;
+        }
+
 		public TupleDesc getTupleDesc() {			
 			return td;
 		}
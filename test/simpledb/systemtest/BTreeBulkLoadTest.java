@@ -0,0 +1,135 @@
+package simpledb.systemtest;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.*;
+import simpledb.storage.*;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeBulkLoadTest extends SimpleDbTestBase {
+	private TransactionId tid;
+	private BTreeFile empty;
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		tid = new TransactionId();
+		File emptyFile = File.createTempFile("empty", ".dat");
+		emptyFile.deleteOnExit();
+		Database.reset();
+		empty = BTreeUtility.createEmptyBTreeFile(emptyFile.getAbsolutePath(), 2, 0);
+	}
+
+	@After
+	public void tearDown() {
+		Database.getBufferPool().transactionComplete(tid);
+		Database.reset();
+	}
+
+	private static int countMatches(BTreeFile f, TransactionId tid, IndexPredicate ipred) throws Exception {
+		DbFileIterator it = f.indexIterator(tid, ipred);
+		it.open();
+		int count = 0;
+		while(it.hasNext()) {
+			it.next();
+			count++;
+		}
+		it.close();
+		return count;
+	}
+
+	@Test public void loadSpillsRunsAndBuildsValidTree() throws Exception {
+		// lots of duplicate keys, and a sort buffer of two pages, so the tuples
+		// are sorted in many runs that have to be merged
+		Database.resetBufferPool(500);
+		List<List<Integer>> tuples = new ArrayList<>();
+		HeapFile source = SystemTestUtil.createRandomHeapFile(2, 20000, 3000, null, tuples);
+		empty.bulkLoad(tid, source, 0.75, 2);
+
+		BTreeChecker.checkRep(empty, tid, new HashMap<>(), true);
+		SystemTestUtil.matchTuples(empty, tid, tuples);
+
+		// the leaves are in key order
+		DbFileIterator it = empty.iterator(tid);
+		it.open();
+		int prev = Integer.MIN_VALUE;
+		while(it.hasNext()) {
+			int value = ((IntField) it.next().getField(0)).getValue();
+			assertTrue(value >= prev);
+			prev = value;
+		}
+		it.close();
+
+		// index lookups find every duplicate of a key
+		for(int key : new int[] {0, 17, 1500, 2999}) {
+			int expected = 0;
+			for(List<Integer> t : tuples) {
+				if(t.get(0) == key) {
+					expected++;
+				}
+			}
+			assertEquals(expected, countMatches(empty, tid, new IndexPredicate(Op.EQUALS, new IntField(key))));
+		}
+
+		// the tree keeps working with ordinary inserts
+		for(int i = 0; i < 1000; i++) {
+			Database.getBufferPool().insertTuple(tid, empty.getId(), BTreeUtility.getBTreeTuple(1500, 2));
+		}
+		BTreeChecker.checkRep(empty, tid, new HashMap<>(), true);
+	}
+
+	@Test public void fullPagesAtFillFactorOne() throws Exception {
+		// 502 tuples fit on a leaf page, so 5020 tuples take exactly ten leaves
+		// and one root page, after the root pointer page
+		List<List<Integer>> tuples = new ArrayList<>();
+		HeapFile source = SystemTestUtil.createRandomHeapFile(2, 5020, null, tuples);
+		empty.bulkLoad(tid, source, 1.0, BTreeFile.DEFAULT_SORT_BUFFER_PAGES);
+		assertEquals(11, empty.numPages());
+		BTreeChecker.checkRep(empty, tid, new HashMap<>(), true);
+		SystemTestUtil.matchTuples(empty, tid, tuples);
+	}
+
+	@Test public void abortedLoadLeavesTreeEmpty() throws Exception {
+		HeapFile source = SystemTestUtil.createRandomHeapFile(2, 3000, null, new ArrayList<>());
+		Transaction t = new Transaction();
+		t.start();
+		Database.getBufferPool().bulkLoad(t.getId(), empty.getId(), source, BTreeFile.DEFAULT_FILL_FACTOR);
+		t.abort();
+
+		// the pages the load wrote are unreachable, and inserting starts a new tree
+		Database.getBufferPool().insertTuple(tid, empty.getId(), BTreeUtility.getBTreeTuple(7, 2));
+		List<List<Integer>> expected = new ArrayList<>();
+		expected.add(Arrays.asList(7, 7));
+		SystemTestUtil.matchTuples(empty, tid, expected);
+		BTreeChecker.checkRep(empty, tid, new HashMap<>(), true);
+	}
+
+	@Test(expected = DbException.class)
+	public void loadRejectsNonEmptyTree() throws Exception {
+		Database.getBufferPool().insertTuple(tid, empty.getId(), BTreeUtility.getBTreeTuple(7, 2));
+		HeapFile source = SystemTestUtil.createRandomHeapFile(2, 10, null, new ArrayList<>());
+		empty.bulkLoad(tid, source);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeBulkLoadTest.class);
+	}
+}
@@ -0,0 +1,159 @@
+package simpledb.systemtest;
+
+import simpledb.common.Database;
+import simpledb.common.Type;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.*;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeCompositeKeyTest extends SimpleDbTestBase {
+	private static final int TENANTS = 20;
+	private static final int TIMES = 1000;
+
+	private TransactionId tid;
+	private final Random rand = new Random(6830);
+
+	@Before
+	public void setUp() {
+		tid = new TransactionId();
+	}
+
+	@After
+	public void tearDown() {
+		Database.getBufferPool().transactionComplete(tid);
+		Database.reset();
+	}
+
+	/**
+	 * Create an empty B+ tree of (tenant, time, value) tuples keyed on (tenant, time)
+	 */
+	private static BTreeFile createFile() throws Exception {
+		File f = File.createTempFile("composite", ".dat");
+		f.deleteOnExit();
+		TupleDesc td = new TupleDesc(new Type[] {Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE});
+		BTreeFile bf = new BTreeFile(f, new int[] {0, 1}, td);
+		Database.getCatalog().addTable(bf, UUID.randomUUID().toString());
+		return bf;
+	}
+
+	private static boolean matches(List<Integer> t, Op op, int tenant, Integer time) {
+		if (time == null) {
+			return new IntField(t.get(0)).compare(op, new IntField(tenant));
+		}
+		return t.get(0) == tenant && new IntField(t.get(1)).compare(op, new IntField(time));
+	}
+
+	/**
+	 * Check that the index lookup returns exactly the matching tuples, in key order
+	 */
+	private void checkLookup(BTreeFile bf, List<List<Integer>> tuples, Op op, int tenant, Integer time)
+			throws Exception {
+		IndexPredicate ipred = time == null ? new IndexPredicate(op, new IntField(tenant))
+				: new IndexPredicate(op, new IntField(tenant), new IntField(time));
+		List<List<Integer>> expected = new ArrayList<>();
+		for (List<Integer> t : tuples) {
+			if (matches(t, op, tenant, time)) {
+				expected.add(t);
+			}
+		}
+		Comparator<List<Integer>> byKey = Comparator.<List<Integer>, Integer>comparing(t -> t.get(0))
+				.thenComparing(t -> t.get(1));
+		expected.sort(byKey);
+
+		List<List<Integer>> actual = new ArrayList<>();
+		DbFileIterator it = bf.indexIterator(tid, ipred);
+		it.open();
+		while (it.hasNext()) {
+			actual.add(SystemTestUtil.tupleToList(it.next()));
+		}
+		it.close();
+		for (int i = 1; i < actual.size(); i++) {
+			assertTrue(byKey.compare(actual.get(i - 1), actual.get(i)) <= 0);
+		}
+		// duplicate keys may come back in any order
+		actual.sort(byKey.thenComparing(t -> t.get(2)));
+		expected.sort(byKey.thenComparing(t -> t.get(2)));
+		assertEquals(ipred.getOp() + " " + ipred.getField(), expected, actual);
+	}
+
+	private void checkLookups(BTreeFile bf, List<List<Integer>> tuples) throws Exception {
+		for (int i = 0; i < 10; i++) {
+			// keys next to existing ones, so that every operation finds some tuples and misses others
+			List<Integer> t = tuples.get(rand.nextInt(tuples.size()));
+			int tenant = t.get(0);
+			int time = t.get(1) + rand.nextInt(3) - 1;
+			for (Op op : new Op[] {Op.EQUALS, Op.GREATER_THAN, Op.GREATER_THAN_OR_EQ, Op.LESS_THAN, Op.LESS_THAN_OR_EQ}) {
+				checkLookup(bf, tuples, op, tenant, time);
+				checkLookup(bf, tuples, op, tenant, null);
+			}
+		}
+		checkLookup(bf, tuples, Op.EQUALS, -1, null);
+	}
+
+	@Test public void insertDeleteAndPrefixLookups() throws Exception {
+		BTreeFile bf = createFile();
+		Database.resetBufferPool(500);
+		List<List<Integer>> tuples = new ArrayList<>();
+		for (int i = 0; i < 5000; i++) {
+			List<Integer> t = Arrays.asList(rand.nextInt(TENANTS), rand.nextInt(TIMES), i);
+			tuples.add(t);
+			Tuple tup = new Tuple(bf.getTupleDesc());
+			for (int j = 0; j < 3; j++) {
+				tup.setField(j, new IntField(t.get(j)));
+			}
+			Database.getBufferPool().insertTuple(tid, bf.getId(), tup);
+		}
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+		checkLookups(bf, tuples);
+
+		// read the tree back from disk
+		Database.getBufferPool().transactionComplete(tid);
+		Database.resetBufferPool(500);
+		tid = new TransactionId();
+		checkLookups(bf, tuples);
+
+		List<Tuple> all = new ArrayList<>();
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		while (it.hasNext()) {
+			all.add(it.next());
+		}
+		it.close();
+		Collections.shuffle(all, rand);
+		for (Tuple t : all.subList(0, 4000)) {
+			Database.getBufferPool().deleteTuple(tid, t);
+			tuples.remove(SystemTestUtil.tupleToList(t));
+		}
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+		checkLookups(bf, tuples);
+	}
+
+	@Test public void bulkLoad() throws Exception {
+		List<List<Integer>> tuples = new ArrayList<>();
+		HeapFile source = SystemTestUtil.createRandomHeapFile(3, 20000, 200, null, tuples);
+		BTreeFile bf = createFile();
+		Database.getBufferPool().bulkLoad(tid, bf.getId(), source, BTreeFile.DEFAULT_FILL_FACTOR);
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+		SystemTestUtil.matchTuples(bf, tid, tuples);
+		checkLookups(bf, tuples);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeCompositeKeyTest.class);
+	}
+}
@@ -0,0 +1,187 @@
+package simpledb.systemtest;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Type;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.*;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeStringKeyTest extends SimpleDbTestBase {
+	private static final TupleDesc TD = new TupleDesc(new Type[] {Type.STRING_TYPE, Type.INT_TYPE});
+
+	private TransactionId tid;
+	private final Random rand = new Random(830);
+
+	@Before
+	public void setUp() {
+		tid = new TransactionId();
+	}
+
+	@After
+	public void tearDown() {
+		Database.getBufferPool().transactionComplete(tid);
+		BufferPool.resetPageSize();
+		Database.reset();
+	}
+
+	private static BTreeFile createFile() throws Exception {
+		File f = File.createTempFile("strkey", ".dat");
+		f.deleteOnExit();
+		BTreeFile bf = new BTreeFile(f, 0, TD);
+		Database.getCatalog().addTable(bf, UUID.randomUUID().toString());
+		return bf;
+	}
+
+	private static Tuple tuple(String key, int value) {
+		Tuple t = new Tuple(TD);
+		t.setField(0, new StringField(key, Type.STRING_LEN));
+		t.setField(1, new IntField(value));
+		return t;
+	}
+
+	/**
+	 * Keys that share long prefixes, as URLs do, mixed with a few short ones so
+	 * that separators of very different lengths sit next to each other.
+	 */
+	private String randomKey() {
+		if (rand.nextInt(10) == 0) {
+			return Integer.toString(rand.nextInt(1000));
+		}
+		return String.format("https://example.com/customers/%08d/orders", rand.nextInt(100000000));
+	}
+
+	private int count(BTreeFile bf, IndexPredicate ipred) throws Exception {
+		DbFileIterator it = ipred == null ? bf.iterator(tid) : bf.indexIterator(tid, ipred);
+		it.open();
+		int n = 0;
+		while (it.hasNext()) {
+			it.next();
+			n++;
+		}
+		it.close();
+		return n;
+	}
+
+	private BTreeInternalPage root(BTreeFile bf) throws Exception {
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(tid,
+				BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
+		assertEquals(BTreePageId.INTERNAL, rootPtr.getRootId().pgcateg());
+		return (BTreeInternalPage) Database.getBufferPool().getPage(tid, rootPtr.getRootId(), Permissions.READ_ONLY);
+	}
+
+	/**
+	 * Commit, and drop every page from the buffer pool so the tree is read back from disk.
+	 */
+	private void reopen() {
+		Database.getBufferPool().transactionComplete(tid);
+		Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+		tid = new TransactionId();
+	}
+
+	@Test public void internalPagesHoldManyStringKeys() throws Exception {
+		BTreeFile bf = createFile();
+		Database.resetBufferPool(1000);
+		List<String> keys = new ArrayList<>();
+		for (int i = 0; i < 5000; i++) {
+			keys.add(randomKey());
+			Database.getBufferPool().insertTuple(tid, bf.getId(), tuple(keys.get(i), i));
+		}
+		reopen();
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+		assertEquals(5000, count(bf, null));
+
+		// a single internal page indexes every leaf, where fixed-width keys would need two levels
+		int fixedWidthEntries = (BufferPool.getPageSize() * 8 - 73) / ((Type.STRING_LEN + 8) * 8 + 1);
+		BTreeInternalPage root = root(bf);
+		assertTrue(root.getNumEntries() > fixedWidthEntries * 5);
+		assertEquals(BTreePageId.LEAF, root.iterator().next().getLeftChild().pgcateg());
+
+		for (int i = 0; i < 100; i++) {
+			String key = keys.get(rand.nextInt(keys.size()));
+			int expected = Collections.frequency(keys, key);
+			assertEquals(expected, count(bf, new IndexPredicate(Op.EQUALS, new StringField(key, Type.STRING_LEN))));
+		}
+	}
+
+	@Test public void deletesMergeAndRedistributeCompressedPages() throws Exception {
+		// small pages give a tree with two levels of internal pages
+		BufferPool.setPageSize(1024);
+		BTreeFile bf = createFile();
+		Database.resetBufferPool(3000);
+		List<Tuple> tuples = new ArrayList<>();
+		for (int i = 0; i < 5000; i++) {
+			Database.getBufferPool().insertTuple(tid, bf.getId(), tuple(randomKey(), i));
+		}
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+		BTreeInternalPage root = root(bf);
+		assertEquals(BTreePageId.INTERNAL, root.iterator().next().getLeftChild().pgcateg());
+
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		while (it.hasNext()) {
+			tuples.add(it.next());
+		}
+		it.close();
+		Collections.shuffle(tuples, rand);
+		for (int i = 0; i < 4500; i++) {
+			Database.getBufferPool().deleteTuple(tid, tuples.get(i));
+			if (i % 500 == 0) {
+				BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+			}
+		}
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+
+		reopen();
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+		assertEquals(500, count(bf, null));
+		for (Tuple t : tuples.subList(4500, 4600)) {
+			assertTrue(count(bf, new IndexPredicate(Op.EQUALS, t.getField(0))) >= 1);
+		}
+	}
+
+	@Test public void bulkLoadPacksCompressedPages() throws Exception {
+		File f = File.createTempFile("strsrc", ".dat");
+		f.deleteOnExit();
+		HeapFile source = new HeapFile(f, TD);
+		Database.getCatalog().addTable(source, UUID.randomUUID().toString());
+		Database.resetBufferPool(1000);
+		Map<String, Integer> expected = new HashMap<>();
+		for (int i = 0; i < 5000; i++) {
+			String key = randomKey();
+			expected.merge(key, 1, Integer::sum);
+			Database.getBufferPool().insertTuple(tid, source.getId(), tuple(key, i));
+		}
+		reopen();
+
+		BTreeFile bf = createFile();
+		Database.getBufferPool().bulkLoad(tid, bf.getId(), source, BTreeFile.DEFAULT_FILL_FACTOR);
+		reopen();
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+		assertEquals(5000, count(bf, null));
+		assertEquals(BTreePageId.LEAF, root(bf).iterator().next().getLeftChild().pgcateg());
+		for (Map.Entry<String, Integer> e : expected.entrySet()) {
+			assertEquals((int) e.getValue(), count(bf,
+					new IndexPredicate(Op.EQUALS, new StringField(e.getKey(), Type.STRING_LEN))));
+		}
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeStringKeyTest.class);
+	}
+}
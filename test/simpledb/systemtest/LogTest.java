@@ -437,6 +437,245 @@ public class LogTest extends SimpleDbTestBase {
     }
 
 
+    @Test public void TestInsertDeleteCommitCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // T1 inserts, flushes, deletes the row again, flushes and commits;
+        // the second update record must undo the first one on redo
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 3);
+        Database.getBufferPool().flushAllPages();
+        SeqScan scan = new SeqScan(t1.getId(), hf1.getId(), "");
+        scan.open();
+        while(scan.hasNext()){
+            Tuple tu = scan.next();
+            if(((IntField)tu.getField(0)).getValue() == 3)
+                Database.getBufferPool().deleteTuple(t1.getId(), tu);
+        }
+        scan.close();
+        Database.getBufferPool().flushAllPages();
+        t1.commit();
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, false);
+        t.commit();
+    }
+
+
+    @Test public void TestInsertFlushDeleteLoggedCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // T1 inserts and flushes, so the log no longer keeps the page's
+        // image, then deletes the row again; the delete is logged but
+        // never written, and redoing it must clear the slot that is set
+        // in the file, although it was also clear before T1
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 3);
+        Database.getBufferPool().flushAllPages();
+        SeqScan scan = new SeqScan(t1.getId(), hf1.getId(), "");
+        scan.open();
+        while(scan.hasNext()){
+            Tuple tu = scan.next();
+            if(((IntField)tu.getField(0)).getValue() == 3)
+                Database.getBufferPool().deleteTuple(t1.getId(), tu);
+        }
+        scan.close();
+        Page p = Database.getBufferPool().getPage(t1.getId(),
+                new HeapPageId(hf1.getId(), 0), Permissions.READ_ONLY);
+        Database.getLogFile().logWrite(t1.getId(), p.getBeforeImage(), p);
+        Database.getLogFile().logCommit(t1.getId());
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, false);
+        t.commit();
+    }
+
+
+    @Test public void TestCheckpointWritesNoPages()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // a checkpoint must not write T1's uncommitted page to the file
+        Transaction t1 = new Transaction();
+        t1.start();
+        HeapPage xp1 = (HeapPage) hf1.readPage(new HeapPageId(hf1.getId(), 0));
+        insertRow(hf1, t1, 3);
+        Database.getLogFile().logCheckpoint();
+        HeapPage xp2 = (HeapPage) hf1.readPage(new HeapPageId(hf1.getId(), 0));
+        assertEquals(xp1.getNumEmptySlots(), xp2.getNumEmptySlots());
+        t1.commit();
+    }
+
+    @Test public void TestLoggedUnwrittenCheckpointCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // T1's update is logged but its page never reaches the file;
+        // a checkpoint in between must keep it in the dirty page table
+        // so recovery redoes it
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 3);
+        Page p = Database.getBufferPool().getPage(t1.getId(),
+                new HeapPageId(hf1.getId(), 0), Permissions.READ_ONLY);
+        Database.getLogFile().logWrite(t1.getId(), p.getBeforeImage(), p);
+        Database.getLogFile().logCheckpoint();
+        Database.getLogFile().logCommit(t1.getId());
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, true);
+        t.commit();
+    }
+
+    @Test public void TestOpenCrashCommitCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // T1 is rolled back by recovery; T2 then reuses its slot and
+        // commits; a second recovery must not roll T1 back again
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 3);
+        Database.getBufferPool().flushAllPages(); // XXX defeat NO-STEAL-based abort
+
+        crash();
+
+        doInsert(hf1, 4, -1);
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, false);
+        look(hf1, t, 4, true);
+        t.commit();
+    }
+
+
+    @Test public void TestAbortAcrossCheckpoint()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // T1 logs updates on both sides of a checkpoint (which truncates
+        // the log) while T2 commits; aborting T1 must undo all of its
+        // updates
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 3);
+        Database.getBufferPool().flushAllPages(); // XXX defeat NO-STEAL-based abort
+        doInsert(hf2, 21, -1);
+        Database.getLogFile().logCheckpoint();
+        insertRow(hf1, t1, 4);
+        abort(t1);
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, false);
+        look(hf1, t, 4, false);
+        look(hf2, t, 21, true);
+        t.commit();
+    }
+
+    @Test public void TestOpenCheckpointCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // T1's only update was written before the checkpoint, so redo has
+        // nothing to do; undo must still find it from the checkpoint
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 3);
+        Database.getBufferPool().flushAllPages(); // XXX defeat NO-STEAL-based abort
+        Database.getLogFile().logCheckpoint();
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, false);
+        t.commit();
+    }
+
+
+    @Test public void TestSegmentsRecycled()
+            throws IOException, DbException, TransactionAbortedException {
+        LogFile.setSegmentSize(512);
+        try {
+            setup();
+
+            // *** Test:
+            // with segments this small records keep crossing segment
+            // boundaries; checkpoints must keep the number of segments
+            // bounded, and recovery must still read records across them
+            for (int i = 1; i <= 60; i++) {
+                doInsert(hf1, i, -1);
+                if (i % 5 == 0) {
+                    Database.getLogFile().logCheckpoint();
+                    assertTrue(Database.getLogFile().getSegmentCount() <= 3);
+                }
+            }
+            doInsert(hf2, 61, 62);
+            Transaction t1 = new Transaction();
+            t1.start();
+            insertRow(hf2, t1, 63);
+            Database.getBufferPool().flushAllPages(); // XXX defeat NO-STEAL-based abort
+
+            crash();
+
+            Transaction t = new Transaction();
+            t.start();
+            for (int i = 1; i <= 60; i++) {
+                look(hf1, t, i, true);
+            }
+            look(hf2, t, 61, true);
+            look(hf2, t, 62, true);
+            look(hf2, t, 63, false);
+            t.commit();
+        } finally {
+            LogFile.resetSegmentSize();
+        }
+    }
+
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(LogTest.class);
@@ -0,0 +1,199 @@
+package simpledb.systemtest;
+
+import simpledb.common.Database;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.*;
+import simpledb.storage.*;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class SecondaryIndexTest extends SimpleDbTestBase {
+	private static final int MAX_VALUE = 100;
+
+	private TransactionId tid;
+	private HeapFile table;
+	private List<List<Integer>> tuples;
+	private SecondaryIndex index;
+
+	/**
+	 * Index field 1 of a three-field heap file, including field 2 in the entries
+	 */
+	@Before
+	public void setUp() throws Exception {
+		tid = new TransactionId();
+		tuples = new ArrayList<>();
+		table = SystemTestUtil.createRandomHeapFile(3, 3000, MAX_VALUE, null, tuples);
+		File f = File.createTempFile("secondary", ".dat");
+		f.deleteOnExit();
+		index = new SecondaryIndex("table_f1", table, new int[] {1}, new int[] {2}, f);
+		Database.getCatalog().addIndex(index);
+		index.build(tid);
+	}
+
+	@After
+	public void tearDown() {
+		Database.getBufferPool().transactionComplete(tid);
+		Database.reset();
+	}
+
+	private Tuple tuple(int... values) {
+		Tuple t = new Tuple(table.getTupleDesc());
+		for (int i = 0; i < values.length; i++) {
+			t.setField(i, new IntField(values[i]));
+		}
+		return t;
+	}
+
+	private static List<List<Integer>> readAll(DbFileIterator it) throws Exception {
+		List<List<Integer>> out = new ArrayList<>();
+		it.open();
+		while (it.hasNext()) {
+			out.add(SystemTestUtil.tupleToList(it.next()));
+		}
+		it.close();
+		return out;
+	}
+
+	/**
+	 * Check that lookups through the index return the tuples of the heap file with the key
+	 */
+	private void checkLookups(TransactionId tid, List<List<Integer>> tuples) throws Exception {
+		for (int key : new int[] {0, 1, 17, 50, MAX_VALUE - 1, MAX_VALUE}) {
+			List<List<Integer>> expected = new ArrayList<>();
+			for (List<Integer> t : tuples) {
+				if (t.get(1) == key) {
+					expected.add(t);
+				}
+			}
+			List<List<Integer>> actual = readAll(index.iterator(tid, new IndexPredicate(Op.EQUALS, new IntField(key))));
+			Comparator<List<Integer>> order = Comparator.<List<Integer>, Integer>comparing(t -> t.get(0))
+					.thenComparing(t -> t.get(1)).thenComparing(t -> t.get(2));
+			expected.sort(order);
+			actual.sort(order);
+			assertEquals(expected, actual);
+		}
+		assertEquals(tuples.size(), readAll(index.getFile().iterator(tid)).size());
+		BTreeChecker.checkRep(index.getFile(), tid, new HashMap<>(), true);
+	}
+
+	@Test public void buildFromExistingTuples() throws Exception {
+		checkLookups(tid, tuples);
+
+		// a range lookup returns the tuples in key order
+		List<List<Integer>> range = readAll(index.iterator(tid, new IndexPredicate(Op.LESS_THAN, new IntField(10))));
+		int expected = 0;
+		for (List<Integer> t : tuples) {
+			if (t.get(1) < 10) {
+				expected++;
+			}
+		}
+		assertEquals(expected, range.size());
+		for (int i = 1; i < range.size(); i++) {
+			assertTrue(range.get(i - 1).get(1) <= range.get(i).get(1));
+		}
+	}
+
+	@Test public void maintainedByInsertAndDelete() throws Exception {
+		for (int i = 0; i < 500; i++) {
+			List<Integer> t = Arrays.asList(i, i % 7, -i);
+			tuples.add(t);
+			Database.getBufferPool().insertTuple(tid, table.getId(), tuple(t.get(0), t.get(1), t.get(2)));
+		}
+		checkLookups(tid, tuples);
+
+		// delete every tuple with an even first field
+		List<Tuple> toDelete = new ArrayList<>();
+		DbFileIterator it = table.iterator(tid);
+		it.open();
+		while (it.hasNext()) {
+			Tuple t = it.next();
+			if (((IntField) t.getField(0)).getValue() % 2 == 0) {
+				toDelete.add(t);
+			}
+		}
+		it.close();
+		for (Tuple t : toDelete) {
+			Database.getBufferPool().deleteTuple(tid, t);
+			tuples.remove(SystemTestUtil.tupleToList(t));
+		}
+		checkLookups(tid, tuples);
+
+		// inserts that would take the bulk path go one at a time to keep the index up to date
+		List<Tuple> more = new ArrayList<>();
+		for (int i = 0; i < 2000; i++) {
+			more.add(tuple(i, 17, i));
+			tuples.add(Arrays.asList(i, 17, i));
+		}
+		Iterator<Tuple> source = more.iterator();
+		Database.getBufferPool().bulkInsertTuples(tid, table.getId(), new AbstractDbFileIterator() {
+			public void open() {
+			}
+
+			public void rewind() {
+			}
+
+			protected Tuple readNext() {
+				return source.hasNext() ? source.next() : null;
+			}
+		});
+		checkLookups(tid, tuples);
+	}
+
+	@Test public void abortRollsBackIndex() throws Exception {
+		Database.getBufferPool().transactionComplete(tid);
+		Transaction t = new Transaction();
+		t.start();
+		Database.getBufferPool().insertTuple(t.getId(), table.getId(), tuple(1, MAX_VALUE, 2));
+		assertEquals(1, readAll(index.iterator(t.getId(), new IndexPredicate(Op.EQUALS, new IntField(MAX_VALUE)))).size());
+		t.abort();
+
+		tid = new TransactionId();
+		checkLookups(tid, tuples);
+	}
+
+	@Test public void coveringScan() throws Exception {
+		assertTrue(index.covers(1, 2));
+		assertFalse(index.covers(0));
+
+		SecondaryIndexScan scan = new SecondaryIndexScan(tid, index, "t",
+				new IndexPredicate(Op.GREATER_THAN_OR_EQ, new IntField(90)), true);
+		assertEquals(2, scan.getTupleDesc().numFields());
+		assertEquals("t." + table.getTupleDesc().getFieldName(2), scan.getTupleDesc().getFieldName(1));
+
+		List<List<Integer>> expected = new ArrayList<>();
+		for (List<Integer> t : tuples) {
+			if (t.get(1) >= 90) {
+				expected.add(Arrays.asList(t.get(1), t.get(2)));
+			}
+		}
+		List<List<Integer>> actual = new ArrayList<>();
+		scan.open();
+		while (scan.hasNext()) {
+			actual.add(SystemTestUtil.tupleToList(scan.next()));
+		}
+		scan.close();
+		Comparator<List<Integer>> order = Comparator.<List<Integer>, Integer>comparing(t -> t.get(0))
+				.thenComparing(t -> t.get(1));
+		expected.sort(order);
+		actual.sort(order);
+		assertEquals(expected, actual);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(SecondaryIndexTest.class);
+	}
+}